@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.core.Block;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Shared fixtures for the benchmarks in this package.
+ */
+public class BenchmarkData {
+    /**
+     * Returns the raw bytes of main net block 169482, which is shipped with the core test resources. It has a
+     * realistic mix of pay-to-address transactions and is what the serialization benchmarks parse.
+     */
+    public static byte[] getBlock169482() throws IOException {
+        InputStream stream = Block.class.getResourceAsStream("block169482.dat");
+        if (stream == null)
+            throw new IOException("block169482.dat not found, is the bitcoinj-core test jar on the classpath?");
+        try {
+            return ByteStreams.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.BloomFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BloomFilter#insert(byte[])} and {@link BloomFilter#contains(byte[])} with 20 byte keys (the size of a
+ * pubkey hash) against a filter sized for a wallet with the given number of elements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BloomFilterBenchmark {
+    private static final int NUM_KEYS = 1024;
+
+    @Param({"100", "10000"})
+    public int elements;
+
+    private BloomFilter filter;
+    private byte[][] keys;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        filter = new BloomFilter(elements, 0.001, random.nextLong());
+        keys = new byte[NUM_KEYS][20];
+        for (int i = 0; i < NUM_KEYS; i++) {
+            random.nextBytes(keys[i]);
+            // Insert half of the keys so contains() sees both hits and misses.
+            if (i % 2 == 0)
+                filter.insert(keys[i]);
+        }
+    }
+
+    private byte[] nextKey() {
+        index = (index + 1) & (NUM_KEYS - 1);
+        return keys[index];
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return filter.contains(nextKey());
+    }
+
+    @Benchmark
+    public void insert() {
+        filter.insert(nextKey());
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures double SHA-256 over inputs of the sizes that dominate in practice: 64 bytes (a merkle tree node), 80 bytes
+ * (a block header), a typical transaction and a full size block. Run with {@code -t} greater than one to see how the
+ * hashing helpers in {@link Utils} behave when many threads hash at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HashingBenchmark {
+    @Param({"64", "80", "250", "1000000"})
+    public int size;
+
+    private byte[] input;
+
+    @Setup
+    public void setUp() {
+        input = new byte[size];
+        new Random(42).nextBytes(input);
+    }
+
+    @Benchmark
+    public Sha256Hash createDouble() {
+        return Sha256Hash.createDouble(input);
+    }
+
+    @Benchmark
+    public byte[] doubleDigest() {
+        return Utils.doubleDigest(input);
+    }
+
+    @Benchmark
+    public byte[] doubleDigestTwoBuffers() {
+        int half = size / 2;
+        return Utils.doubleDigestTwoBuffers(input, 0, half, input, half, size - half);
+    }
+
+    @Benchmark
+    public Sha256Hash singleDigest() {
+        return Sha256Hash.create(input);
+    }
+}
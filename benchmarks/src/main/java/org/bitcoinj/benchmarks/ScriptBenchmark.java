@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures script verification via {@link Script#correctlySpends(Transaction, long, Script)} for the standard output
+ * types, and the cost of computing the signature hash alone via
+ * {@link Transaction#hashForSignature(int, Script, Transaction.SigHash, boolean)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ScriptBenchmark {
+    public enum ScriptType {
+        P2PKH, P2SH_MULTISIG, MULTISIG
+    }
+
+    @Param({"P2PKH", "P2SH_MULTISIG", "MULTISIG"})
+    public ScriptType type;
+
+    private Transaction spendTx;
+    private Script scriptSig;
+    private Script scriptPubKey;
+    // The script that is signed over: the scriptPubKey, or the redeem script for P2SH.
+    private Script connectedScript;
+
+    @Setup
+    public void setUp() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        List<ECKey> keys = ImmutableList.of(new ECKey(), new ECKey(), new ECKey());
+        switch (type) {
+            case P2PKH:
+                scriptPubKey = ScriptBuilder.createOutputScript(keys.get(0).toAddress(params));
+                connectedScript = scriptPubKey;
+                break;
+            case P2SH_MULTISIG:
+                connectedScript = ScriptBuilder.createRedeemScript(2, keys);
+                scriptPubKey = ScriptBuilder.createP2SHOutputScript(connectedScript);
+                break;
+            case MULTISIG:
+                scriptPubKey = ScriptBuilder.createMultiSigOutputScript(2, keys);
+                connectedScript = scriptPubKey;
+                break;
+        }
+
+        spendTx = new Transaction(params);
+        spendTx.addOutput(Coin.COIN, new ECKey());
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] {1}));
+        TransactionInput input = spendTx.addInput(new TransactionInput(params, spendTx, new byte[] {}, outPoint));
+        Sha256Hash hash = spendTx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL, false);
+        if (type == ScriptType.P2PKH) {
+            TransactionSignature sig = new TransactionSignature(keys.get(0).sign(hash), Transaction.SigHash.ALL, false);
+            scriptSig = ScriptBuilder.createInputScript(sig, keys.get(0));
+        } else {
+            List<TransactionSignature> sigs = new ArrayList<TransactionSignature>();
+            for (ECKey key : keys.subList(0, 2))
+                sigs.add(new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false));
+            if (type == ScriptType.P2SH_MULTISIG)
+                scriptSig = ScriptBuilder.createP2SHMultiSigInputScript(sigs, connectedScript);
+            else
+                scriptSig = ScriptBuilder.createMultiSigInputScript(sigs);
+        }
+        input.setScriptSig(scriptSig);
+        // Fail fast rather than benchmarking the exception path.
+        scriptSig.correctlySpends(spendTx, 0, scriptPubKey);
+    }
+
+    @Benchmark
+    public void correctlySpends() throws Exception {
+        scriptSig.correctlySpends(spendTx, 0, scriptPubKey);
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignature() {
+        return spendTx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL, false);
+    }
+
+    @Benchmark
+    public Script parseScriptSig() {
+        return new Script(scriptSig.getProgram());
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures wire deserialization of a real main net block and one of its transactions, in both lazy and eager parse
+ * modes. The lazy variants that touch every transaction show what lazy parsing costs once the contents are
+ * actually needed, which is the common case for full verification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"false", "true"})
+    public boolean parseLazy;
+
+    @Param({"false", "true"})
+    public boolean parseRetain;
+
+    private NetworkParameters params;
+    private BitcoinSerializer serializer;
+    private byte[] blockBytes;
+    private byte[] blockMessageBytes;
+    private byte[] txBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        params = MainNetParams.get();
+        serializer = new BitcoinSerializer(params, parseLazy, parseRetain);
+        blockBytes = BenchmarkData.getBlock169482();
+        Block block = new Block(params, blockBytes);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(block, bos);
+        blockMessageBytes = bos.toByteArray();
+        txBytes = block.getTransactions().get(1).bitcoinSerialize();
+    }
+
+    @Benchmark
+    public Message deserializeBlockMessage() throws Exception {
+        return serializer.deserialize(ByteBuffer.wrap(blockMessageBytes));
+    }
+
+    @Benchmark
+    public Sha256Hash parseBlockHeader() throws Exception {
+        Block block = new Block(params, blockBytes, parseLazy, parseRetain, blockBytes.length);
+        return block.getHash();
+    }
+
+    @Benchmark
+    public void parseBlockAndTransactions(Blackhole bh) throws Exception {
+        Block block = new Block(params, blockBytes, parseLazy, parseRetain, blockBytes.length);
+        bh.consume(block.getHash());
+        for (Transaction tx : block.getTransactions())
+            bh.consume(tx.getHash());
+    }
+
+    @Benchmark
+    public Sha256Hash parseTransaction() throws Exception {
+        Transaction tx = new Transaction(params, txBytes, null, parseLazy, parseRetain, txBytes.length);
+        return tx.getHash();
+    }
+
+    @Benchmark
+    public byte[] reserializeBlock() throws Exception {
+        Block block = new Block(params, blockBytes, parseLazy, parseRetain, blockBytes.length);
+        return block.bitcoinSerialize();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures block connection in {@link FullPrunedBlockChain} (and so
+ * {@link FullPrunedBlockChain#connectTransactions(int, Block)}) by replaying the chain built by
+ * {@link FullBlockTestGenerator} into a fresh {@link MemoryFullPrunedBlockStore} on every iteration. The chain contains
+ * reorgs and deliberately invalid blocks, exactly as the full pruned block chain tests use it.</p>
+ *
+ * <p>This class lives in org.bitcoinj.core because the generator's rule types are package private.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FullPrunedBlockChainBenchmark {
+    private NetworkParameters params;
+    private List<FullBlockTestGenerator.BlockAndValidity> blocks;
+    private int maximumReorgBlockCount;
+    private MemoryFullPrunedBlockStore store;
+    private FullPrunedBlockChain chain;
+
+    @Setup(Level.Trial)
+    public void generateBlocks() throws Exception {
+        params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        RuleList ruleList = new FullBlockTestGenerator(params).getBlocksToTest(false, false, null);
+        blocks = new ArrayList<FullBlockTestGenerator.BlockAndValidity>();
+        for (Rule rule : ruleList.list) {
+            if (rule instanceof FullBlockTestGenerator.BlockAndValidity)
+                blocks.add((FullBlockTestGenerator.BlockAndValidity) rule);
+        }
+        maximumReorgBlockCount = ruleList.maximumReorgBlockCount;
+    }
+
+    @Setup(Level.Iteration)
+    public void createChain() throws Exception {
+        store = new MemoryFullPrunedBlockStore(params, maximumReorgBlockCount);
+        chain = new FullPrunedBlockChain(params, store);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeChain() throws Exception {
+        // Otherwise every iteration leaves another set of verification threads behind.
+        chain.getVerificationEngine().shutdown();
+        store.close();
+    }
+
+    @Benchmark
+    public StoredBlock connectGeneratedChain() throws Exception {
+        for (FullBlockTestGenerator.BlockAndValidity block : blocks) {
+            try {
+                chain.add(block.block);
+            } catch (VerificationException e) {
+                if (!block.throwsException)
+                    throw e;
+            }
+        }
+        return chain.getChainHead();
+    }
+}
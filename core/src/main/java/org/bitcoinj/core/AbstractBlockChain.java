@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import com.google.common.base.Preconditions;
@@ -31,8 +32,15 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -321,6 +329,120 @@ public abstract class AbstractBlockChain {
      * Also indicates that all calls to add() should provide a block containing transactions
      */
     protected abstract boolean shouldVerifyTransactions();
+
+    /**
+     * <p>Adds a batch of block headers, such as a {@link HeadersMessage} holds, to a chain that doesn't verify
+     * transactions. Has the same effect as passing each to {@link #add(Block)} in turn, but checks their proof of
+     * work on all cores and headers that extend the chain head only move it once, after all of them are stored.</p>
+     *
+     * <p>Stops at the first header that doesn't connect to the chain, which is kept as an orphan. If a header fails
+     * verification, the ones before it are still added before the exception is thrown.</p>
+     *
+     * @return the number of headers that connected to the chain
+     */
+    public int addHeaders(List<Block> headers) throws VerificationException, PrunedException {
+        if (shouldVerifyTransactions())
+            throw new VerificationException("Got a block header while running in full-block mode");
+        int verified = verifyHeaders(headers);
+        lock.lock();
+        try {
+            int added = connectHeaders(headers.subList(0, verified));
+            // The rest, if any, don't simply extend the chain head or failed verification, so let the usual path deal
+            // with forks, orphans and bad headers.
+            for (Block header : headers.subList(added, headers.size())) {
+                if (!add(header))
+                    break;
+                added++;
+            }
+            return added;
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Checks the proof of work and timestamps of the headers, spread over the cores, without holding the lock. Returns
+    // how many of the leading headers passed, which is the position of the first that failed if any did.
+    private int verifyHeaders(final List<Block> headers) {
+        int chunkSize = Math.max(MIN_HEADERS_PER_THREAD, (headers.size() + HEADER_THREADS - 1) / HEADER_THREADS);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int from = chunkSize; from < headers.size(); from += chunkSize) {
+            final int start = from, end = Math.min(headers.size(), from + chunkSize);
+            futures.add(getHeaderVerifier().submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return verifyHeaders(headers, start, end);
+                }
+            }));
+        }
+        int verified = verifyHeaders(headers, 0, Math.min(headers.size(), chunkSize));
+        for (int i = 0; i < futures.size(); i++) {
+            int chunkVerified;
+            try {
+                chunkVerified = futures.get(i).get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            // A chunk only counts if all the headers before it passed.
+            if (verified == (i + 1) * chunkSize)
+                verified = chunkVerified;
+        }
+        return verified;
+    }
+
+    // Returns the position of the first header in the range that fails verification, or its end if none do.
+    private static int verifyHeaders(List<Block> headers, int start, int end) {
+        for (int i = start; i < end; i++) {
+            try {
+                headers.get(i).verifyHeader();
+            } catch (VerificationException e) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    // Stores the leading headers that each build on the one before, starting from the chain head, then sets the
+    // chain head once, runs the listeners and connects any orphans that now fit. Returns how many it stored.
+    private int connectHeaders(List<Block> headers) throws BlockStoreException, VerificationException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        List<StoredBlock> connected = new ArrayList<StoredBlock>(headers.size());
+        StoredBlock head = getChainHead();
+        VerificationException failure = null;
+        try {
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(head.getHeader().getHash()))
+                    break;
+                if (!params.passesCheckpoint(head.getHeight() + 1, header.getHash()))
+                    throw new VerificationException("Block failed checkpoint lockin at " + (head.getHeight() + 1));
+                checkDifficultyTransitions(head, header);
+                head = addToBlockStore(head, header.transactions == null ? header : header.cloneAsHeader());
+                connected.add(head);
+            }
+        } catch (VerificationException e) {
+            // Keep the headers before the bad one, as adding them one at a time would have.
+            failure = e;
+        }
+        if (!connected.isEmpty()) {
+            setChainHead(head);
+            log.debug("Chain is now {} blocks high, running listeners", head.getHeight());
+            // Wallets count confirmations by the new best blocks they are told of, so they need to hear of each.
+            for (StoredBlock block : connected)
+                informListenersForNewBlock(block.getHeader(), NewBlockType.BEST_CHAIN, null, null, block);
+            statsBlocksAdded += connected.size();
+        }
+        if (failure != null) {
+            notSettingChainHead();
+            throw failure;
+        }
+        if (!connected.isEmpty())
+            tryConnectingOrphans();
+        return connected.size();
+    }
     
     /**
      * Connect each transaction in block.transactions, verifying them as we go and removing spent outputs
@@ -344,6 +466,27 @@ public abstract class AbstractBlockChain {
      */
     protected abstract TransactionOutputChanges connectTransactions(StoredBlock newBlock) throws VerificationException, BlockStoreException, PrunedException;    
     
+    // Threads that check the proof of work of header batches, and the fewest headers worth handing to one.
+    private static final int HEADER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MIN_HEADERS_PER_THREAD = 100;
+    // Only started once headers are added in bulk, so chains that never do that run no extra threads. Its threads exit
+    // after a minute without work, so it needs no shutting down.
+    @Nullable private ThreadPoolExecutor headerVerifier;
+
+    private ExecutorService getHeaderVerifier() {
+        lock.lock();
+        try {
+            if (headerVerifier == null) {
+                headerVerifier = new ThreadPoolExecutor(HEADER_THREADS, HEADER_THREADS, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+                headerVerifier.allowCoreThreadTimeOut(true);
+            }
+            return headerVerifier;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // Stat counters.
     private long statsLastTime = System.currentTimeMillis();
     private long statsBlocksAdded;
@@ -862,16 +1005,13 @@ public abstract class AbstractBlockChain {
         }
 
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // two weeks after the initial block chain download, and stores that index heights make it cheap.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        StoredBlock cursor = storedPrev.getAncestor(blockStore, storedPrev.getHeight() - (params.getInterval() - 1));
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
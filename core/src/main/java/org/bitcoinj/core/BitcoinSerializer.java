@@ -17,17 +17,21 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.utils.ByteBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -132,6 +136,85 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * <p>Serializes the message, header and all, into a buffer from the pool, ready to be written out: the position is
+     * zero and the limit is the end of the message. The payload is written straight into the buffer and the checksum
+     * patched into the header afterwards, so no intermediate arrays are made. The caller should give the buffer back
+     * to the pool once it is done with it.</p>
+     */
+    public ByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        int headerLength = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
+        int sizeHint = message.length == Message.UNKNOWN_LENGTH ? 256 : message.length;
+        BufferOutputStream out = new BufferOutputStream(pool, pool.acquire(headerLength + sizeHint));
+        out.buffer.position(headerLength);
+        try {
+            message.bitcoinSerialize(out);
+        } catch (IOException e) {
+            pool.release(out.buffer);
+            throw e;
+        }
+        ByteBuffer buffer = out.buffer;
+        int length = buffer.position() - headerLength;
+        buffer.flip();
+
+        buffer.order(ByteOrder.BIG_ENDIAN).putInt(0, (int) params.getPacketMagic());
+        for (int i = 0; i < COMMAND_LEN; i++)
+            buffer.put(4 + i, i < name.length() ? (byte) (name.codePointAt(i) & 0xFF) : 0);
+        buffer.order(ByteOrder.LITTLE_ENDIAN).putInt(4 + COMMAND_LEN, length);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(headerLength);
+        byte[] hash = new byte[32];
+        doubleDigest(payload, hash, 0);
+        for (int i = 0; i < 4; i++)
+            buffer.put(4 + COMMAND_LEN + 4 + i, hash[i]);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message of {} bytes", name, length);
+        return buffer;
+    }
+
+    // Writes into a buffer from a pool, moving to a bigger one whenever it fills up.
+    private static class BufferOutputStream extends OutputStream {
+        private final ByteBufferPool pool;
+        ByteBuffer buffer;
+
+        BufferOutputStream(ByteBufferPool pool, ByteBuffer buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        private void ensureRemaining(int length) throws IOException {
+            if (buffer.remaining() >= length)
+                return;
+            long needed = (long) buffer.position() + length;
+            if (needed > Message.MAX_SIZE + 24)
+                throw new IOException("Message too large to send: " + needed + " bytes");
+            ByteBuffer bigger = pool.acquire((int) Math.max(needed, Math.min(buffer.capacity() * 2L, Message.MAX_SIZE + 24)));
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -171,10 +254,25 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, null);
+    }
+
+    /**
+     * <p>Deserializes a payload that has already been read into an array, without copying it again. The payload is
+     * the first header.size bytes of the array. If the caller hashed the payload while reading it, it can pass in
+     * the double SHA-256 hash so that it isn't calculated twice.</p>
+     *
+     * <p>The array may only be longer than the payload if {@link #canRecyclePayload(BitcoinPacketHeader)} is true, in
+     * which case the resulting message does not keep a reference to it and it can be reused once this returns.</p>
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, @Nullable byte[] hash)
+            throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size
+                || (payloadBytes.length > header.size && canRecyclePayload(header)));
+        if (hash == null)
+            hash = doubleDigest(payloadBytes, 0, header.size);
 
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -184,14 +282,31 @@ public class BitcoinSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payloadBytes, 0, header.size));
         }
 
+        Message message;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            message = makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes, 0, header.size) + "\n", e);
         }
+        // Parsing is only bounded by the end of the array, so a truncated message in a recycled array would have been
+        // completed with whatever the array held before, and its hash wouldn't match its contents.
+        if (payloadBytes.length > header.size && message.getMessageSize() != header.size)
+            throw new ProtocolException(String.format("'%s' message is %d bytes long but was parsed as %d bytes",
+                    header.command, header.size, message.getMessageSize()));
+        return message;
+    }
+
+    /**
+     * Returns true if messages with the given header are parsed completely when deserialized and then let go of their
+     * payload, and only look at the first header.size bytes of it. Their payloads can be read into recycled buffers
+     * that are bigger than the payload. True for blocks and transactions, unless parsing lazily or retaining the
+     * payloads.
+     */
+    public boolean canRecyclePayload(BitcoinPacketHeader header) {
+        return !parseLazy && !parseRetain && (header.command.equals("block") || header.command.equals("tx"));
     }
 
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
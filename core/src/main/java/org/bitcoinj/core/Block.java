@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
@@ -37,7 +38,6 @@ import java.util.List;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.bitcoinj.core.Utils.doubleDigest;
-import static org.bitcoinj.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -202,7 +202,8 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        // The payload may be longer than the message, if it came in a recycled buffer.
+        if (cursor == (length == UNKNOWN_LENGTH ? payload.length : offset + length)) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -614,16 +615,31 @@ public class Block extends Message {
      */
     public void solve() {
         maybeParseHeader();
-        while (true) {
-            try {
+        try {
+            BigInteger target = getDifficultyTargetAsInteger();
+            // Only the nonce in the last 16 bytes of the header changes between attempts, so hash the first 64 bytes
+            // once and restart from that midstate for every nonce.
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+            writeHeader(bos);
+            byte[] header = bos.toByteArray();
+            MessageDigest midstate = Utils.sha256Midstate(header, 0, 64);
+            byte[] hash = new byte[32];
+            long nonce = getNonce();
+            while (true) {
+                Utils.uint32ToByteArrayLE(nonce, header, HEADER_SIZE - 4);
+                Utils.doubleDigestFromMidstate(midstate, header, 64, HEADER_SIZE - 64, hash, 0);
                 // Is our proof of work valid yet?
-                if (checkProofOfWork(false))
+                if (new BigInteger(1, Utils.reverseBytes(hash)).compareTo(target) <= 0) {
+                    setNonce(nonce);
                     return;
+                }
                 // No, so increment the nonce and try again.
-                setNonce(getNonce() + 1);
-            } catch (VerificationException e) {
-                throw new RuntimeException(e); // Cannot happen.
+                nonce++;
             }
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
         }
     }
 
@@ -692,11 +708,6 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -705,9 +716,6 @@ public class Block extends Message {
         //  / \    / \
         // t1 t2 t3 t4
         //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
         // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
         // The interior nodes are hashes of the concenation of the two child hashes.
         //
@@ -727,28 +735,10 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
+        //
+        // For big blocks the hashing is spread over several threads, see MerkleTreeHasher.
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        return MerkleTreeHasher.getDefault().calculateTransactionsRoot(transactions);
     }
 
     private void checkTransactions() throws VerificationException {
@@ -39,7 +39,9 @@ import java.nio.ByteOrder;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -191,6 +193,12 @@ public class CheckpointManager {
         }
     }
 
+    /** Returns the checkpoints before the given time, oldest first. */
+    public List<StoredBlock> getCheckpointsBefore(long time) {
+        // This is thread safe because the map never changes after creation.
+        return new ArrayList<StoredBlock>(checkpoints.headMap(time).values());
+    }
+
     /** Returns the number of checkpoints that were loaded. */
     public int numCheckpoints() {
         return checkpoints.size();
@@ -22,7 +22,9 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Objects.ToStringHelper;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.bitcoin.NativeSecp256k1;
 import org.bitcoinj.wallet.Protos;
 import org.slf4j.Logger;
@@ -48,11 +50,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -634,8 +644,41 @@ public class ECKey implements EncryptableItem, Serializable {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
+        return verify(data, signature, decodePubKey(pub));
+    }
+
+    // The most public keys remembered by decodePubKey.
+    private static final int DECODED_PUBKEYS_CACHE_SIZE = 4096;
+
+    // Recently decoded public keys by their encoding, least recently used first. Locked on itself.
+    private static final LinkedHashMap<ByteBuffer, ECPoint> decodedPubKeys =
+            new LinkedHashMap<ByteBuffer, ECPoint>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECPoint> eldest) {
+                    return size() > DECODED_PUBKEYS_CACHE_SIZE;
+                }
+            };
+
+    // Decodes a public key, remembering the point as decompressing one costs a square root in the field and the
+    // same keys tend to come up again and again. Throws IllegalArgumentException if it isn't a point on the curve.
+    private static ECPoint decodePubKey(byte[] pub) {
+        synchronized (decodedPubKeys) {
+            ECPoint point = decodedPubKeys.get(ByteBuffer.wrap(pub));
+            if (point != null)
+                return point;
+        }
+        // Another thread may decode the same key meanwhile, which is harmless.
+        ECPoint point = CURVE.getCurve().decodePoint(pub);
+        synchronized (decodedPubKeys) {
+            decodedPubKeys.put(ByteBuffer.wrap(pub.clone()), point);
+        }
+        return point;
+    }
+
+    // Verifies with Bouncy Castle against an already decoded public key.
+    private static boolean verify(byte[] data, ECDSASignature signature, ECPoint pub) {
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
+        ECPublicKeyParameters params = new ECPublicKeyParameters(pub, CURVE);
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
@@ -675,7 +718,88 @@ public class ECKey implements EncryptableItem, Serializable {
      * Verifies the given R/S pair (signature) against a hash using the public key.
      */
     public boolean verify(Sha256Hash sigHash, ECDSASignature signature) {
-        return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        if (FAKE_SIGNATURES)
+            return true;
+        if (NativeSecp256k1.enabled)
+            return NativeSecp256k1.verify(sigHash.getBytes(), signature.encodeToDER(), getPubKey());
+        // We already have the point, so don't decode it again from the encoded public key.
+        return verify(sigHash.getBytes(), signature, pub);
+    }
+
+    /** One signature to check with {@link ECKey#verify(List, ExecutorService)}. */
+    public static class SignatureCheck {
+        /** Hash of the data that was signed. */
+        public final byte[] data;
+        public final ECDSASignature signature;
+        /** The encoded public key to check the signature against. */
+        public final byte[] pubKey;
+
+        public SignatureCheck(byte[] data, ECDSASignature signature, byte[] pubKey) {
+            this.data = checkNotNull(data);
+            this.signature = checkNotNull(signature);
+            this.pubKey = checkNotNull(pubKey);
+        }
+    }
+
+    // A verification takes long enough that handing even a few of them to another thread is worth it.
+    private static final int MIN_SIGNATURES_PER_TASK = 8;
+
+    /**
+     * <p>Verifies a batch of signatures, returning whether each one is valid, in the same order as the checks.</p>
+     *
+     * <p>Public keys are decoded through the same cache of recently seen keys as single verifications use, so a key
+     * that appears many times is only decompressed once. If an executor is given, the batch is split across it and
+     * the calling thread verifies a share too. The executor must not be one that runs the code calling this method.
+     * Native verification is used if it's enabled, as with {@link #verify(byte[], ECDSASignature, byte[])}. Unlike
+     * that method, a public key that can't be decoded just makes its signatures invalid.</p>
+     */
+    public static boolean[] verify(List<SignatureCheck> checks, @Nullable ExecutorService executor) {
+        final SignatureCheck[] array = checks.toArray(new SignatureCheck[checks.size()]);
+        final boolean[] results = new boolean[array.length];
+        int tasks = 1;
+        if (executor != null)
+            tasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), array.length / MIN_SIGNATURES_PER_TASK));
+        int chunk = (array.length + tasks - 1) / tasks;
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks - 1);
+        for (int start = chunk; start < array.length; start += chunk) {
+            final int from = start;
+            final int to = Math.min(start + chunk, array.length);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    verifyRange(array, results, from, to);
+                }
+            }));
+        }
+        // Do the first chunk here rather than sit idle.
+        verifyRange(array, results, 0, chunk);
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private static void verifyRange(SignatureCheck[] checks, boolean[] results, int from, int to) {
+        for (int i = from; i < to; i++) {
+            SignatureCheck check = checks[i];
+            if (FAKE_SIGNATURES) {
+                results[i] = true;
+            } else if (NativeSecp256k1.enabled) {
+                results[i] = NativeSecp256k1.verify(check.data, check.signature.encodeToDER(), check.pubKey);
+            } else {
+                ECPoint point;
+                try {
+                    point = decodePubKey(check.pubKey);
+                } catch (IllegalArgumentException e) {
+                    continue;  // Not a valid public key, so the signature isn't valid either.
+                }
+                results[i] = verify(check.data, check.signature, point);
+            }
+        }
     }
 
     /**
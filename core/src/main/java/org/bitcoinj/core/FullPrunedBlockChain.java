@@ -19,21 +19,20 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.SignatureCache;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
-import org.bitcoinj.utils.DaemonThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
-import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -53,6 +52,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // Verifies scripts in parallel with looking up the outputs they spend.
+    private ScriptVerificationEngine verificationEngine = new ScriptVerificationEngine();
+    private long statsLastTime = System.currentTimeMillis();
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -119,36 +122,29 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
     
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory());
-
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.verifyFlags = verifyFlags;
-        }
+    /**
+     * Returns the engine used to verify scripts in parallel. Its {@link ScriptVerificationEngine#getStats()} shows
+     * where the time spent connecting blocks goes.
+     */
+    public ScriptVerificationEngine getVerificationEngine() {
+        return verificationEngine;
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
+    /**
+     * Replaces the engine used to verify scripts, for instance to change the number of threads. The old engine is
+     * shut down.
+     */
+    public void setVerificationEngine(ScriptVerificationEngine engine) {
+        lock.lock();
+        try {
+            verificationEngine.shutdown();
+            verificationEngine = checkNotNull(engine);
+        } finally {
+            lock.unlock();
         }
     }
+
+    //TODO: Remove lots of duplicated code in the two connectTransactions
     
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
@@ -168,11 +164,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         if (block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME)
             verifyFlags.add(VerifyFlag.P2SH);
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationEngine.BlockVerification scriptVerification = null;
+        if (runScripts)
+            scriptVerification = verificationEngine.startBlock(verifyFlags);
         try {
+            prefetchInputs(block.transactions);
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
@@ -249,40 +245,53 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
                 
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                if (!isCoinBase && scriptVerification != null) {
+                    // Verification starts in the background while we carry on with the rest of the block.
+                    scriptVerification.add(tx, prevOutScripts);
                 }
             }
             if (totalFees.compareTo(NetworkParameters.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            if (scriptVerification != null) {
+                scriptVerification.await();
+                if (System.currentTimeMillis() - statsLastTime > 10000) {
+                    log.info("Script verification: {}", verificationEngine.getStats());
+                    log.info("Signature cache: {}", SignatureCache.getDefault());
+                    statsLastTime = System.currentTimeMillis();
                 }
-                if (e != null)
-                    throw e;
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
 
+    // Lets the store load all the outputs the transactions spend at once, rather than one lookup at a time during
+    // verification. Outputs created by the same transactions can't be in the store yet, so they are left out.
+    private void prefetchInputs(List<Transaction> transactions) throws BlockStoreException {
+        Set<Sha256Hash> created = new HashSet<Sha256Hash>();
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : transactions) {
+            created.add(tx.getHash());
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs()) {
+                if (!created.contains(in.getOutpoint().getHash()))
+                    outPoints.add(in.getOutpoint());
+            }
+        }
+        if (!outPoints.isEmpty())
+            blockStore.prefetchTransactionOutputs(outPoints);
+    }
+
     @Override
     /**
      * Used during reorgs to connect a block previously on a fork
@@ -301,9 +310,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationEngine.BlockVerification scriptVerification = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
+                prefetchInputs(transactions);
                 LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
                 LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
                 long sigOps = 0;
@@ -319,10 +330,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                scriptVerification = verificationEngine.startBlock(verifyFlags);
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
@@ -373,30 +381,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
                     
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
+                    if (!isCoinBase)
+                        scriptVerification.add(tx, prevOutScripts);
                 }
                 if (totalFees.compareTo(NetworkParameters.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -411,11 +403,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -0,0 +1,474 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Downloads the block headers from the chain head up to the last checkpoint before a given time from several
+ * peers at once. The headers between each pair of checkpoints from a {@link CheckpointManager} form a range, and each
+ * peer downloads one range at a time, with the first ranges going to the fastest peers. Finished ranges are added to
+ * the chain in order with {@link AbstractBlockChain#addHeaders(java.util.List)}.</p>
+ *
+ * <p>A peer that takes longer than {@link #STALL_TIMEOUT_MSEC} to answer, or sends headers that don't lead to the
+ * checkpoint, gets no more work while there are other peers, and its range goes to another peer. A peer that sends
+ * headers the chain rejects is disconnected, and the range is downloaded again from the last header that was
+ * accepted.</p>
+ *
+ * <p>While it runs, it takes every headers message its peers receive, so the peers must not be downloading the chain
+ * themselves. {@link PeerGroup} runs one before starting the usual chain download when it is given checkpoints with
+ * {@link PeerGroup#setCheckpoints(CheckpointManager)}, and the usual download carries on from the last checkpoint.</p>
+ */
+public class HeaderDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(HeaderDownloadScheduler.class);
+
+    /** How long a peer may take to answer a request for headers before its range is given to another peer. */
+    public static final long STALL_TIMEOUT_MSEC = 20 * 1000;
+    // How often to look for stalled peers.
+    private static final long STALL_CHECK_INTERVAL_MSEC = 5 * 1000;
+    // How many ranges from the first one not yet added to the chain may be downloading, to bound the headers held.
+    private static final int MAX_RANGES_AHEAD = 16;
+
+    // The headers after one block up to a checkpoint.
+    private static class Range {
+        final Sha256Hash start;
+        final int startHeight;
+        final StoredBlock end;
+        final List<Block> headers = new ArrayList<Block>();
+        // The peer that sent each of the headers.
+        final List<Peer> suppliers = new ArrayList<Peer>();
+        // The peer downloading the range, if any, and when it was last asked for headers.
+        @Nullable Peer peer;
+        long requestTime;
+        boolean done;
+
+        Range(Sha256Hash start, int startHeight, StoredBlock end) {
+            this.start = start;
+            this.startHeight = startHeight;
+            this.end = end;
+        }
+
+        Sha256Hash lastHash() {
+            return headers.isEmpty() ? start : headers.get(headers.size() - 1).getHash();
+        }
+
+        void reset() {
+            headers.clear();
+            suppliers.clear();
+            peer = null;
+            done = false;
+        }
+
+        // Returns the number of leading headers that are in the chain, given its head.
+        int connectedHeaders(StoredBlock chainHead) {
+            Sha256Hash headHash = chainHead.getHeader().getHash();
+            for (int i = headers.size() - 1; i >= 0; i--) {
+                if (headers.get(i).getHash().equals(headHash))
+                    return i + 1;
+            }
+            return 0;
+        }
+    }
+
+    // The headers a peer has sent and how long it took to send them.
+    private static class PeerStats {
+        long headers;
+        long millis;
+
+        double headersPerSecond() {
+            return millis == 0 ? 0 : headers * 1000.0 / millis;
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("headerdownload");
+    // Held while adding ranges to the chain, so that they go in order. Never taken while holding lock.
+    private final ReentrantLock deliveryLock = Threading.lock("headerdelivery");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    @Nullable private final PeerEventListener progressListener;
+    private final SettableFuture<StoredBlock> future = SettableFuture.create();
+
+    // Ranges not yet added to the chain, in chain order.
+    @GuardedBy("lock") private final LinkedList<Range> ranges = new LinkedList<Range>();
+    @GuardedBy("lock") private final List<Peer> peers = new ArrayList<Peer>();
+    @GuardedBy("lock") private final Set<Peer> stalled = new HashSet<Peer>();
+    // Peers that sent headers the chain rejected, which get no more work.
+    @GuardedBy("lock") private final Set<Peer> banned = new HashSet<Peer>();
+    @GuardedBy("lock") private final Map<Peer, PeerStats> stats = new HashMap<Peer, PeerStats>();
+    @GuardedBy("lock") private boolean announcedStart;
+    @GuardedBy("lock") private boolean stopped;
+    @GuardedBy("lock") @Nullable private Timer timer;
+
+    private final PeerEventListener listener = new AbstractPeerEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            if (m instanceof HeadersMessage) {
+                receive(peer, (HeadersMessage) m);
+                return null;
+            }
+            return m;
+        }
+    };
+
+    /**
+     * Plans the download of the headers from the chain head up to the last checkpoint before the given time, less a
+     * week for clock drift in the block headers. Nothing is downloaded until peers are added.
+     *
+     * @param progressListener told when the download starts and as ranges are added to the chain, on the thread that
+     *                         adds them, or null
+     */
+    public HeaderDownloadScheduler(NetworkParameters params, AbstractBlockChain chain, CheckpointManager checkpoints,
+                                   long untilTimeSecs, @Nullable PeerEventListener progressListener) {
+        checkState(!chain.shouldVerifyTransactions(), "Cannot download only headers for a fully verifying chain");
+        this.params = checkNotNull(params);
+        this.chain = chain;
+        this.progressListener = progressListener;
+        StoredBlock head = chain.getChainHead();
+        Sha256Hash start = head.getHeader().getHash();
+        int startHeight = head.getHeight();
+        for (StoredBlock checkpoint : checkpoints.getCheckpointsBefore(untilTimeSecs - 86400 * 7)) {
+            if (checkpoint.getHeight() <= startHeight)
+                continue;
+            ranges.add(new Range(start, startHeight, checkpoint));
+            start = checkpoint.getHeader().getHash();
+            startHeight = checkpoint.getHeight();
+        }
+        if (ranges.isEmpty()) {
+            future.set(head);
+        } else {
+            log.info("Downloading headers from height {} to {} in {} ranges", head.getHeight(), startHeight,
+                    ranges.size());
+            timer = new Timer("Header download stall checker", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkStalls();
+                }
+            }, STALL_CHECK_INTERVAL_MSEC, STALL_CHECK_INTERVAL_MSEC);
+        }
+    }
+
+    /** Returns a future that completes with the new chain head once every range has been added to the chain. */
+    public ListenableFuture<StoredBlock> getFuture() {
+        return future;
+    }
+
+    /** Gives the peer ranges to download, as long as there are any left. */
+    public void addPeer(Peer peer) {
+        boolean announce = false;
+        lock.lock();
+        try {
+            if (stopped || peers.contains(peer) || banned.contains(peer))
+                return;
+            peers.add(peer);
+            if (!stats.containsKey(peer))
+                stats.put(peer, new PeerStats());
+            peer.addEventListener(listener, Threading.SAME_THREAD);
+            announce = !announcedStart;
+            announcedStart = true;
+            assignWork();
+        } finally {
+            lock.unlock();
+        }
+        if (announce && progressListener != null)
+            progressListener.onChainDownloadStarted(peer, blocksLeft(peer));
+    }
+
+    /** Stops giving the peer work, and gives whatever range it was downloading to another peer. */
+    public void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            removePeerLocked(peer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removePeerLocked(Peer peer) {
+        checkState(lock.isHeldByCurrentThread());
+        if (!peers.remove(peer))
+            return;
+        peer.removeEventListener(listener);
+        stalled.remove(peer);
+        for (Range range : ranges) {
+            // The headers it already sent are kept, and the next peer carries on after them.
+            if (range.peer == peer)
+                range.peer = null;
+        }
+        assignWork();
+    }
+
+    /** Stops the download. The future is cancelled unless it already completed. */
+    public void cancel() {
+        lock.lock();
+        try {
+            stop();
+        } finally {
+            lock.unlock();
+        }
+        future.cancel(false);
+    }
+
+    /**
+     * Returns how many headers per second each peer has sent so far, counting only the time between asking it for
+     * headers and receiving them.
+     */
+    public Map<Peer, Double> getHeadersPerSecond() {
+        lock.lock();
+        try {
+            Map<Peer, Double> result = new HashMap<Peer, Double>();
+            for (Map.Entry<Peer, PeerStats> entry : stats.entrySet())
+                result.put(entry.getKey(), entry.getValue().headersPerSecond());
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of ranges not yet added to the chain. */
+    public int getRangesLeft() {
+        lock.lock();
+        try {
+            return ranges.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gives each idle peer the first range nobody is downloading, the fastest peers first.
+    private void assignWork() {
+        checkState(lock.isHeldByCurrentThread());
+        if (stopped)
+            return;
+        if (!peers.isEmpty() && stalled.containsAll(peers)) {
+            // Slow peers are better than none.
+            stalled.clear();
+        }
+        List<Peer> idle = new ArrayList<Peer>();
+        for (Peer peer : peers) {
+            if (!stalled.contains(peer) && !isBusy(peer))
+                idle.add(peer);
+        }
+        Collections.sort(idle, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return Double.compare(stats.get(b).headersPerSecond(), stats.get(a).headersPerSecond());
+            }
+        });
+        int index = 0;
+        for (Range range : ranges) {
+            if (idle.isEmpty() || index++ >= MAX_RANGES_AHEAD)
+                break;
+            if (range.done || range.peer != null)
+                continue;
+            for (Peer peer : idle) {
+                if (peer.getBestHeight() >= range.end.getHeight()) {
+                    idle.remove(peer);
+                    request(peer, range);
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean isBusy(Peer peer) {
+        for (Range range : ranges) {
+            if (range.peer == peer)
+                return true;
+        }
+        return false;
+    }
+
+    private void request(Peer peer, Range range) {
+        checkState(lock.isHeldByCurrentThread());
+        range.peer = peer;
+        range.requestTime = Utils.currentTimeMillis();
+        List<Sha256Hash> locator = Collections.singletonList(range.lastHash());
+        peer.sendMessage(new GetHeadersMessage(params, locator, range.end.getHeader().getHash()));
+    }
+
+    void receive(Peer peer, HeadersMessage m) {
+        boolean deliver;
+        lock.lock();
+        try {
+            Range range = null;
+            for (Range r : ranges) {
+                if (r.peer == peer) {
+                    range = r;
+                    break;
+                }
+            }
+            if (range == null) {
+                // Late answer from a peer whose range went to another peer.
+                log.debug("{}: Ignoring headers we are no longer waiting for", peer);
+                return;
+            }
+            PeerStats peerStats = stats.get(peer);
+            peerStats.millis += Utils.currentTimeMillis() - range.requestTime;
+            Sha256Hash endHash = range.end.getHeader().getHash();
+            int rangeSize = range.end.getHeight() - range.startHeight;
+            int added = 0;
+            for (Block header : m.getBlockHeaders()) {
+                if (!header.getPrevBlockHash().equals(range.lastHash()) || range.headers.size() >= rangeSize)
+                    break;
+                range.headers.add(header);
+                range.suppliers.add(peer);
+                added++;
+                if (header.getHash().equals(endHash)) {
+                    range.done = true;
+                    break;
+                }
+            }
+            peerStats.headers += added;
+            deliver = range.done && range == ranges.getFirst();
+            if (range.done) {
+                range.peer = null;
+            } else if (added == 0 || range.headers.size() >= rangeSize) {
+                // It doesn't have the headers, or they don't lead to the checkpoint.
+                log.info("{}: Sent no headers towards height {}, giving the range to another peer", peer,
+                        range.end.getHeight());
+                stalled.add(peer);
+                if (range.headers.size() >= rangeSize)
+                    range.reset();
+                range.peer = null;
+            } else {
+                request(peer, range);
+            }
+            assignWork();
+        } finally {
+            lock.unlock();
+        }
+        if (deliver)
+            deliver();
+    }
+
+    // Adds the finished ranges at the front to the chain.
+    private void deliver() {
+        StoredBlock newHead = null;
+        deliveryLock.lock();
+        try {
+            while (true) {
+                Range range;
+                lock.lock();
+                try {
+                    if (ranges.isEmpty() || !ranges.getFirst().done)
+                        break;
+                    range = ranges.removeFirst();
+                } finally {
+                    lock.unlock();
+                }
+                int added;
+                VerificationException failure = null;
+                try {
+                    added = chain.addHeaders(range.headers);
+                } catch (VerificationException e) {
+                    failure = e;
+                    added = range.connectedHeaders(chain.getChainHead());
+                } catch (PrunedException e) {
+                    // Unreachable when not fully verifying.
+                    throw new RuntimeException(e);
+                }
+                if (added != range.headers.size()) {
+                    // Whoever sent the first header that didn't make it into the chain gets no more work, and the
+                    // range is downloaded again by other peers from the last header that did.
+                    Peer culprit = range.suppliers.get(added);
+                    log.warn("{}: Sent headers the chain rejected at height {}, disconnecting", culprit,
+                            range.startHeight + added + 1, failure);
+                    Range rest = added == 0 ? range :
+                            new Range(range.headers.get(added - 1).getHash(), range.startHeight + added, range.end);
+                    rest.reset();
+                    lock.lock();
+                    try {
+                        ranges.addFirst(rest);
+                        banned.add(culprit);
+                        removePeerLocked(culprit);
+                    } finally {
+                        lock.unlock();
+                    }
+                    culprit.close();
+                    break;
+                }
+                Peer supplier = range.suppliers.get(range.suppliers.size() - 1);
+                if (progressListener != null)
+                    progressListener.onBlocksDownloaded(supplier, range.end.getHeader(), blocksLeft(supplier));
+                lock.lock();
+                try {
+                    if (ranges.isEmpty()) {
+                        newHead = chain.getChainHead();
+                        log.info("Downloaded headers up to height {}, headers per second by peer: {}",
+                                newHead.getHeight(), getHeadersPerSecond());
+                        stop();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            deliveryLock.unlock();
+        }
+        // Outside the locks, as whoever waits on the future may well take other locks.
+        if (newHead != null)
+            future.set(newHead);
+    }
+
+    // Gives any range a peer has been sitting on for too long to another peer.
+    void checkStalls() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Range range : ranges) {
+                if (range.peer != null && now - range.requestTime > STALL_TIMEOUT_MSEC) {
+                    log.info("{}: Stalled downloading headers towards height {}, giving the range to another peer",
+                            range.peer, range.end.getHeight());
+                    stalled.add(range.peer);
+                    range.peer = null;
+                }
+            }
+            assignWork();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void stop() {
+        checkState(lock.isHeldByCurrentThread());
+        stopped = true;
+        if (timer != null)
+            timer.cancel();
+        timer = null;
+        for (Peer peer : peers)
+            peer.removeEventListener(listener);
+        peers.clear();
+    }
+
+    private int blocksLeft(Peer peer) {
+        return Math.max(0, (int) peer.getBestHeight() - chain.getBestChainHeight());
+    }
+}
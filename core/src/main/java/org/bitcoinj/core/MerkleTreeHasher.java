@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.utils.DaemonThreadFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates merkle trees, as used for the merkle root in a {@link Block} header and by {@link PartialMerkleTree}.
+ * See {@link Block#getMerkleRoot()} for a description of the tree.</p>
+ *
+ * <p>When a tree level (including the transaction hashes forming the leaves) has at least the configured threshold
+ * of nodes, the hashing of that level is split across an executor, with the calling thread doing a share of the work
+ * too. Smaller levels, and so all small blocks, are hashed on the calling thread only. Transaction hashes that are
+ * already cached by {@link Transaction#getHash()} are reused.</p>
+ *
+ * <p>Blocks use the hasher returned by {@link #getDefault()}, which can be replaced with
+ * {@link #setDefault(MerkleTreeHasher)} to change the threshold or executor.</p>
+ */
+public class MerkleTreeHasher {
+    /** The default number of nodes a tree level must have before it is hashed in parallel. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 512;
+
+    // Below this many hashes per task, handing work to another thread costs more than it saves.
+    private static final int MIN_HASHES_PER_TASK = 128;
+
+    private static volatile MerkleTreeHasher defaultHasher = new MerkleTreeHasher(
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory()),
+            DEFAULT_PARALLEL_THRESHOLD);
+
+    @Nullable private final ExecutorService executor;
+    private final int parallelThreshold;
+    private final int parallelism;
+
+    /**
+     * Creates a hasher that splits levels of at least parallelThreshold nodes across the given executor. If the
+     * executor is null, everything is hashed on the calling thread. The executor must not be one that runs the
+     * code calling this hasher, or all its threads could end up waiting on each other.
+     */
+    public MerkleTreeHasher(@Nullable ExecutorService executor, int parallelThreshold) {
+        checkArgument(parallelThreshold > 0);
+        this.executor = executor;
+        this.parallelThreshold = parallelThreshold;
+        this.parallelism = executor == null ? 1 : Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Returns a hasher that never uses any thread but the calling one. */
+    public static MerkleTreeHasher sequential() {
+        return new MerkleTreeHasher(null, Integer.MAX_VALUE);
+    }
+
+    /** Returns the hasher used by {@link Block} and {@link PartialMerkleTree}. */
+    public static MerkleTreeHasher getDefault() {
+        return defaultHasher;
+    }
+
+    /** Replaces the hasher used by {@link Block} and {@link PartialMerkleTree}. */
+    public static void setDefault(MerkleTreeHasher hasher) {
+        defaultHasher = hasher;
+    }
+
+    /**
+     * Calculates the merkle root over the given transactions, hashing any whose hash isn't cached yet.
+     */
+    public Sha256Hash calculateTransactionsRoot(List<Transaction> transactions) {
+        checkArgument(!transactions.isEmpty());
+        final Transaction[] txns = transactions.toArray(new Transaction[transactions.size()]);
+        final byte[] leaves = new byte[txns.length * 32];
+        forEachInRange(txns.length, new RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    copyReversed(txns[i].getHash().getBytes(), leaves, i * 32);
+            }
+        });
+        return getRoot(buildLevels(leaves, txns.length));
+    }
+
+    /**
+     * Calculates the merkle root over the given leaf hashes, which are in the usual (block explorer) byte order.
+     */
+    public Sha256Hash calculateRoot(List<Sha256Hash> leafHashes) {
+        return getRoot(buildLevels(leafHashes));
+    }
+
+    /**
+     * Hashes the whole tree over the given leaf hashes. Element i of the result holds the nodes at height i (the
+     * leaves are at height 0) as consecutive 32 byte hashes in wire byte order, so the last element holds just the
+     * root.
+     */
+    byte[][] buildLevels(List<Sha256Hash> leafHashes) {
+        checkArgument(!leafHashes.isEmpty());
+        byte[] leaves = new byte[leafHashes.size() * 32];
+        int i = 0;
+        for (Sha256Hash hash : leafHashes)
+            copyReversed(hash.getBytes(), leaves, 32 * i++);
+        return buildLevels(leaves, leafHashes.size());
+    }
+
+    private byte[][] buildLevels(byte[] leaves, int leafCount) {
+        List<byte[]> levels = new ArrayList<byte[]>();
+        levels.add(leaves);
+        int size = leafCount;
+        while (size > 1) {
+            final byte[] children = levels.get(levels.size() - 1);
+            final int childCount = size;
+            final byte[] parents = new byte[((size + 1) / 2) * 32];
+            size = (size + 1) / 2;
+            forEachInRange(size, new RangeTask() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        int left = i * 2;
+                        // If the level has an odd number of nodes, the last one is paired with itself.
+                        int right = Math.min(left + 1, childCount - 1);
+                        Utils.doubleDigestTwoBuffers(children, left * 32, 32, children, right * 32, 32, parents, i * 32);
+                    }
+                }
+            });
+            levels.add(parents);
+        }
+        return levels.toArray(new byte[levels.size()][]);
+    }
+
+    /** Returns the node at the given height and position of a tree from {@link #buildLevels(List)}. */
+    static Sha256Hash getNode(byte[][] levels, int height, int pos) {
+        byte[] hash = new byte[32];
+        copyReversed(levels[height], pos * 32, hash, 0);
+        return new Sha256Hash(hash);
+    }
+
+    private static Sha256Hash getRoot(byte[][] levels) {
+        return getNode(levels, levels.length - 1, 0);
+    }
+
+    /**
+     * Calculates the parent of the two given nodes, which are in the usual (block explorer) byte order, as is the
+     * result.
+     */
+    static Sha256Hash hashPair(byte[] left, byte[] right) {
+        byte[] buf = new byte[64];
+        copyReversed(left, buf, 0);
+        copyReversed(right, buf, 32);
+        Utils.doubleDigest(buf, 0, 64, buf, 0);
+        byte[] hash = new byte[32];
+        copyReversed(buf, 0, hash, 0);
+        return new Sha256Hash(hash);
+    }
+
+    private static void copyReversed(byte[] hash, byte[] dest, int destOffset) {
+        copyReversed(hash, 0, dest, destOffset);
+    }
+
+    private static void copyReversed(byte[] src, int srcOffset, byte[] dest, int destOffset) {
+        for (int i = 0; i < 32; i++)
+            dest[destOffset + i] = src[srcOffset + 31 - i];
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    // Runs task over [0, count), split across the executor if count is big enough. Returns once all of it is done.
+    private void forEachInRange(int count, final RangeTask task) {
+        int tasks = 1;
+        if (executor != null && count >= parallelThreshold)
+            tasks = Math.max(1, Math.min(parallelism, count / MIN_HASHES_PER_TASK));
+        if (tasks == 1) {
+            task.run(0, count);
+            return;
+        }
+        int chunk = (count + tasks - 1) / tasks;
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks - 1);
+        for (int start = chunk; start < count; start += chunk) {
+            final int from = start;
+            final int to = Math.min(start + chunk, count);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(from, to);
+                }
+            }));
+        }
+        // Do the first chunk here rather than sit idle.
+        task.run(0, chunk);
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+    }
+}
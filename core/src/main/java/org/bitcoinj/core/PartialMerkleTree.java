@@ -85,9 +85,11 @@ public class PartialMerkleTree extends Message {
         int height = 0;
         while (getTreeWidth(allLeafHashes.size(), height) > 1)
             height++;
+        // Hash the whole tree up front, so that the traversal only has to look up the nodes it needs.
+        byte[][] levels = MerkleTreeHasher.getDefault().buildLevels(allLeafHashes);
         List<Boolean> bitList = new ArrayList<Boolean>();
         List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
-        traverseAndBuild(height, 0, allLeafHashes, includeBits, bitList, hashes);
+        traverseAndBuild(height, 0, allLeafHashes, levels, includeBits, bitList, hashes);
         byte[] bits = new byte[(int)Math.ceil(bitList.size() / 8.0)];
         for (int i = 0; i < bitList.size(); i++)
             if (bitList.get(i))
@@ -123,8 +125,9 @@ public class PartialMerkleTree extends Message {
     }
 
     // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
-    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
-                                         List<Boolean> matchedChildBits, List<Sha256Hash> resultHashes) {
+    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[][] levels,
+                                         byte[] includeBits, List<Boolean> matchedChildBits,
+                                         List<Sha256Hash> resultHashes) {
         boolean parentOfMatch = false;
         // Is this node a parent of at least one matched hash?
         for (int p = pos << height; p < (pos+1) << height && p < allLeafHashes.size(); p++) {
@@ -137,35 +140,17 @@ public class PartialMerkleTree extends Message {
         matchedChildBits.add(parentOfMatch);
         if (height == 0 || !parentOfMatch) {
             // If at height 0, or nothing interesting below, store hash and stop.
-            resultHashes.add(calcHash(height, pos, allLeafHashes));
+            resultHashes.add(height == 0 ? allLeafHashes.get(pos) : MerkleTreeHasher.getNode(levels, height, pos));
         } else {
             // Otherwise descend into the subtrees.
             int h = height - 1;
             int p = pos * 2;
-            traverseAndBuild(h, p, allLeafHashes, includeBits, matchedChildBits, resultHashes);
+            traverseAndBuild(h, p, allLeafHashes, levels, includeBits, matchedChildBits, resultHashes);
             if (p + 1 < getTreeWidth(allLeafHashes.size(), h))
-                traverseAndBuild(h, p + 1, allLeafHashes, includeBits, matchedChildBits, resultHashes);
+                traverseAndBuild(h, p + 1, allLeafHashes, levels, includeBits, matchedChildBits, resultHashes);
         }
     }
 
-    private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
-        if (height == 0) {
-            // Hash at height 0 is just the regular tx hash itself.
-            return hashes.get(pos);
-        }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
-        }
-        return combineLeftRight(left.getBytes(), right.getBytes());
-    }
-
     @Override
     protected void parseLite() {
         
@@ -211,9 +196,7 @@ public class PartialMerkleTree extends Message {
     }
 
     private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return new Sha256Hash(reverseBytes(doubleDigestTwoBuffers(
-                reverseBytes(left), 0, 32,
-                reverseBytes(right), 0, 32)));
+        return MerkleTreeHasher.hashPair(left, right);
     }
 
     /**
@@ -18,6 +18,7 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.HeightIndexedBlockStore;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import com.google.common.base.Objects;
@@ -36,9 +37,13 @@ import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -133,6 +138,23 @@ public class Peer extends PeerSocketHandler {
     }
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
 
+    // Inventory we announce and transactions we ask for can be held back for a short while, so that everything that
+    // comes up in the meantime goes out in one inv and one getdata instead of a message each. See
+    // setInventoryBatchDelay().
+    private volatile long vInventoryBatchDelayMillis = 0;
+    @Nullable private volatile ScheduledExecutorService vInventoryExecutor;
+    @GuardedBy("lock") private final LinkedHashSet<InventoryItem> pendingAnnouncements = new LinkedHashSet<InventoryItem>();
+    @GuardedBy("lock") private final LinkedHashSet<InventoryItem> pendingTxGetData = new LinkedHashSet<InventoryItem>();
+    @GuardedBy("lock") private boolean inventoryFlushScheduled;
+    // The most recent hashes this peer told us about or that we told it about, so neither side hears of them twice.
+    private static final int KNOWN_INVENTORY_SIZE = 5000;
+    @GuardedBy("lock") private final Set<Sha256Hash> knownInventory = Collections.newSetFromMap(
+            new LinkedHashMap<Sha256Hash, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                    return size() > KNOWN_INVENTORY_SIZE;
+                }
+            });
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
     @GuardedBy("lastPingTimesLock") private long[] lastPingTimes = null;
@@ -276,6 +298,13 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        lock.lock();
+        try {
+            pendingAnnouncements.clear();
+            pendingTxGetData.clear();
+        } finally {
+            lock.unlock();
+        }
         for (final PeerListenerRegistration registration : eventListeners) {
             if (registration.callOnDisconnect)
                 registration.executor.execute(new Runnable() {
@@ -503,42 +532,47 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                // Process headers until we pass the fast catchup time, or are about to catch up with the head
-                // of the chain - always process the last block as a full/filtered block to kick us out of the
-                // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
-                    if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
-                        log.info("Lost download peer status, throwing away downloaded headers.");
-                        return;
-                    }
-                    if (blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
-                    lock.lock();
-                    try {
-                        log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
-                                m.getBlockHeaders().size() - i);
-                        this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
-                        this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
-                    } finally {
-                        lock.unlock();
-                    }
+            List<Block> headers = m.getBlockHeaders();
+            // Process headers until we pass the fast catchup time, or are about to catch up with the head
+            // of the chain - always process the last block as a full/filtered block to kick us out of the
+            // fast catchup mode (in which we ignore new blocks). Each header raises the chain by one.
+            int count = Math.min(headers.size(),
+                    Math.max(0, (int) vPeerVersionMessage.bestHeight - blockChain.getBestChainHeight()));
+            for (int i = 0; i < count; i++) {
+                if (headers.get(i).getTimeSeconds() >= fastCatchupTimeSecs) {
+                    count = i;
+                    break;
+                }
+            }
+            if (count > 0) {
+                if (!vDownloadData) {
+                    // Not download peer anymore, some other peer probably became better.
+                    log.info("Lost download peer status, throwing away downloaded headers.");
                     return;
                 }
+                int added = blockChain.addHeaders(headers.subList(0, count));
+                if (added < count) {
+                    // This block is unconnected - we don't know how to get from it back to the genesis block yet.
+                    // That must mean that the peer is buggy or malicious because we specifically requested for
+                    // headers that are part of the best chain.
+                    throw new ProtocolException("Got unconnected header from peer: " + headers.get(added).getHashAsString());
+                }
+                // The blocks were successfully linked into the chain. Notify the user of our progress, once for all.
+                invokeOnBlocksDownloaded(headers.get(count - 1));
+            }
+            if (count < headers.size()) {
+                lock.lock();
+                try {
+                    log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
+                            headers.size() - count);
+                    this.downloadBlockBodies = true;
+                    // Prevent this request being seen as a duplicate.
+                    this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                } finally {
+                    lock.unlock();
+                }
+                return;
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
@@ -571,9 +605,21 @@ public class Peer extends PeerSocketHandler {
             return;
         }
         log.info("{}: Sending {} items gathered from listeners to peer", getAddress(), items.size());
+        // If the connection backs up, tell the peer we don't have the rest rather than overflow the connection. It can
+        // ask another peer, or us again later.
+        List<InventoryItem> notSent = new ArrayList<InventoryItem>();
         for (Message item : items) {
+            if ((item instanceof Transaction || item instanceof Block) && isCongested()) {
+                InventoryItem.Type type = item instanceof Block ? InventoryItem.Type.Block : InventoryItem.Type.Transaction;
+                notSent.add(new InventoryItem(type, item.getHash()));
+                continue;
+            }
             sendMessage(item);
         }
+        if (!notSent.isEmpty()) {
+            log.info("{}: Connection is congested, sending notfound for {} items", getAddress(), notSent.size());
+            sendMessage(new NotFoundMessage(params, notSent));
+        }
     }
 
     private void processTransaction(Transaction tx) throws VerificationException {
@@ -583,6 +629,8 @@ public class Peer extends PeerSocketHandler {
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
+            // No point announcing it back to the peer that sent it.
+            knownInventory.add(tx.getHash());
             if (memoryPool != null) {
                 // We may get back a different transaction object.
                 tx = memoryPool.seen(tx, getAddress());
@@ -1023,6 +1071,15 @@ public class Peer extends PeerSocketHandler {
         }
 
         final boolean downloadData = this.vDownloadData;
+        final long batchDelay = this.vInventoryBatchDelayMillis;
+
+        lock.lock();
+        try {
+            for (InventoryItem item : items)
+                knownInventory.add(item.hash);
+        } finally {
+            lock.unlock();
+        }
 
         if (transactions.size() == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
@@ -1039,6 +1096,8 @@ public class Peer extends PeerSocketHandler {
         }
 
         GetDataMessage getdata = new GetDataMessage(params);
+        // Transactions to ask for along with those from other invs that arrive within the batch delay.
+        List<InventoryItem> batchedTxGetData = new LinkedList<InventoryItem>();
 
         Iterator<InventoryItem> it = transactions.iterator();
         while (it.hasNext()) {
@@ -1046,7 +1105,7 @@ public class Peer extends PeerSocketHandler {
             if (memoryPool == null) {
                 if (downloadData) {
                     // If there's no memory pool only download transactions if we're configured to.
-                    getdata.addItem(item);
+                    batchedTxGetData.add(item);
                 }
             } else {
                 // Only download the transaction if we are the first peer that saw it be advertised. Other peers will also
@@ -1060,7 +1119,7 @@ public class Peer extends PeerSocketHandler {
                     it.remove();
                 } else {
                     log.debug("{}: getdata on tx {}", getAddress(), item.hash);
-                    getdata.addItem(item);
+                    batchedTxGetData.add(item);
                 }
                 // This can trigger transaction confidence listeners.
                 memoryPool.seen(item.hash, this.getAddress());
@@ -1073,6 +1132,13 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
+            if (batchDelay > 0 && !batchedTxGetData.isEmpty()) {
+                pendingTxGetData.addAll(batchedTxGetData);
+                scheduleInventoryFlushLocked(batchDelay);
+            } else {
+                for (InventoryItem item : batchedTxGetData)
+                    getdata.addItem(item);
+            }
             if (blocks.size() > 0 && downloadData && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
@@ -1260,7 +1326,7 @@ public class Peer extends PeerSocketHandler {
 
         // TODO: Block locators should be abstracted out rather than special cased here.
         List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-        // For now we don't do the exponential thinning as suggested here:
+        // Unless the store can find blocks by height, we don't do the exponential thinning as suggested here:
         //
         //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
         //
@@ -1279,18 +1345,34 @@ public class Peer extends PeerSocketHandler {
             log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                     toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
         StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
+        try {
+            if (store instanceof HeightIndexedBlockStore) {
+                HeightIndexedBlockStore indexedStore = (HeightIndexedBlockStore) store;
+                // The top ten blocks, then twice as far back each time. Every block found is on the best chain, so the
+                // next one back from it can be looked up by height. Once the store no longer has a height, it has
+                // nothing further back either, so stop rather than walk back to it one block at a time.
+                int step = 1;
+                while (cursor != null && cursor.getHeight() > 0) {
+                    blockLocator.add(cursor.getHeader().getHash());
+                    if (blockLocator.size() >= 10)
+                        step *= 2;
+                    cursor = indexedStore.getByHeight(Math.max(0, cursor.getHeight() - step));
+                }
+                // Whether we got there or the store starts later, at a checkpoint.
+                blockLocator.add(params.getGenesisBlock().getHash());
+            } else {
+                for (int i = 100; cursor != null && i > 0; i--) {
+                    blockLocator.add(cursor.getHeader().getHash());
+                    cursor = cursor.getPrev(store);
+                }
+                // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
+                if (cursor != null)
+                    blockLocator.add(params.getGenesisBlock().getHash());
             }
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
         }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null)
-            blockLocator.add(params.getGenesisBlock().getHash());
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
@@ -1635,4 +1717,113 @@ public class Peer extends PeerSocketHandler {
     public void setDownloadTxDependencies(boolean value) {
         vDownloadTxDependencies = value;
     }
+
+    /**
+     * Returns how long inventory announcements and transaction getdata requests are held back so they can be sent
+     * together. See {@link #setInventoryBatchDelay(long, ScheduledExecutorService)}.
+     */
+    public long getInventoryBatchDelay() {
+        return vInventoryBatchDelayMillis;
+    }
+
+    /**
+     * <p>Sets how long, in milliseconds, to hold back inventory announcements made with {@link #announce(InventoryItem)}
+     * and requests for transactions the peer announced to us, so that everything which comes up in the meantime is
+     * sent as a single inv and a single getdata message. When relaying many transactions this saves a lot of messages,
+     * at the cost of the given delay. Blocks are always requested straight away.</p>
+     *
+     * <p>The held back messages are sent from the given executor, which the caller owns: it must keep running while
+     * the peer is connected, and whatever is still held back when it shuts down is dropped. A {@link PeerGroup} uses
+     * one of its own for all its peers.</p>
+     *
+     * <p>The default of zero sends every announcement and request as soon as it is made.</p>
+     */
+    public void setInventoryBatchDelay(long delayMillis, ScheduledExecutorService executor) {
+        checkArgument(delayMillis >= 0);
+        vInventoryExecutor = checkNotNull(executor);
+        vInventoryBatchDelayMillis = delayMillis;
+        if (delayMillis == 0)
+            flushInventory();
+    }
+
+    /**
+     * Announces the given block or transaction to the peer with an inv message, unless the peer recently announced it
+     * to us or we already announced it to the peer. If it asks for the data, it will be requested from the
+     * {@link PeerEventListener#getData(Peer, GetDataMessage)} event listeners, so one of them must be able to provide
+     * it. The announcement may be held back for a while, see
+     * {@link #setInventoryBatchDelay(long, ScheduledExecutorService)}.
+     *
+     * @return true if the item will be announced, false if the peer already knows of it.
+     */
+    public boolean announce(InventoryItem item) {
+        final long delay = vInventoryBatchDelayMillis;
+        lock.lock();
+        try {
+            if (!knownInventory.add(item.hash))
+                return false;
+            if (delay > 0) {
+                pendingAnnouncements.add(item);
+                scheduleInventoryFlushLocked(delay);
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addItem(item);
+        sendMessage(inv);
+        return true;
+    }
+
+    private void scheduleInventoryFlushLocked(long delay) {
+        checkState(lock.isHeldByCurrentThread());
+        if (inventoryFlushScheduled)
+            return;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushInventory();
+                } catch (Exception e) {
+                    // Don't let it kill the executor thread, which other peers may share.
+                    log.warn("{}: Exception whilst sending batched inventory: {}", getAddress(), e.toString());
+                }
+            }
+        };
+        try {
+            checkNotNull(vInventoryExecutor).schedule(task, delay, TimeUnit.MILLISECONDS);
+            inventoryFlushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+            log.debug("{}: Dropping batched inventory as the executor is shut down", getAddress());
+            pendingAnnouncements.clear();
+            pendingTxGetData.clear();
+        }
+    }
+
+    private void flushInventory() {
+        final List<InventoryItem> announcements, txGetData;
+        lock.lock();
+        try {
+            inventoryFlushScheduled = false;
+            announcements = new ArrayList<InventoryItem>(pendingAnnouncements);
+            txGetData = new ArrayList<InventoryItem>(pendingTxGetData);
+            pendingAnnouncements.clear();
+            pendingTxGetData.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (List<InventoryItem> batch : Lists.partition(txGetData, InventoryMessage.MAX_INV_SIZE)) {
+            GetDataMessage getdata = new GetDataMessage(params);
+            for (InventoryItem item : batch)
+                getdata.addItem(item);
+            sendMessage(getdata);
+        }
+        for (List<InventoryItem> batch : Lists.partition(announcements, InventoryMessage.MAX_INV_SIZE)) {
+            InventoryMessage inv = new InventoryMessage(params);
+            for (InventoryItem item : batch)
+                inv.addItem(item);
+            sendMessage(inv);
+        }
+    }
 }
@@ -37,6 +37,7 @@ import org.bitcoinj.net.discovery.PeerDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscoveryException;
 import org.bitcoinj.net.discovery.TorDiscovery;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.bitcoinj.utils.ExponentialBackoff;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
@@ -99,6 +100,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download
     @Nullable @GuardedBy("lock") private PeerEventListener downloadListener;
+    // Checkpoints that let chain download fetch headers from all peers at once, and the download that does it.
+    @Nullable @GuardedBy("lock") private CheckpointManager checkpoints;
+    @Nullable @GuardedBy("lock") private HeaderDownloadScheduler headerDownload;
     // Callbacks for events related to peer connection/disconnection
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
@@ -107,6 +111,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     @GuardedBy("lock") private VersionMessage versionMessage;
     // Switch for enabling download of pending transaction dependencies.
     @GuardedBy("lock") private boolean downloadTxDependencies;
+    // How long peers hold back inventory announcements and transaction getdata requests so they can be batched.
+    private volatile long vInventoryBatchDelayMillis = 0;
+    // Sends what the peers have held back. Shut down with the group.
+    private final ScheduledExecutorService inventoryExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
@@ -418,6 +427,29 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * Returns how long each peer holds back inventory announcements and transaction getdata requests so they can be
+     * sent together. See {@link #setInventoryBatchDelay(long)}.
+     */
+    public long getInventoryBatchDelay() {
+        return vInventoryBatchDelayMillis;
+    }
+
+    /**
+     * Sets how long, in milliseconds, each peer holds back the announcements made with
+     * {@link #announceTransaction(Transaction)} and its requests for announced transactions, so that everything which
+     * comes up in the meantime goes out as a single inv and a single getdata message per peer. When relaying many
+     * transactions a few hundred milliseconds saves a lot of messages. The default of zero sends everything straight
+     * away. Applies to connected peers as well as new ones. See
+     * {@link Peer#setInventoryBatchDelay(long, ScheduledExecutorService)}.
+     */
+    public void setInventoryBatchDelay(long delayMillis) {
+        checkArgument(delayMillis >= 0);
+        vInventoryBatchDelayMillis = delayMillis;
+        for (Peer peer : getConnectedPeers())
+            peer.setInventoryBatchDelay(delayMillis, inventoryExecutor);
+    }
+
     private Runnable triggerConnectionsJob = new Runnable() {
         @Override
         public void run() {
@@ -847,9 +879,17 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the Service implementation.
         vPingTimer.cancel();
+        lock.lock();
+        try {
+            if (headerDownload != null)
+                headerDownload.cancel();
+        } finally {
+            lock.unlock();
+        }
         // Blocking close of all sockets.
         channels.stopAsync();
         channels.awaitTerminated();
+        inventoryExecutor.shutdownNow();
         for (PeerDiscovery peerDiscovery : peerDiscoverers) {
             peerDiscovery.shutdown();
         }
@@ -1136,6 +1176,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (downloadPeer != null && listener != null)
                 downloadPeer.addEventListener(listener);
             this.downloadListener = listener;
+            if (maybeStartHeaderDownload())
+                return;
             // TODO: be more nuanced about which peer to download from.  We can also try
             // downloading from multiple peers and handle the case when a new peer comes along
             // with a longer chain after we thought we were done.
@@ -1147,6 +1189,77 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    // Starts downloading headers up to the last checkpoint from all peers at once, if there are checkpoints and headers
+    // to fetch, after which the usual chain download starts. Returns true if that is under way.
+    private boolean maybeStartHeaderDownload() {
+        checkState(lock.isHeldByCurrentThread());
+        if (isHeaderDownloadRunning())
+            return true;
+        // Only the first chain download gets one, later ones have few headers to catch up on.
+        if (checkpoints == null || chain == null || chain.shouldVerifyTransactions() || headerDownload != null)
+            return false;
+        HeaderDownloadScheduler download = new HeaderDownloadScheduler(params, chain, checkpoints,
+                fastCatchupTimeSecs, downloadListener);
+        if (download.getFuture().isDone())
+            return false;
+        headerDownload = download;
+        Futures.addCallback(download.getFuture(), new FutureCallback<StoredBlock>() {
+            @Override
+            public void onSuccess(StoredBlock head) {
+                lock.lock();
+                try {
+                    if (downloadListener != null && !peers.isEmpty())
+                        startBlockChainDownloadFromPeer(downloadPeer != null ? downloadPeer : peers.get(0));
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                // Cancelled because we are shutting down.
+            }
+        });
+        for (Peer peer : peers)
+            download.addPeer(peer);
+        return true;
+    }
+
+    private boolean isHeaderDownloadRunning() {
+        checkState(lock.isHeldByCurrentThread());
+        return headerDownload != null && !headerDownload.getFuture().isDone();
+    }
+
+    /**
+     * <p>Sets checkpoints that let the next chain download fetch the headers up to the last checkpoint before the fast
+     * catchup time from all connected peers at once, rather than from the download peer alone. The usual download
+     * then carries on from there. Only chains that don't verify transactions can use them.</p>
+     *
+     * <p>Set this before starting block chain download.</p>
+     */
+    public void setCheckpoints(@Nullable CheckpointManager checkpoints) {
+        lock.lock();
+        try {
+            this.checkpoints = checkpoints;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the download of headers from all peers started because of {@link #setCheckpoints(CheckpointManager)},
+     * whether or not it has finished, or null if there has been none. It tells how fast each peer sent headers.
+     */
+    @Nullable
+    public HeaderDownloadScheduler getHeaderDownload() {
+        lock.lock();
+        try {
+            return headerDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Download the blockchain from peers. Convenience that uses a {@link DownloadListener} for you.<p>
      * 
@@ -1181,6 +1294,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
+            peer.setInventoryBatchDelay(vInventoryBatchDelayMillis, inventoryExecutor);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1188,7 +1302,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             Peer newDownloadPeer = selectDownloadPeer(peers);
             if (downloadPeer != newDownloadPeer) {
                 setDownloadPeer(newDownloadPeer);
-                boolean shouldDownloadChain = downloadListener != null && chain != null;
+                boolean shouldDownloadChain = downloadListener != null && chain != null && !isHeaderDownloadRunning();
                 if (shouldDownloadChain) {
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
@@ -1200,6 +1314,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 peer.addEventListenerWithoutOnDisconnect(registration.listener, registration.executor);
             }
             setupPingingForNewPeer(peer);
+            if (isHeaderDownloadRunning())
+                headerDownload.addPeer(peer);
         } finally {
             lock.unlock();
         }
@@ -1357,6 +1473,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died", address);
+            if (headerDownload != null)
+                headerDownload.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1364,7 +1482,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 final Peer newDownloadPeer = selectDownloadPeer(peers);
                 if (newDownloadPeer != null) {
                     setDownloadPeer(newDownloadPeer);
-                    if (downloadListener != null) {
+                    if (downloadListener != null && !isHeaderDownloadRunning()) {
                         startBlockChainDownloadFromPeer(newDownloadPeer);
                     }
                 }
@@ -1579,6 +1697,33 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return broadcast.future();
     }
 
+    /**
+     * <p>Announces the given transaction with an inv message to each connected peer that didn't announce it to us and
+     * isn't {@link Peer#isCongested() congested}, and hands it to those that ask for it. Peers that are congested are
+     * skipped for good: the transaction isn't announced to them once they catch up, so call this again if it should
+     * be. Unlike
+     * {@link #broadcastTransaction(Transaction)} this doesn't wait to hear the transaction back from the network, so
+     * it is suited to relaying large numbers of transactions, which get announced together if an
+     * {@link #setInventoryBatchDelay(long) inventory batch delay} is set.</p>
+     *
+     * <p>The transaction is only held weakly by the memory pool, so the caller must keep a reference to it until the
+     * peers have had the chance to download it, unless it is in one of the wallets.</p>
+     *
+     * @return the number of peers it will be announced to.
+     */
+    public int announceTransaction(Transaction tx) {
+        tx = memoryPool.intern(tx);
+        InventoryItem item = new InventoryItem(InventoryItem.Type.Transaction, tx.getHash());
+        int announced = 0;
+        for (Peer peer : getConnectedPeers()) {
+            if (peer.isCongested())
+                continue;
+            if (peer.announce(item))
+                announced++;
+        }
+        return announced;
+    }
+
     /**
      * Returns the period between pings for an individual peer. Setting this lower means more accurate and timely ping
      * times are available via {@link org.bitcoinj.core.Peer#getLastPingTime()} but it increases load on the
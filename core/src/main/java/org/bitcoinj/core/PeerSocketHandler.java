@@ -18,19 +18,22 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.net.AbstractTimeoutHandler;
 import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.OutboundQueueStats;
 import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.utils.ByteBufferPool;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -42,6 +45,12 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    // Messages are serialized straight into direct buffers from here, which the write target gives back once they
+    // have been written. Shared by all peers, so that relaying a block to many of them reuses the same few buffers.
+    private static final ByteBufferPool sendBuffers = new ByteBufferPool(true, Block.MAX_BLOCK_SIZE + 24, 16 * 1024 * 1024);
+    // Large blocks and transactions are read into arrays from here, so that a stream of them doesn't allocate one each.
+    private static final ByteBufferPool receiveBuffers = new ByteBufferPool(false, Block.MAX_BLOCK_SIZE, 8 * 1024 * 1024);
+
     private final BitcoinSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
@@ -55,6 +64,11 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
+    // The pooled buffer backing largeReadBuffer, if it is recycled, in which case it may be longer than the message.
+    @Nullable private ByteBuffer largeReadBufferPooled;
+    // The payload bytes read into largeReadBuffer so far are hashed as they arrive, so once the last ones do the
+    // checksum is nearly done.
+    private final MessageDigest largeReadDigest = Utils.newSha256Digest();
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
@@ -81,16 +95,47 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeBytes(serializer.serialize(message, sendBuffers), sendBuffers, priorityOf(message));
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
+    // Bulk data may wait behind pings, pongs, requests and the like, which are small and which the remote end or our
+    // own timeouts may be waiting on.
+    private static MessageWriteTarget.Priority priorityOf(Message message) {
+        if (message instanceof Block || message instanceof Transaction || message instanceof FilteredBlock
+                || message instanceof HeadersMessage || message instanceof UTXOsMessage)
+            return MessageWriteTarget.Priority.DATA;
+        return MessageWriteTarget.Priority.CONTROL;
+    }
+
+    /**
+     * Returns true if so much is waiting to be sent to the peer that data which can wait, such as transactions being
+     * relayed or served, should be held back for now. False if not yet connected.
+     */
+    public boolean isCongested() {
+        OutboundQueueStats stats = getOutboundQueueStats();
+        return stats != null && stats.isCongested();
+    }
+
+    /**
+     * Returns how much is waiting to be sent to the peer and how long messages have waited, or null if not yet
+     * connected.
+     */
+    @Nullable
+    public OutboundQueueStats getOutboundQueueStats() {
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                return null;
+        } finally {
+            lock.unlock();
+        }
+        return writeTarget.getOutboundQueueStats();
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -130,15 +175,12 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
+                    readIntoLargeReadBuffer(buff, bytesToGet);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
+                        processMessage(deserializeLargeReadBuffer());
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
@@ -157,9 +199,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            if (serializer.canRecyclePayload(header) && header.size <= Block.MAX_BLOCK_SIZE) {
+                                largeReadBufferPooled = receiveBuffers.acquire(header.size);
+                                largeReadBuffer = largeReadBufferPooled.array();
+                            } else {
+                                largeReadBuffer = new byte[header.size];
+                            }
+                            largeReadBufferPos = 0;
+                            largeReadDigest.reset();
+                            readIntoLargeReadBuffer(buff, buff.remaining());
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -183,6 +231,26 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    private void readIntoLargeReadBuffer(ByteBuffer buff, int length) {
+        buff.get(largeReadBuffer, largeReadBufferPos, length);
+        largeReadDigest.update(largeReadBuffer, largeReadBufferPos, length);
+        largeReadBufferPos += length;
+    }
+
+    private Message deserializeLargeReadBuffer() throws ProtocolException {
+        try {
+            byte[] hash = largeReadDigest.digest(largeReadDigest.digest());
+            return serializer.deserializePayload(header, largeReadBuffer, hash);
+        } finally {
+            // The message has been parsed and has let go of the buffer, or failed to parse.
+            if (largeReadBufferPooled != null)
+                receiveBuffers.release(largeReadBufferPooled);
+            largeReadBufferPooled = null;
+            largeReadBuffer = null;
+            header = null;
+        }
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link org.bitcoinj.net.NioClient} or
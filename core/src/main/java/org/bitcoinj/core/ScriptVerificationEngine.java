@@ -0,0 +1,289 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.SignatureCache;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Verifies the scripts of a block's inputs on a long lived pool of threads, for {@link FullPrunedBlockChain}.</p>
+ *
+ * <p>A block is verified in two overlapping stages. The chain looks up the outputs spent by each transaction in the
+ * block store and does the value accounting on its own thread, handing each transaction to
+ * {@link BlockVerification#add(Transaction, List)} as soon as its inputs are resolved. Inputs are gathered into
+ * batches of a fixed size, regardless of which transaction they belong to, and each full batch is verified on the
+ * pool while the chain carries on looking up the rest of the block. {@link BlockVerification#await()} then waits
+ * for the remaining batches. The time spent in each stage is recorded and available from {@link #getStats()}.</p>
+ *
+ * <p>Within a batch, inputs that spend pay to address outputs in the plain way are not run through the script
+ * interpreter. Their signatures are collected by {@link Script#getPayToAddressSignatureCheck(Transaction, int, Script)}
+ * and checked together with {@link SignatureCache#verify(List)}, which only decodes each public key once. Any that
+ * fail, and all other inputs, have their scripts run as usual.</p>
+ *
+ * <p>A failed verification cancels the rest of that block's work but leaves the pool running for the next block.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    /** The default number of inputs verified by one task. */
+    public static final int DEFAULT_INPUTS_PER_BATCH = 16;
+
+    private final ExecutorService executor;
+    private final int inputsPerBatch;
+
+    private final AtomicLong statsBlocks = new AtomicLong();
+    private final AtomicLong statsTransactions = new AtomicLong();
+    private final AtomicLong statsInputs = new AtomicLong();
+    private final AtomicLong statsBatchedSignatures = new AtomicLong();
+    private final AtomicLong statsLookupNanos = new AtomicLong();
+    private final AtomicLong statsVerifyNanos = new AtomicLong();
+    private final AtomicLong statsWaitNanos = new AtomicLong();
+
+    /** Creates an engine with one thread per available processor and the default batch size. */
+    public ScriptVerificationEngine() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_INPUTS_PER_BATCH);
+    }
+
+    /** Creates an engine with its own pool of the given number of daemon threads. */
+    public ScriptVerificationEngine(int threads, int inputsPerBatch) {
+        this(Executors.newFixedThreadPool(threads, new DaemonThreadFactory()), inputsPerBatch);
+    }
+
+    /** Creates an engine that verifies on the given executor, which it takes ownership of. */
+    public ScriptVerificationEngine(ExecutorService executor, int inputsPerBatch) {
+        checkArgument(inputsPerBatch > 0);
+        this.executor = executor;
+        this.inputsPerBatch = inputsPerBatch;
+    }
+
+    /** Starts verifying a new block, using the given flags for all of its inputs. */
+    public BlockVerification startBlock(Set<VerifyFlag> verifyFlags) {
+        checkState(!executor.isShutdown(), "Engine has been shut down");
+        return new BlockVerification(verifyFlags);
+    }
+
+    /** Stops the verification threads. Blocks that are still being verified will fail. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Returns the stage timings accumulated over all blocks verified so far. */
+    public Stats getStats() {
+        return new Stats(statsBlocks.get(), statsTransactions.get(), statsInputs.get(), statsBatchedSignatures.get(),
+                statsLookupNanos.get(), statsVerifyNanos.get(), statsWaitNanos.get());
+    }
+
+    /** Timings accumulated by a {@link ScriptVerificationEngine}. */
+    public static class Stats {
+        /** Number of blocks verified. */
+        public final long blocks;
+        /** Number of transactions whose inputs were queued, each of which was copied once for the verification threads. */
+        public final long transactions;
+        /** Number of inputs whose scripts were run. */
+        public final long inputs;
+        /** Number of those inputs whose signature was checked in a batch instead of by the script interpreter. */
+        public final long batchedSignatures;
+        /** Time the chain spent looking up spent outputs and checking values, with verification running alongside. */
+        public final long lookupNanos;
+        /** Time spent running scripts, summed over all verification threads. */
+        public final long verifyNanos;
+        /** Time the chain spent waiting for scripts once it had looked up the whole block. */
+        public final long waitNanos;
+
+        public Stats(long blocks, long transactions, long inputs, long batchedSignatures, long lookupNanos,
+                     long verifyNanos, long waitNanos) {
+            this.blocks = blocks;
+            this.transactions = transactions;
+            this.inputs = inputs;
+            this.batchedSignatures = batchedSignatures;
+            this.lookupNanos = lookupNanos;
+            this.verifyNanos = verifyNanos;
+            this.waitNanos = waitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks, %d transactions, %d inputs (%d signatures batched): %d ms looking up outputs, %d ms running scripts, %d ms waiting for scripts",
+                    blocks, transactions, inputs, batchedSignatures, TimeUnit.NANOSECONDS.toMillis(lookupNanos),
+                    TimeUnit.NANOSECONDS.toMillis(verifyNanos), TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        }
+    }
+
+    /** The script verification of one block, see {@link ScriptVerificationEngine}. Not thread safe. */
+    public class BlockVerification {
+        private final Set<VerifyFlag> verifyFlags;
+        private final List<Future<VerificationException>> futures = new ArrayList<Future<VerificationException>>();
+        private final long startNanos = System.nanoTime();
+        // Set by a batch that found a bad script, so the others stop early.
+        private volatile boolean failed;
+        private Batch batch;
+        private int transactions;
+        private int inputs;
+
+        private BlockVerification(Set<VerifyFlag> verifyFlags) {
+            this.verifyFlags = verifyFlags;
+        }
+
+        /**
+         * Queues the scripts of all inputs of the given transaction for verification. prevOutScripts are the
+         * scriptPubKeys of the outputs the inputs spend, in the same order. The transaction is copied, so it may be
+         * modified as soon as this returns.
+         * @throws ScriptException if one of the scriptSigs can't be parsed.
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts) {
+            checkArgument(prevOutScripts.size() == tx.getInputs().size());
+            // One copy of the transaction is shared by all the batches its inputs land in. Only its synchronized
+            // hashForSignature is called from there, so the scriptSigs are picked out here before any batch starts.
+            Transaction copy;
+            try {
+                copy = new Transaction(tx.getParams(), tx.bitcoinSerialize());
+            } catch (ProtocolException e) {
+                throw new RuntimeException(e);  // Cannot happen, we just serialized it.
+            }
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts) {
+                if (batch == null)
+                    batch = new Batch();
+                batch.add(copy, index, copy.getInputs().get(index).getScriptSig(), prevOutScript);
+                index++;
+                if (batch.size() == inputsPerBatch)
+                    submitBatch();
+            }
+            transactions++;
+            inputs += index;
+        }
+
+        private void submitBatch() {
+            futures.add(executor.submit(batch));
+            batch = null;
+        }
+
+        /**
+         * Waits for all queued scripts to be verified.
+         * @throws VerificationException if any of them failed, in which case any unfinished work is cancelled.
+         */
+        public void await() throws VerificationException {
+            long awaitStartNanos = System.nanoTime();
+            if (batch != null)
+                submitBatch();
+            try {
+                for (Future<VerificationException> future : futures) {
+                    VerificationException e;
+                    try {
+                        e = future.get();
+                    } catch (InterruptedException thrownE) {
+                        throw new RuntimeException(thrownE); // Shouldn't happen
+                    } catch (ExecutionException thrownE) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                    }
+                    if (e != null)
+                        throw e;
+                }
+            } catch (VerificationException e) {
+                cancel();
+                throw e;
+            } finally {
+                long endNanos = System.nanoTime();
+                statsBlocks.incrementAndGet();
+                statsTransactions.addAndGet(transactions);
+                statsInputs.addAndGet(inputs);
+                statsLookupNanos.addAndGet(awaitStartNanos - startNanos);
+                statsWaitNanos.addAndGet(endNanos - awaitStartNanos);
+            }
+        }
+
+        /** Abandons verification of this block, cancelling any queued work. */
+        public void cancel() {
+            failed = true;
+            batch = null;
+            for (Future<VerificationException> future : futures)
+                future.cancel(true);
+        }
+
+        /** A batch of inputs that is verified by one task. */
+        private class Batch implements Callable<VerificationException> {
+            private final List<Transaction> txs = new ArrayList<Transaction>(inputsPerBatch);
+            private final int[] indexes = new int[inputsPerBatch];
+            private final List<Script> scriptSigs = new ArrayList<Script>(inputsPerBatch);
+            private final List<Script> prevOutScripts = new ArrayList<Script>(inputsPerBatch);
+
+            private void add(Transaction tx, int index, Script scriptSig, Script prevOutScript) {
+                indexes[txs.size()] = index;
+                txs.add(tx);
+                scriptSigs.add(scriptSig);
+                prevOutScripts.add(prevOutScript);
+            }
+
+            private int size() {
+                return txs.size();
+            }
+
+            @Nullable
+            @Override
+            public VerificationException call() throws Exception {
+                long startNanos = System.nanoTime();
+                try {
+                    List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>(txs.size());
+                    int[] checked = new int[txs.size()];
+                    for (int i = 0; i < txs.size() && !failed; i++) {
+                        ECKey.SignatureCheck check = scriptSigs.get(i).getPayToAddressSignatureCheck(txs.get(i),
+                                indexes[i], prevOutScripts.get(i));
+                        if (check != null) {
+                            checked[checks.size()] = i;
+                            checks.add(check);
+                        } else {
+                            runScripts(i);
+                        }
+                    }
+                    if (failed || checks.isEmpty())
+                        return null;
+                    boolean[] valid = SignatureCache.getDefault().verify(checks);
+                    statsBatchedSignatures.addAndGet(checks.size());
+                    // The interpreter has the final say on any that failed, and reports why.
+                    for (int j = 0; j < valid.length && !failed; j++)
+                        if (!valid[j])
+                            runScripts(checked[j]);
+                } catch (VerificationException e) {
+                    failed = true;
+                    return e;
+                } finally {
+                    statsVerifyNanos.addAndGet(System.nanoTime() - startNanos);
+                }
+                return null;
+            }
+
+            private void runScripts(int i) throws VerificationException {
+                scriptSigs.get(i).correctlySpendsInPlace(txs.get(i), indexes[i], prevOutScripts.get(i), verifyFlags);
+            }
+        }
+    }
+}
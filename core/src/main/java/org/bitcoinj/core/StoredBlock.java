@@ -18,11 +18,14 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.HeightIndexedBlockStore;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -118,6 +121,30 @@ public class StoredBlock implements Serializable {
         return store.get(getHeader().getPrevBlockHash());
     }
 
+    /**
+     * Given a block store, looks up the block at the given height in the chain that ends at this block. If this block
+     * is on the best chain of a {@link HeightIndexedBlockStore} the block is looked up by its height, otherwise this
+     * walks back through the chain one block at a time.
+     *
+     * @return the block at the given height or null if it was not found in the store.
+     */
+    @Nullable
+    public StoredBlock getAncestor(BlockStore store, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= this.height);
+        if (store instanceof HeightIndexedBlockStore) {
+            HeightIndexedBlockStore indexedStore = (HeightIndexedBlockStore) store;
+            if (this.equals(indexedStore.getByHeight(this.height))) {
+                StoredBlock ancestor = indexedStore.getByHeight(height);
+                if (ancestor != null)
+                    return ancestor;
+            }
+        }
+        StoredBlock cursor = this;
+        while (cursor != null && cursor.height > height)
+            cursor = cursor.getPrev(store);
+        return cursor;
+    }
+
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer) {
         byte[] chainWorkBytes = getChainWork().toByteArray();
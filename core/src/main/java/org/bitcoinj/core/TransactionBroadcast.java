@@ -27,6 +27,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -118,7 +119,13 @@ public class TransactionBroadcast {
             numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
-            peers = peers.subList(0, numToBroadcastTo);
+            // Prefer peers whose connections aren't backed up, so the transaction doesn't wait behind other data.
+            List<Peer> uncongested = new ArrayList<Peer>(peers.size());
+            List<Peer> congested = new ArrayList<Peer>();
+            for (Peer peer : peers)
+                (peer.isCongested() ? congested : uncongested).add(peer);
+            uncongested.addAll(congested);
+            peers = uncongested.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
             for (Peer peer : peers) {
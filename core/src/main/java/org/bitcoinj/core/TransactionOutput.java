@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptPattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -332,21 +333,19 @@ public class TransactionOutput extends ChildMessage implements Serializable {
      * Returns true if this output is to a key, or an address we have the keys for, in the wallet.
      */
     public boolean isMine(TransactionBag transactionBag) {
-        try {
-            Script script = getScriptPubKey();
-            if (script.isSentToRawPubKey()) {
-                byte[] pubkey = script.getPubKey();
-                return transactionBag.isPubKeyMine(pubkey);
-            } if (script.isPayToScriptHash()) {
-                return transactionBag.isPayToScriptHashMine(script.getPubKeyHash());
-            } else {
-                byte[] pubkeyHash = script.getPubKeyHash();
-                return transactionBag.isPubKeyHashMine(pubkeyHash);
-            }
-        } catch (ScriptException e) {
-            // Just means we didn't understand the output of this transaction: ignore it.
-            log.debug("Could not parse tx output script: {}", e.toString());
-            return false;
+        // Work from the raw bytes rather than getScriptPubKey(), the wallet asks this of every output it sees and
+        // most of them are someone else's.
+        byte[] program = getScriptBytes();
+        switch (ScriptPattern.classify(program)) {
+            case SENT_TO_RAW_PUBKEY:
+                return transactionBag.isPubKeyMine(ScriptPattern.extractPubKey(program));
+            case PAY_TO_SCRIPT_HASH:
+                return transactionBag.isPayToScriptHashMine(ScriptPattern.extractHash(program));
+            case SENT_TO_ADDRESS:
+                return transactionBag.isPubKeyHashMine(ScriptPattern.extractHash(program));
+            default:
+                // Either we didn't understand the output of this transaction or it isn't to a key: ignore it.
+                return false;
         }
     }
 
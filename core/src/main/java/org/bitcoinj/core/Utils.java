@@ -33,6 +33,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -48,14 +50,14 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  * To enable debug logging from the library, run with -Dbitcoinj.logging=true on your command line.
  */
 public class Utils {
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    // MessageDigest is not thread safe. Rather than have every hash in the JVM contend on one shared instance, each
+    // thread gets its own.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
         }
-    }
+    };
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
@@ -139,6 +141,18 @@ public class Utils {
         }
     }
 
+    /**
+     * Returns a new SHA-256 {@link MessageDigest}. Most code should use the static hashing methods in this class
+     * instead, which reuse a digest per thread.
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
     /**
      * See {@link Utils#doubleDigest(byte[], int, int)}.
      */
@@ -151,20 +165,38 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] out = new byte[32];
+        doubleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Like {@link Utils#doubleDigest(byte[], int, int)} but writes the 32 byte result into the given array at
+     * outOffset instead of allocating a new one. The output may overlap the input.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the remaining bytes of the given buffer and writes the 32 byte result into
+     * out at outOffset. The buffer's position is advanced to its limit.
+     */
+    public static void doubleDigest(ByteBuffer input, byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input);
+        finishDoubleDigest(digest, out, outOffset);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -172,12 +204,64 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        byte[] out = new byte[32];
+        doubleDigestTwoBuffers(input1, offset1, length1, input2, offset2, length2, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range 1 + byte range 2)) into the given array at outOffset. The output may
+     * overlap either input.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2, byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    /**
+     * <p>Returns a SHA-256 digest that has already absorbed the given bytes, commonly called the midstate. When many
+     * messages share a prefix, as block headers that differ only in their nonce do, hashing each of them with
+     * {@link Utils#doubleDigestFromMidstate(MessageDigest, byte[], int, int, byte[], int)} skips re-hashing the
+     * prefix every time. This only saves work for the whole 64 byte blocks of the prefix.</p>
+     *
+     * <p>The returned digest is never updated by this class and may be shared between threads, but callers must not
+     * update or reset it themselves.</p>
+     */
+    public static MessageDigest sha256Midstate(byte[] prefix, int offset, int length) {
+        MessageDigest midstate = newSha256Digest();
+        midstate.update(prefix, offset, length);
+        return midstate;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(prefix + byte range)) where the prefix has already been absorbed by a midstate from
+     * {@link Utils#sha256Midstate(byte[], int, int)}, and writes the 32 byte result into out at outOffset.
+     */
+    public static void doubleDigestFromMidstate(MessageDigest midstate, byte[] input, int offset, int length,
+                                                byte[] out, int outOffset) {
+        MessageDigest first;
+        try {
+            first = (MessageDigest) midstate.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // Can't happen with the JDK provider.
+        }
+        first.update(input, offset, length);
+        finishDoubleDigest(first, out, outOffset);
+    }
+
+    // Completes the first round in the given digest, then hashes the result again with this thread's digest.
+    private static void finishDoubleDigest(MessageDigest first, byte[] out, int outOffset) {
+        try {
+            first.digest(out, outOffset, 32);
+            MessageDigest second = Utils.digest.get();
+            second.update(out, outOffset, 32);
+            second.digest(out, outOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, the output is always big enough.
         }
     }
 
@@ -266,16 +350,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -35,6 +35,8 @@ import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.script.ScriptType;
 import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.MissingSigResolutionSigner;
 import org.bitcoinj.signers.TransactionSigner;
@@ -3955,8 +3957,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
-        boolean isScriptTypeSupported = out.getScriptPubKey().isSentToRawPubKey() || out.getScriptPubKey().isPayToScriptHash();
-        return (out.isMine(this) && isScriptTypeSupported) ||
+        ScriptType type = ScriptPattern.classify(out.getScriptBytes());
+        boolean isScriptTypeSupported = type == ScriptType.SENT_TO_RAW_PUBKEY || type == ScriptType.PAY_TO_SCRIPT_HASH;
+        return (isScriptTypeSupported && out.isMine(this)) ||
                 out.isWatched(this);
     }
 
@@ -16,6 +16,7 @@
 
 package org.bitcoinj.net;
 
+import org.bitcoinj.utils.ByteBufferPool;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
@@ -143,4 +144,37 @@ public class BlockingClient implements MessageWriteTarget {
             throw e;
         }
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer message, @Nullable ByteBufferPool pool, Priority priority)
+            throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            if (message.hasArray()) {
+                stream.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+            } else {
+                // Sockets from a SocketFactory have no channel to write a direct buffer to, so copy it out in chunks.
+                byte[] chunk = new byte[Math.min(message.remaining(), BUFFER_SIZE_UPPER_BOUND)];
+                while (message.hasRemaining()) {
+                    int length = Math.min(message.remaining(), chunk.length);
+                    message.get(chunk, 0, length);
+                    stream.write(chunk, 0, length);
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        } finally {
+            if (pool != null)
+                pool.release(message);
+        }
+    }
+
+    @Override
+    public OutboundQueueStats getOutboundQueueStats() {
+        // Writes block until they are done, so nothing ever waits in a queue of ours.
+        return OutboundQueueStats.UNQUEUED;
+    }
 }
@@ -17,6 +17,7 @@
 package org.bitcoinj.net;
 
 import org.bitcoinj.core.Message;
+import org.bitcoinj.utils.ByteBufferPool;
 import org.bitcoinj.utils.Threading;
 import com.google.common.base.Throwables;
 import org.slf4j.LoggerFactory;
@@ -28,9 +29,10 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -48,6 +50,10 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // Once this much is queued the connection counts as congested, until the queue drops below the low water mark.
+    private static final int CONGESTION_HIGH_WATER_BYTES = 4 * 1024 * 1024;
+    private static final int CONGESTION_LOW_WATER_BYTES = 1024 * 1024;
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -58,8 +64,35 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") StreamParser parser;
     @GuardedBy("lock") private boolean closeCalled = false;
 
+    // Queued control messages go out before queued data messages, but a message that has been partly written has to
+    // be finished first.
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") @Nullable private OutboundBuffer partlyWritten;
+    @GuardedBy("lock") private final LinkedList<OutboundBuffer> controlToWrite = new LinkedList<OutboundBuffer>();
+    @GuardedBy("lock") private final LinkedList<OutboundBuffer> dataToWrite = new LinkedList<OutboundBuffer>();
+    @GuardedBy("lock") private final List<OutboundBuffer> gathered = new ArrayList<OutboundBuffer>(MAX_GATHERED_BUFFERS);
+    @GuardedBy("lock") private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    @GuardedBy("lock") private boolean congested;
+    @GuardedBy("lock") private long writtenMessages, totalLatencyMillis, maxLatencyMillis;
+
+    // A buffer waiting to be written, and the pool it goes back to once it has been.
+    private static class OutboundBuffer {
+        ByteBuffer buffer;
+        @Nullable final ByteBufferPool pool;
+        final int length;
+        final long queuedAt = System.currentTimeMillis();
+
+        OutboundBuffer(ByteBuffer buffer, @Nullable ByteBufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+            this.length = buffer.remaining();
+        }
+
+        void release() {
+            if (pool != null)
+                pool.release(buffer);
+        }
+    }
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -108,47 +141,143 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
+    // Stops or restarts reading from the socket, for a parser that has fallen behind. Runs in any thread.
+    void setReadsPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (closeCalled)
+                return;
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // Closed meanwhile.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
+            writeQueuedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writeQueuedBytes() throws IOException {
+        // Push as much of the outbound queue as possible into the OS' network buffer, handing it several buffers per
+        // gathering write so that many small messages don't take a system call each.
+        while (partlyWritten != null || !controlToWrite.isEmpty() || !dataToWrite.isEmpty()) {
+            gathered.clear();
+            if (partlyWritten != null)
+                gathered.add(partlyWritten);
+            gather(controlToWrite);
+            gather(dataToWrite);
+            for (int i = 0; i < gathered.size(); i++)
+                gatherBuffers[i] = gathered.get(i).buffer;
+            bytesToWriteRemaining -= channel.write(gatherBuffers, 0, gathered.size());
+            Arrays.fill(gatherBuffers, 0, gathered.size(), null);
+            long now = System.currentTimeMillis();
+            int written = 0;
+            for (OutboundBuffer queued : gathered) {
+                if (queued.buffer.hasRemaining())
                     break;
+                remove(queued);
+                queued.release();
+                long latency = now - queued.queuedAt;
+                writtenMessages++;
+                totalLatencyMillis += latency;
+                maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+                written++;
+            }
+            if (written < gathered.size()) {
+                // The network buffer is full. Whatever it took part of must go out next, whatever is queued meanwhile.
+                OutboundBuffer next = gathered.get(written);
+                if (next != partlyWritten && next.buffer.remaining() < next.length) {
+                    remove(next);
+                    partlyWritten = next;
                 }
+                // Wait for the selector to tell us there is room again.
+                setWriteOps();
+                break;
             }
-            // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
-        } finally {
-            lock.unlock();
         }
+        gathered.clear();
+        if (congested && bytesToWriteRemaining < CONGESTION_LOW_WATER_BYTES)
+            congested = false;
+        // If we are done writing, clear the OP_WRITE interestOps
+        if (partlyWritten == null && controlToWrite.isEmpty() && dataToWrite.isEmpty())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        // Don't bother waking up the selector here, since we're just removing an op, not adding
+    }
+
+    @GuardedBy("lock")
+    private void gather(LinkedList<OutboundBuffer> queue) {
+        for (OutboundBuffer queued : queue) {
+            if (gathered.size() == MAX_GATHERED_BUFFERS)
+                return;
+            gathered.add(queued);
+        }
+    }
+
+    // Removes a buffer which must be the partly written one or at the head of one of the queues.
+    @GuardedBy("lock")
+    private void remove(OutboundBuffer queued) {
+        if (queued == partlyWritten)
+            partlyWritten = null;
+        else if (queued == controlToWrite.peek())
+            controlToWrite.poll();
+        else
+            checkState(queued == dataToWrite.poll());
     }
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // The caller may reuse the array once we return, so whatever can't be written right away is copied.
+        enqueue(ByteBuffer.wrap(message), null, Priority.DATA, true);
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer message, @Nullable ByteBufferPool pool, Priority priority) throws IOException {
+        enqueue(message, pool, priority, false);
+    }
+
+    private void enqueue(ByteBuffer message, @Nullable ByteBufferPool pool, Priority priority, boolean copyIfQueued)
+            throws IOException {
+        OutboundBuffer queued = new OutboundBuffer(message, pool);
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
+            // thus we have to buffer outbound messages sometimes. To do this, we use queues of ByteBuffers and just
+            // append to one when we want to send a message. We then try to write it straight away, and if the network
+            // buffer fills up, register our SelectionKey to wakeup when we have free outbound buffer space available.
+            // Senders are expected to hold back data that can wait while the connection is congested, so that the
+            // queue only overflows if the remote end stops reading altogether.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            if (bytesToWriteRemaining + message.remaining() > OUTBOUND_BUFFER_BYTE_COUNT) {
+                queued.release();
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
+            }
+            (priority == Priority.CONTROL ? controlToWrite : dataToWrite).offer(queued);
+            bytesToWriteRemaining += message.remaining();
+            if (bytesToWriteRemaining >= CONGESTION_HIGH_WATER_BYTES && !congested) {
+                congested = true;
+                log.info("Connection to {} is congested with {} bytes queued", channel.socket().getRemoteSocketAddress(),
+                        bytesToWriteRemaining);
+            }
+            writeQueuedBytes();
+            if (copyIfQueued && queued.buffer.hasRemaining()) {
+                byte[] rest = new byte[queued.buffer.remaining()];
+                queued.buffer.get(rest);
+                queued.buffer = ByteBuffer.wrap(rest);
+            }
         } catch (IOException e) {
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
@@ -163,6 +292,18 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public OutboundQueueStats getOutboundQueueStats() {
+        lock.lock();
+        try {
+            int queuedMessages = (partlyWritten == null ? 0 : 1) + controlToWrite.size() + dataToWrite.size();
+            return new OutboundQueueStats(queuedMessages, bytesToWriteRemaining, writtenMessages, totalLatencyMillis,
+                    maxLatencyMillis, congested);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -180,6 +321,16 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            if (partlyWritten != null)
+                partlyWritten.release();
+            partlyWritten = null;
+            for (OutboundBuffer queued : controlToWrite)
+                queued.release();
+            controlToWrite.clear();
+            for (OutboundBuffer queued : dataToWrite)
+                queued.release();
+            dataToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
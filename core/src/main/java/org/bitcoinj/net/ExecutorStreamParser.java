@@ -0,0 +1,209 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link StreamParser} that copies the bytes it receives and passes them on to another parser using an executor,
+ * so that the network thread can get on with other connections while the messages are parsed and processed. The
+ * callbacks of one connection run one at a time and in the order they happened, but those of different connections run
+ * in parallel on the executor's threads. Used by {@link MultiNioClientManager}.</p>
+ *
+ * <p>If the other parser falls behind, reading from the connection stops until it has caught up, so that the bytes
+ * waiting for it stay within a few read buffers.</p>
+ */
+class ExecutorStreamParser implements StreamParser {
+    private static final Logger log = LoggerFactory.getLogger(ExecutorStreamParser.class);
+
+    private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
+    private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
+
+    // Reads stop once more than this many bytes wait for the parser, and start again when it is down to the lower mark.
+    static final int PAUSE_READS_BYTES = 4 * BUFFER_SIZE_UPPER_BOUND;
+    static final int RESUME_READS_BYTES = BUFFER_SIZE_UPPER_BOUND;
+
+    private final StreamParser parser;
+    private final Executor executor;
+
+    // Callbacks waiting to run, and whether a task to run them has been handed to the executor.
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final ReentrantLock lock = Threading.lock("executorStreamParser");
+    @GuardedBy("lock") private long pendingBytes;
+    @GuardedBy("lock") private boolean readsPaused;
+
+    // Only touched by the running task.
+    private final ByteBuffer readBuff;
+    private boolean failed;
+
+    private volatile MessageWriteTarget writeTarget;
+
+    ExecutorStreamParser(StreamParser parser, Executor executor) {
+        this.parser = checkNotNull(parser);
+        this.executor = checkNotNull(executor);
+        int maxMessageSize = parser.getMaxMessageSize();
+        this.readBuff = ByteBuffer.allocate(Math.min(Math.max(maxMessageSize, BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+    }
+
+    @Override
+    public int receiveBytes(ByteBuffer buff) {
+        final byte[] bytes = new byte[buff.remaining()];
+        buff.get(bytes);
+        lock.lock();
+        try {
+            pendingBytes += bytes.length;
+            if (!readsPaused && pendingBytes > PAUSE_READS_BYTES) {
+                log.debug("Pausing reads from a connection that is {} bytes ahead of message processing", pendingBytes);
+                readsPaused = true;
+                setReadsPaused(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                bytesPassedOn(bytes.length);
+                if (!failed)
+                    passOn(bytes);
+            }
+        });
+        return buff.position();
+    }
+
+    private void bytesPassedOn(int length) {
+        lock.lock();
+        try {
+            pendingBytes -= length;
+            if (readsPaused && pendingBytes <= RESUME_READS_BYTES) {
+                readsPaused = false;
+                setReadsPaused(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops or restarts reading from the connection.
+    void setReadsPaused(boolean paused) {
+        MessageWriteTarget target = writeTarget;
+        if (target instanceof ConnectionHandler)
+            ((ConnectionHandler) target).setReadsPaused(paused);
+    }
+
+    // Feeds the bytes to the parser through a buffer the way ConnectionHandler does: a full buffer means the parser
+    // has to keep what it has of a message that is bigger than the buffer.
+    private void passOn(byte[] bytes) {
+        int offset = 0;
+        try {
+            while (offset < bytes.length) {
+                int length = Math.min(readBuff.remaining(), bytes.length - offset);
+                readBuff.put(bytes, offset, length);
+                offset += length;
+                readBuff.flip();
+                int bytesConsumed = parser.receiveBytes(readBuff);
+                checkState(readBuff.position() == bytesConsumed);
+                readBuff.compact();
+            }
+        } catch (Exception e) {
+            log.error("Error passing on bytes read from the network, closing connection", e);
+            failed = true;
+            closeConnection();
+        }
+    }
+
+    private void closeConnection() {
+        MessageWriteTarget target = writeTarget;
+        if (target != null)
+            target.closeConnection();
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (tasks.isEmpty() || !scheduled.compareAndSet(false, true))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            log.error("Error in network callback", e);
+                        }
+                    }
+                } finally {
+                    scheduled.set(false);
+                }
+                // A task may have been added after the queue was found empty but before scheduled was cleared.
+                schedule();
+            }
+        });
+    }
+
+    @Override
+    public void setWriteTarget(MessageWriteTarget writeTarget) {
+        this.writeTarget = writeTarget;
+        parser.setWriteTarget(writeTarget);
+    }
+
+    @Override
+    public int getMaxMessageSize() {
+        return parser.getMaxMessageSize();
+    }
+
+    @Override
+    public void connectionOpened() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                parser.connectionOpened();
+            }
+        });
+    }
+
+    @Override
+    public void connectionClosed() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                parser.connectionClosed();
+            }
+        });
+    }
+}
@@ -16,7 +16,11 @@
 
 package org.bitcoinj.net;
 
+import org.bitcoinj.utils.ByteBufferPool;
+
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
@@ -26,6 +30,27 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the remaining bytes of the given buffer to the remote server without copying them where possible. The
+     * target takes ownership of the buffer and gives it back to the pool, if there is one, once it has been written or
+     * the connection is closed, so the caller must not touch it after this call.
+     *
+     * Messages that have to wait to be written go out in order of priority, and in the order they were written within
+     * each priority. Bytes passed to {@link #writeBytes(byte[])} go out with {@link Priority#DATA}.
+     */
+    void writeBytes(ByteBuffer message, @Nullable ByteBufferPool pool, Priority priority) throws IOException;
+
+    /** How soon a message should be written relative to others waiting to be. */
+    enum Priority {
+        /** Small messages that keep the protocol going, such as pings, pongs, version messages and requests. */
+        CONTROL,
+        /** Bulk data, such as blocks and transactions, which may wait behind control messages. */
+        DATA
+    }
+
+    /** Returns how much is waiting to be written, and how long writes have been waiting. */
+    OutboundQueueStats getOutboundQueueStats();
+
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.utils.DaemonThreadFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractIdleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link ClientConnectionManager} that spreads its connections over several {@link NioClientManager}s, each with
+ * its own selector thread, for when there are hundreds of connections and one thread can't keep up with them all. A
+ * new connection goes to the selector with the fewest.</p>
+ *
+ * <p>With a single {@link NioClientManager}, messages are parsed and processed on the selector thread, so one slow
+ * message holds up every other connection. Given some processing threads, this class instead has the selector threads
+ * only read from the sockets, and passes the bytes read to the parsers on the processing threads. The callbacks of each
+ * connection still happen one at a time and in order, but may happen on any of the processing threads.</p>
+ */
+public class MultiNioClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private static final Logger log = LoggerFactory.getLogger(MultiNioClientManager.class);
+
+    private final ImmutableList<NioClientManager> selectors;
+    @Nullable private final ExecutorService processingThreads;
+    private final AtomicInteger nextSelector = new AtomicInteger();
+
+    /**
+     * Creates a client manager with one selector thread and one processing thread for each processor.
+     */
+    public MultiNioClientManager() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param selectorThreads the number of threads to handle socket events on
+     * @param processingThreads the number of threads to parse and process messages on, or zero to do that on the
+     *                          selector threads
+     */
+    public MultiNioClientManager(int selectorThreads, int processingThreads) {
+        checkArgument(selectorThreads > 0);
+        checkArgument(processingThreads >= 0);
+        ImmutableList.Builder<NioClientManager> selectors = ImmutableList.builder();
+        for (int i = 0; i < selectorThreads; i++)
+            selectors.add(new NioClientManager());
+        this.selectors = selectors.build();
+        this.processingThreads = processingThreads == 0 ? null :
+                Executors.newFixedThreadPool(processingThreads, new DaemonThreadFactory());
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager selector : selectors)
+            selector.startAsync();
+        for (NioClientManager selector : selectors)
+            selector.awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager selector : selectors)
+            selector.stopAsync();
+        for (NioClientManager selector : selectors)
+            selector.awaitTerminated();
+        if (processingThreads != null) {
+            // Let the connectionClosed() callbacks the selectors queued up run.
+            processingThreads.shutdown();
+            if (!processingThreads.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("Message processing threads did not finish in time");
+        }
+    }
+
+    @Override
+    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        // Connections still being opened don't count yet, so start looking from a different selector each time to
+        // spread out bursts of new connections.
+        int start = (nextSelector.getAndIncrement() & Integer.MAX_VALUE) % selectors.size();
+        NioClientManager selector = selectors.get(start);
+        for (int i = 1; i < selectors.size(); i++) {
+            NioClientManager candidate = selectors.get((start + i) % selectors.size());
+            if (candidate.getConnectedClientCount() < selector.getConnectedClientCount())
+                selector = candidate;
+        }
+        if (processingThreads != null)
+            parser = new ExecutorStreamParser(parser, processingThreads);
+        selector.openConnection(serverAddress, parser);
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager selector : selectors)
+            count += selector.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        // Take them from the busiest selectors.
+        while (n-- > 0) {
+            NioClientManager selector = selectors.get(0);
+            for (NioClientManager candidate : selectors) {
+                if (candidate.getConnectedClientCount() > selector.getConnectedClientCount())
+                    selector = candidate;
+            }
+            if (selector.getConnectedClientCount() == 0)
+                return;
+            selector.closeConnections(1);
+        }
+    }
+
+    /** Returns the number of selector threads. */
+    public int getSelectorCount() {
+        return selectors.size();
+    }
+
+    /** Returns the number of connections the given selector thread handles. */
+    public int getConnectedClientCount(int selector) {
+        return selectors.get(selector).getConnectedClientCount();
+    }
+
+    /** Returns the number of socket events the given selector thread has handled. See {@link NioClientManager#getHandledKeyCount()}. */
+    public long getHandledKeyCount(int selector) {
+        return selectors.get(selector).getHandledKeyCount();
+    }
+
+    /** Returns how long the given selector thread has spent handling socket events. See {@link NioClientManager#getBusyMillis()}. */
+    public long getBusyMillis(int selector) {
+        return selectors.get(selector).getBusyMillis();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("MultiNioClientManager:");
+        for (int i = 0; i < selectors.size(); i++) {
+            builder.append(String.format(" [%d connections, %d events, %d ms busy]", getConnectedClientCount(i),
+                    getHandledKeyCount(i), getBusyMillis(i)));
+        }
+        return builder.toString();
+    }
+}
@@ -17,6 +17,9 @@
 
 package org.bitcoinj.net;
 
+import org.bitcoinj.utils.ByteBufferPool;
+
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
@@ -108,4 +111,15 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer message, @Nullable ByteBufferPool pool, Priority priority)
+            throws IOException {
+        handler.writeTarget.writeBytes(message, pool, priority);
+    }
+
+    @Override
+    public OutboundQueueStats getOutboundQueueStats() {
+        return handler.writeTarget.getOutboundQueueStats();
+    }
 }
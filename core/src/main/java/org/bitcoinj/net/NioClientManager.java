@@ -46,6 +46,10 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
+    // Only written by the selector thread.
+    private volatile long handledKeys;
+    private volatile long busyNanos;
+
     // Handle a SelectionKey which was selected
     private void handleKey(SelectionKey key) throws IOException {
         // We could have a !isValid() key here if the connection is already closed at this point
@@ -104,12 +108,17 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
                 selector.select();
 
+                long startTime = System.nanoTime();
+                int keys = 0;
                 Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
                 while (keyIterator.hasNext()) {
                     SelectionKey key = keyIterator.next();
                     keyIterator.remove();
                     handleKey(key);
+                    keys++;
                 }
+                handledKeys += keys;
+                busyNanos += System.nanoTime() - startTime;
             }
         } catch (Exception e) {
             log.error("Error trying to open/read from connection: ", e);
@@ -163,6 +172,19 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         return connectedHandlers.size();
     }
 
+    /** Returns the number of socket events the selector thread has handled. */
+    public long getHandledKeyCount() {
+        return handledKeys;
+    }
+
+    /**
+     * Returns how long the selector thread has spent handling socket events, which includes processing the messages
+     * read unless the parsers hand that off to other threads.
+     */
+    public long getBusyMillis() {
+        return busyNanos / 1000000;
+    }
+
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+/**
+ * A snapshot of the messages waiting to be written to a connection, and of how long the ones written so far had to
+ * wait. See {@link MessageWriteTarget#getOutboundQueueStats()}.
+ */
+public class OutboundQueueStats {
+    /** The stats of a connection that writes each message before accepting the next, so never queues any. */
+    public static final OutboundQueueStats UNQUEUED = new OutboundQueueStats(0, 0, 0, 0, 0, false);
+
+    private final int queuedMessages;
+    private final long queuedBytes;
+    private final long writtenMessages;
+    private final long totalLatencyMillis;
+    private final long maxLatencyMillis;
+    private final boolean congested;
+
+    public OutboundQueueStats(int queuedMessages, long queuedBytes, long writtenMessages, long totalLatencyMillis,
+                              long maxLatencyMillis, boolean congested) {
+        this.queuedMessages = queuedMessages;
+        this.queuedBytes = queuedBytes;
+        this.writtenMessages = writtenMessages;
+        this.totalLatencyMillis = totalLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.congested = congested;
+    }
+
+    /** Returns the number of messages waiting to be written. */
+    public int getQueuedMessages() {
+        return queuedMessages;
+    }
+
+    /** Returns the number of bytes waiting to be written. */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /** Returns the number of messages written so far. */
+    public long getWrittenMessages() {
+        return writtenMessages;
+    }
+
+    /** Returns the average time from a message being queued to the last of it being handed to the OS. */
+    public double getAverageLatencyMillis() {
+        return writtenMessages == 0 ? 0 : (double) totalLatencyMillis / writtenMessages;
+    }
+
+    /** Returns the longest time from a message being queued to the last of it being handed to the OS. */
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * Returns true if so much is queued that data which can wait, such as transactions being relayed, shouldn't be
+     * sent to this connection for now. It becomes false again once most of the queue has been written.
+     */
+    public boolean isCongested() {
+        return congested;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d messages (%d bytes) queued%s, %d written, %.1f ms average latency, %d ms max",
+                queuedMessages, queuedBytes, congested ? " (congested)" : "", writtenMessages,
+                getAverageLatencyMillis(), maxLatencyMillis);
+    }
+}
@@ -30,7 +30,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -73,6 +72,11 @@ public class Script {
     // Creation time of the associated keys in seconds since the epoch.
     private long creationTimeSeconds;
 
+    // The chunks in the form the interpreter runs them, built when the script is first run.
+    private volatile DecodedProgram decodedProgram;
+    // Which standard form the program has, worked out when first asked.
+    private volatile ScriptType scriptType;
+
     /** Creates an empty script that serializes to nothing. */
     private Script() {
         chunks = Lists.newArrayList();
@@ -215,8 +219,7 @@ public class Script {
      * useful more exotic types of transaction, but today most payments are to addresses.
      */
     public boolean isSentToRawPubKey() {
-        return chunks.size() == 2 && chunks.get(1).equalsOpCode(OP_CHECKSIG) &&
-               !chunks.get(0).isOpCode() && chunks.get(0).data.length > 1;
+        return getScriptType() == ScriptType.SENT_TO_RAW_PUBKEY;
     }
 
     /**
@@ -226,12 +229,19 @@ public class Script {
      * way to make payments due to the short and recognizable base58 form addresses come in.
      */
     public boolean isSentToAddress() {
-        return chunks.size() == 5 &&
-               chunks.get(0).equalsOpCode(OP_DUP) &&
-               chunks.get(1).equalsOpCode(OP_HASH160) &&
-               chunks.get(2).data.length == Address.LENGTH &&
-               chunks.get(3).equalsOpCode(OP_EQUALVERIFY) &&
-               chunks.get(4).equalsOpCode(OP_CHECKSIG);
+        return getScriptType() == ScriptType.SENT_TO_ADDRESS;
+    }
+
+    /**
+     * Returns which of the standard forms this script has, if any. The answer is worked out from the program bytes
+     * by {@link ScriptPattern} the first time it's needed and then remembered, so the is... methods of this class
+     * are cheap to call repeatedly.
+     */
+    public ScriptType getScriptType() {
+        ScriptType type = scriptType;
+        if (type == null)
+            scriptType = type = ScriptPattern.classify(getQuickProgram());
+        return type;
     }
 
     /**
@@ -619,37 +629,14 @@ public class Script {
         // We have to check against the serialized form because BIP16 defines a P2SH output using an exact byte
         // template, not the logical program structure. Thus you can have two programs that look identical when
         // printed out but one is a P2SH script and the other isn't! :(
-        byte[] program = getProgram();
-        return program.length == 23 &&
-               (program[0] & 0xff) == OP_HASH160 &&
-               (program[1] & 0xff) == 0x14 &&
-               (program[22] & 0xff) == OP_EQUAL;
+        return getScriptType() == ScriptType.PAY_TO_SCRIPT_HASH;
     }
 
     /**
      * Returns whether this script matches the format used for multisig outputs: [n] [keys...] [m] CHECKMULTISIG
      */
     public boolean isSentToMultiSig() {
-        if (chunks.size() < 4) return false;
-        ScriptChunk chunk = chunks.get(chunks.size() - 1);
-        // Must end in OP_CHECKMULTISIG[VERIFY].
-        if (!chunk.isOpCode()) return false;
-        if (!(chunk.equalsOpCode(OP_CHECKMULTISIG) || chunk.equalsOpCode(OP_CHECKMULTISIGVERIFY))) return false;
-        try {
-            // Second to last chunk must be an OP_N opcode and there should be that many data chunks (keys).
-            ScriptChunk m = chunks.get(chunks.size() - 2);
-            if (!m.isOpCode()) return false;
-            int numKeys = decodeFromOpN(m.opcode);
-            if (numKeys < 1 || chunks.size() != 3 + numKeys) return false;
-            for (int i = 1; i < chunks.size() - 2; i++) {
-                if (chunks.get(i).isOpCode()) return false;
-            }
-            // First chunk must be an OP_N opcode too.
-            if (decodeFromOpN(chunks.get(0).opcode) < 1) return false;
-        } catch (IllegalStateException e) {
-            return false;   // Not an OP_N opcode.
-        }
-        return true;
+        return getScriptType() == ScriptType.SENT_TO_MULTISIG;
     }
 
     private static boolean equalsRange(byte[] a, int start, byte[] b) {
@@ -719,14 +706,96 @@ public class Script {
         return false;
     }
     
-    private static BigInteger castToBigInteger(byte[] chunk) throws ScriptException {
+    private static long castToLong(byte[] chunk) throws ScriptException {
         if (chunk.length > 4)
             throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+        // Little endian, with the sign in the top bit of the last byte.
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (long) (chunk[i] & 0xFF) << (8 * i);
+        if (chunk.length > 0 && (chunk[chunk.length - 1] & 0x80) != 0)
+            result = -(result & ~(0x80L << (8 * (chunk.length - 1))));
+        return result;
+    }
+
+    // The encodings of -1 to 16, which are pushed far more often than any other numbers. Shared by every script run,
+    // so they are never modified and never handed to callers, see isShared().
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        SMALL_NUMBERS[0] = new byte[] {(byte) 0x81};
+        SMALL_NUMBERS[1] = new byte[] {};
+        for (int i = 1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = new byte[] {(byte) i};
+    }
+    // What the comparison and signature checking ops push, which isn't the same as the numbers 0 and 1.
+    private static final byte[] TRUE_BYTES = new byte[] {1};
+    private static final byte[] FALSE_BYTES = new byte[] {0};
+
+    // Returns whether the element is one of the arrays above.
+    private static boolean isShared(byte[] element) {
+        if (element.length > 1)
+            return false;
+        if (element == TRUE_BYTES || element == FALSE_BYTES)
+            return true;
+        for (byte[] number : SMALL_NUMBERS) {
+            if (element == number)
+                return true;
+        }
+        return false;
+    }
+
+    /** Encodes a number the way {@link #castToLong(byte[])} decodes it, using as few bytes as possible. */
+    private static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        boolean isNegative = value < 0;
+        long magnitude = Math.abs(value);
+        byte[] buf = new byte[9];
+        int length = 0;
+        while (magnitude != 0) {
+            buf[length++] = (byte) magnitude;
+            magnitude >>>= 8;
+        }
+        // The top bit of the last byte is the sign, so if the magnitude needs it we have to add another byte.
+        if ((buf[length - 1] & 0x80) != 0)
+            buf[length++] = (byte) (isNegative ? 0x80 : 0);
+        else if (isNegative)
+            buf[length - 1] |= 0x80;
+        return Arrays.copyOf(buf, length);
     }
 
     public boolean isOpReturn() {
-        return chunks.size() == 2 && chunks.get(0).equalsOpCode(OP_RETURN);
+        return getScriptType() == ScriptType.OP_RETURN;
+    }
+
+    private static final byte[] EMPTY_DATA = new byte[0];
+
+    // The chunks flattened into arrays for the interpreter.
+    private static class DecodedProgram {
+        final int[] opcodes;
+        // The data pushed by each chunk, or null for chunks that aren't data pushes.
+        final byte[][] data;
+        final ScriptChunk[] chunks;
+
+        DecodedProgram(List<ScriptChunk> chunkList) {
+            chunks = chunkList.toArray(new ScriptChunk[chunkList.size()]);
+            opcodes = new int[chunks.length];
+            data = new byte[chunks.length][];
+            for (int i = 0; i < chunks.length; i++) {
+                opcodes[i] = chunks[i].opcode;
+                // ScriptBuilder leaves the data of OP_0 placeholders null, but they push nothing all the same.
+                if (!chunks[i].isOpCode())
+                    data[i] = chunks[i].data != null ? chunks[i].data : EMPTY_DATA;
+            }
+        }
+    }
+
+    private DecodedProgram getDecodedProgram() {
+        // Two threads may both decode the program, which is harmless.
+        DecodedProgram decoded = decodedProgram;
+        if (decoded == null)
+            decodedProgram = decoded = new DecodedProgram(chunks);
+        return decoded;
     }
 
     /**
@@ -738,25 +807,47 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, boolean enforceNullDummy) throws ScriptException {
+        ScriptStack arrayStack = new ScriptStack(stack);
+        try {
+            executeScript(txContainingThis, index, script, arrayStack, enforceNullDummy);
+        } finally {
+            stack.clear();
+            arrayStack.copyTo(stack);
+            // The caller may modify what it gets back, so it gets its own copies of the arrays every run shares.
+            for (ListIterator<byte[]> it = stack.listIterator(); it.hasNext(); ) {
+                byte[] element = it.next();
+                if (isShared(element))
+                    it.set(element.clone());
+            }
+        }
+    }
+
+    private static void executeScript(@Nullable Transaction txContainingThis, long index,
+                                      Script script, ScriptStack stack, boolean enforceNullDummy) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
-        
-        for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
-            
-            if (!chunk.isOpCode()) {
-                if (chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+        ScriptStack altstack = new ScriptStack();
+        // Instead of a stack of booleans for the OP_IF branches we're in, we track how deep we are and the depth of
+        // the outermost branch that isn't being executed, if any. Inner branches don't matter until that one ends.
+        int ifDepth = 0;
+        int firstFalseDepth = -1;
+
+        DecodedProgram program = script.getDecodedProgram();
+        for (int pc = 0; pc < program.opcodes.length; pc++) {
+            boolean shouldExecute = firstFalseDepth < 0;
+            int opcode = program.opcodes[pc];
+
+            byte[] pushData = program.data[pc];
+            if (pushData != null) {
+                if (pushData.length > MAX_SCRIPT_ELEMENT_SIZE)
                     throw new ScriptException("Attempted to push a data string larger than 520 bytes");
                 
                 if (!shouldExecute)
                     continue;
                 
-                stack.add(chunk.data);
+                stack.push(pushData);
             } else {
-                int opcode = chunk.opcode;
                 if (opcode > OP_16) {
                     opCount++;
                     if (opCount > 201)
@@ -774,32 +865,30 @@ public class Script {
                 
                 switch (opcode) {
                 case OP_IF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
-                    }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
-                    continue;
                 case OP_NOTIF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
+                    if (shouldExecute) {
+                        if (stack.size() < 1)
+                            throw new ScriptException(opcode == OP_IF ? "Attempted OP_IF on an empty stack" :
+                                    "Attempted OP_NOTIF on an empty stack");
+                        if (castToBool(stack.pop()) != (opcode == OP_IF))
+                            firstFalseDepth = ifDepth;
                     }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    ifDepth++;
                     continue;
                 case OP_ELSE:
-                    if (ifStack.isEmpty())
+                    if (ifDepth == 0)
                         throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    if (firstFalseDepth < 0)
+                        firstFalseDepth = ifDepth - 1;
+                    else if (firstFalseDepth == ifDepth - 1)
+                        firstFalseDepth = -1;
                     continue;
                 case OP_ENDIF:
-                    if (ifStack.isEmpty())
+                    if (ifDepth == 0)
                         throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    ifDepth--;
+                    if (firstFalseDepth == ifDepth)
+                        firstFalseDepth = -1;
                     continue;
                 }
                 
@@ -809,7 +898,7 @@ public class Script {
                 switch(opcode) {
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -827,14 +916,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException("OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -842,143 +931,109 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    byte[] OP2ROTtmpChunk1 = stack.remove(5);
+                    byte[] OP2ROTtmpChunk2 = stack.remove(4);
+                    stack.push(OP2ROTtmpChunk1);
+                    stack.push(OP2ROTtmpChunk2);
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    byte[] OP2SWAPtmpChunk1 = stack.remove(3);
+                    byte[] OP2SWAPtmpChunk2 = stack.remove(2);
+                    stack.push(OP2SWAPtmpChunk1);
+                    stack.push(OP2SWAPtmpChunk2);
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek(0));
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    stack.remove(1);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast()).longValue();
+                    long val = castToLong(stack.pop());
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
                     if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                        stack.push(stack.remove((int) val));
+                    else
+                        stack.push(stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    stack.push(stack.remove(2));
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    byte[] OPSWAPtmpChunk2 = stack.peek(0);
+                    stack.set(0, stack.peek(1));
+                    stack.set(1, OPSWAPtmpChunk2);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(OPSWAPtmpChunk2);
                     break;
                 case OP_CAT:
                 case OP_SUBSTR:
@@ -988,7 +1043,7 @@ public class Script {
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeNumber(stack.peek(0).length));
                     break;
                 case OP_INVERT:
                 case OP_AND:
@@ -998,12 +1053,12 @@ public class Script {
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {0});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? TRUE_BYTES : FALSE_BYTES);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException("OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1014,39 +1069,32 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast());
+                    long numericOPnum = castToLong(stack.pop());
                                         
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        numericOPnum = Math.abs(numericOPnum);
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum == 0 ? 0 : 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.push(encodeNumber(numericOPnum));
                     break;
                 case OP_2MUL:
                 case OP_2DIV:
@@ -1065,82 +1113,52 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast());
+                    long numericOPnum2 = castToLong(stack.pop());
+                    long numericOPnum1 = castToLong(stack.pop());
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.push(encodeNumber(numericOPresult));
                     break;
                 case OP_MUL:
                 case OP_DIV:
@@ -1151,38 +1169,35 @@ public class Script {
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast());
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop());
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop());
                     
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException("OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast());
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop());
+                    long OPWITHINnum2 = castToLong(stack.pop());
+                    long OPWITHINnum1 = castToLong(stack.pop());
+                    stack.push(encodeNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1190,24 +1205,21 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    byte[] sha256Input = stack.pop();
+                    stack.push(Utils.singleDigest(sha256Input, 0, sha256Input.length));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    stack.add(Utils.doubleDigest(stack.pollLast()));
+                    stack.push(Utils.doubleDigest(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
-                    lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
+                    lastCodeSepLocation = program.chunks[pc].getStartLocationInProgram() + 1;
                     break;
                 case OP_CHECKSIG:
                 case OP_CHECKSIGVERIFY:
@@ -1242,16 +1254,16 @@ public class Script {
                 throw new ScriptException("Stack size exceeded range");
         }
         
-        if (!ifStack.isEmpty())
+        if (ifDepth != 0)
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1269,7 +1281,7 @@ public class Script {
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = SignatureCache.getDefault().verify(hash, sig, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1281,17 +1293,17 @@ public class Script {
         }
 
         if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {0});
+            stack.push(sigValid ? TRUE_BYTES : FALSE_BYTES);
         else if (opcode == OP_CHECKSIGVERIFY)
             if (!sigValid)
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode, boolean enforceNullDummy) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast()).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop());
         if (pubKeyCount < 0 || pubKeyCount > 20)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1300,23 +1312,19 @@ public class Script {
         if (stack.size() < pubKeyCount + 1)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
 
-        LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
-        for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
-            pubkeys.add(pubKey);
-        }
+        byte[][] pubkeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++)
+            pubkeys[i] = stack.pop();
 
-        int sigCount = castToBigInteger(stack.pollLast()).intValue();
+        int sigCount = (int) castToLong(stack.pop());
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
 
-        LinkedList<byte[]> sigs = new LinkedList<byte[]>();
-        for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
-            sigs.add(sig);
-        }
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++)
+            sigs[i] = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1331,34 +1339,37 @@ public class Script {
             connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
         }
 
+        // Each signature must match one of the keys, in order, so we walk both lists checking each key at most once.
         boolean valid = true;
-        while (sigs.size() > 0) {
-            byte[] pubKey = pubkeys.pollFirst();
+        int nextSig = 0;
+        int nextPubKey = 0;
+        while (nextSig < sigCount) {
+            byte[] pubKey = pubkeys[nextPubKey++];
             // We could reasonably move this out of the loop, but because signature verification is significantly
             // more expensive than hashing, its not a big deal.
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
+                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs[nextSig], false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
-                    sigs.pollFirst();
+                if (SignatureCache.getDefault().verify(hash, sig, pubKey))
+                    nextSig++;
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
                 // Because I can't verify there aren't more, we use a very generic Exception catch
             }
 
-            if (sigs.size() > pubkeys.size()) {
+            if (sigCount - nextSig > pubKeyCount - nextPubKey) {
                 valid = false;
                 break;
             }
         }
 
         // We uselessly remove a stack object to emulate a reference client bug.
-        byte[] nullDummy = stack.pollLast();
+        byte[] nullDummy = stack.pop();
         if (enforceNullDummy && nullDummy.length > 0)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {0});
+            stack.push(valid ? TRUE_BYTES : FALSE_BYTES);
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
@@ -1397,21 +1408,33 @@ public class Script {
         } catch (ProtocolException e) {
             throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
         }
+        correctlySpendsInPlace(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+    }
+
+    /**
+     * Like {@link #correctlySpends(Transaction, long, Script, Set)}, but runs against txContainingThis itself instead
+     * of a copy of it. The transaction is only used through {@link Transaction#hashForSignature(int, byte[], byte)},
+     * which is synchronized and puts it back as it was, so several threads verifying different inputs may share one
+     * copy, as long as nothing else touches it meanwhile. If this throws anything but a {@link ScriptException} the
+     * transaction may be left half edited.
+     */
+    public void correctlySpendsInPlace(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                       Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
+        ScriptStack stack = new ScriptStack();
+        ScriptStack p2shStack = null;
         
         executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags.contains(VerifyFlag.NULLDUMMY));
         if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<byte[]>(stack);
+            p2shStack = stack.copy();
         executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags.contains(VerifyFlag.NULLDUMMY));
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
         
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.pop()))
             throw new ScriptException("Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1432,7 +1455,7 @@ public class Script {
                 if (chunk.isOpCode() && chunk.opcode > OP_16)
                     throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
             executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags.contains(VerifyFlag.NULLDUMMY));
@@ -1440,11 +1463,54 @@ public class Script {
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.pop()))
                 throw new ScriptException("P2SH script execution resulted in a non-true stack");
         }
     }
 
+    /**
+     * <p>If this script (interpreted as a scriptSig) and scriptPubKey have the plain pay to address form, that is this
+     * script pushes a signature and a public key that hashes to the address, returns the one signature check that
+     * whether this script correctly spends scriptPubKey comes down to. Otherwise returns null and the scripts have to
+     * be run by {@link #correctlySpends(Transaction, long, Script, Set)}.</p>
+     *
+     * <p>This lets the signatures of many inputs be verified together with
+     * {@link ECKey#verify(List, java.util.concurrent.ExecutorService)}. A failed check doesn't say what is wrong with
+     * the input, so run the scripts for that. txContainingThis is used as by
+     * {@link #correctlySpendsInPlace(Transaction, long, Script, Set)}.</p>
+     */
+    @Nullable
+    public ECKey.SignatureCheck getPayToAddressSignatureCheck(Transaction txContainingThis, int scriptSigIndex,
+                                                              Script scriptPubKey) {
+        if (!scriptPubKey.isSentToAddress())
+            return null;
+        DecodedProgram program = getDecodedProgram();
+        if (program.data.length != 2 || program.data[0] == null || program.data[1] == null)
+            return null;
+        byte[] sigBytes = program.data[0];
+        byte[] pubKey = program.data[1];
+        if (sigBytes.length > MAX_SCRIPT_ELEMENT_SIZE || pubKey.length > MAX_SCRIPT_ELEMENT_SIZE)
+            return null;
+        if (!Arrays.equals(Utils.sha256hash160(pubKey), scriptPubKey.getPubKeyHash()))
+            return null;
+        // As OP_CHECKSIG does it, for the whole of scriptPubKey.
+        UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
+        try {
+            writeBytes(outStream, sigBytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen
+        }
+        byte[] connectedScript = removeAllInstancesOf(scriptPubKey.getProgram(), outStream.toByteArray());
+        try {
+            TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigBytes, false);
+            Sha256Hash hash = txContainingThis.hashForSignature(scriptSigIndex, connectedScript, (byte) sig.sighashFlags);
+            return new ECKey.SignatureCheck(hash.getBytes(), sig, pubKey);
+        } catch (Exception e) {
+            // OP_CHECKSIG treats any of these as an invalid signature, leave the scripts to say so.
+            return null;
+        }
+    }
+
     // Utility that doesn't copy for internal use
     private byte[] getQuickProgram() {
         if (program != null)
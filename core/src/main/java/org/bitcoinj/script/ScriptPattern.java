@@ -0,0 +1,182 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.Address;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>Recognises the standard forms of scriptPubKey directly from the program bytes, without parsing them into
+ * {@link ScriptChunk}s. The result is the same as asking a {@link Script} built from the bytes, for example
+ * {@link Script#isSentToAddress()}, but this is much cheaper when all that's needed is to decide whether an output is
+ * relevant, as the wallet does for every output it sees.</p>
+ *
+ * <p>The templates match the logical program, so a key or hash pushed with a longer than necessary PUSHDATA still
+ * matches, except for P2SH which BIP16 defines as an exact byte pattern.</p>
+ */
+public class ScriptPattern {
+    private ScriptPattern() {
+    }
+
+    /** Returns which standard form the program has, or {@link ScriptType#NON_STANDARD} if it can't be parsed. */
+    public static ScriptType classify(byte[] program) {
+        int length = program.length;
+        // The exact encodings that nearly every real output uses.
+        if (length == 25 && (program[0] & 0xff) == OP_DUP && (program[1] & 0xff) == OP_HASH160 &&
+                program[2] == Address.LENGTH && (program[23] & 0xff) == OP_EQUALVERIFY &&
+                (program[24] & 0xff) == OP_CHECKSIG)
+            return ScriptType.SENT_TO_ADDRESS;
+        if (isPayToScriptHash(program))
+            return ScriptType.PAY_TO_SCRIPT_HASH;
+        if ((length == 35 || length == 67) && program[0] == length - 2 && (program[length - 1] & 0xff) == OP_CHECKSIG)
+            return ScriptType.SENT_TO_RAW_PUBKEY;
+
+        // Otherwise walk the chunks, remembering where the ones the templates look at start.
+        int chunks = 0;
+        int first = -1, second = -1, third = -1, secondToLast = -1, last = -1;
+        // How many chunks after the first one are data pushes, up to the first one that isn't.
+        int pushesAfterFirst = 0;
+        int pos = 0;
+        while (pos < length) {
+            int next = nextChunk(program, pos);
+            if (next < 0)
+                return ScriptType.NON_STANDARD;
+            if (chunks == 0)
+                first = pos;
+            else if (chunks == 1)
+                second = pos;
+            else if (chunks == 2)
+                third = pos;
+            if (chunks > 0 && pushesAfterFirst == chunks - 1 && isPush(program, pos))
+                pushesAfterFirst++;
+            secondToLast = last;
+            last = pos;
+            chunks++;
+            pos = next;
+        }
+
+        if (chunks == 5 && opcode(program, first) == OP_DUP && opcode(program, second) == OP_HASH160 &&
+                isPush(program, third) && dataLength(program, third) == Address.LENGTH &&
+                opcode(program, secondToLast) == OP_EQUALVERIFY && opcode(program, last) == OP_CHECKSIG)
+            return ScriptType.SENT_TO_ADDRESS;
+        if (chunks == 2 && opcode(program, second) == OP_CHECKSIG && isPush(program, first) &&
+                dataLength(program, first) > 1)
+            return ScriptType.SENT_TO_RAW_PUBKEY;
+        if (chunks == 2 && opcode(program, first) == OP_RETURN)
+            return ScriptType.OP_RETURN;
+        if (chunks >= 4) {
+            int lastOpcode = opcode(program, last);
+            int m = opcode(program, secondToLast);
+            int n = opcode(program, first);
+            if ((lastOpcode == OP_CHECKMULTISIG || lastOpcode == OP_CHECKMULTISIGVERIFY) &&
+                    m >= OP_1 && m <= OP_16 && chunks == 3 + Script.decodeFromOpN(m) &&
+                    pushesAfterFirst >= chunks - 3 && n >= OP_1 && n <= OP_16)
+                return ScriptType.SENT_TO_MULTISIG;
+        }
+        return ScriptType.NON_STANDARD;
+    }
+
+    /**
+     * Returns whether the program is exactly HASH160 &lt;20 bytes&gt; EQUAL. See {@link Script#isPayToScriptHash()}.
+     */
+    public static boolean isPayToScriptHash(byte[] program) {
+        return program.length == 23 &&
+               (program[0] & 0xff) == OP_HASH160 &&
+               (program[1] & 0xff) == 0x14 &&
+               (program[22] & 0xff) == OP_EQUAL;
+    }
+
+    /**
+     * Returns the hash in a {@link ScriptType#SENT_TO_ADDRESS} or {@link ScriptType#PAY_TO_SCRIPT_HASH} program, or
+     * null if the program is neither.
+     */
+    @Nullable
+    public static byte[] extractHash(byte[] program) {
+        switch (classify(program)) {
+            case SENT_TO_ADDRESS:
+                // The hash is the third chunk.
+                int third = nextChunk(program, nextChunk(program, 0));
+                return extractData(program, third);
+            case PAY_TO_SCRIPT_HASH:
+                return Arrays.copyOfRange(program, 2, 22);
+            default:
+                return null;
+        }
+    }
+
+    /** Returns the public key in a {@link ScriptType#SENT_TO_RAW_PUBKEY} program, or null if it isn't one. */
+    @Nullable
+    public static byte[] extractPubKey(byte[] program) {
+        if (classify(program) != ScriptType.SENT_TO_RAW_PUBKEY)
+            return null;
+        return extractData(program, 0);
+    }
+
+    private static int opcode(byte[] program, int pos) {
+        return program[pos] & 0xff;
+    }
+
+    // Whether the chunk at pos pushes data, that is, it wouldn't be an opcode chunk in Script.
+    private static boolean isPush(byte[] program, int pos) {
+        return opcode(program, pos) <= OP_PUSHDATA4;
+    }
+
+    // The size of the opcode and length prefix of the push at pos.
+    private static int headerLength(byte[] program, int pos) {
+        switch (opcode(program, pos)) {
+            case OP_PUSHDATA1: return 2;
+            case OP_PUSHDATA2: return 3;
+            case OP_PUSHDATA4: return 5;
+            default: return 1;
+        }
+    }
+
+    // The length of the data pushed by the well formed push at pos.
+    private static long dataLength(byte[] program, int pos) {
+        int opcode = opcode(program, pos);
+        if (opcode < OP_PUSHDATA1)
+            return opcode;
+        else if (opcode == OP_PUSHDATA1)
+            return program[pos + 1] & 0xff;
+        else if (opcode == OP_PUSHDATA2)
+            return (program[pos + 1] & 0xff) | ((program[pos + 2] & 0xff) << 8);
+        else
+            return (program[pos + 1] & 0xffL) | ((program[pos + 2] & 0xffL) << 8) |
+                   ((program[pos + 3] & 0xffL) << 16) | ((program[pos + 4] & 0xffL) << 24);
+    }
+
+    private static byte[] extractData(byte[] program, int pos) {
+        int start = pos + headerLength(program, pos);
+        return Arrays.copyOfRange(program, start, start + (int) dataLength(program, pos));
+    }
+
+    // Returns where the chunk starting at pos ends, or -1 if it runs past the end of the program. The same checks as
+    // Script does when it parses a program.
+    private static int nextChunk(byte[] program, int pos) {
+        if (!isPush(program, pos))
+            return pos + 1;
+        int header = headerLength(program, pos);
+        if (pos + header > program.length)
+            return -1;
+        long end = pos + header + dataLength(program, pos);
+        return end > program.length ? -1 : (int) end;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The stack used by the script interpreter, backed by an array. Positions are counted from the top, so position 0 is
+ * the last element pushed. Callers check there are enough elements before popping or peeking.
+ */
+class ScriptStack {
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        elements = new byte[16][];
+    }
+
+    ScriptStack(Collection<byte[]> from) {
+        elements = from.toArray(new byte[Math.max(16, from.size())][]);
+        size = from.size();
+    }
+
+    int size() {
+        return size;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    byte[] peek(int position) {
+        return elements[size - 1 - position];
+    }
+
+    /** Removes the element at the given position from the top and returns it. */
+    byte[] remove(int position) {
+        int index = size - 1 - position;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, position);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Replaces the element at the given position from the top. */
+    void set(int position, byte[] element) {
+        elements[size - 1 - position] = element;
+    }
+
+    ScriptStack copy() {
+        ScriptStack copy = new ScriptStack();
+        copy.elements = Arrays.copyOf(elements, elements.length);
+        copy.size = size;
+        return copy;
+    }
+
+    /** Appends the elements to the given collection, bottom first. */
+    void copyTo(Collection<byte[]> to) {
+        for (int i = 0; i < size; i++)
+            to.add(elements[i]);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.asList(elements).subList(0, size).toString();
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+/**
+ * The standard forms of scriptPubKey, as recognised by {@link ScriptPattern#classify(byte[])} and
+ * {@link Script#getScriptType()}.
+ */
+public enum ScriptType {
+    /** DUP HASH160 &lt;pubkey hash&gt; EQUALVERIFY CHECKSIG, see {@link Script#isSentToAddress()}. */
+    SENT_TO_ADDRESS,
+    /** HASH160 &lt;script hash&gt; EQUAL, see {@link Script#isPayToScriptHash()}. */
+    PAY_TO_SCRIPT_HASH,
+    /** &lt;pubkey&gt; CHECKSIG, see {@link Script#isSentToRawPubKey()}. */
+    SENT_TO_RAW_PUBKEY,
+    /** [n] [keys...] [m] CHECKMULTISIG, see {@link Script#isSentToMultiSig()}. */
+    SENT_TO_MULTISIG,
+    /** OP_RETURN followed by one data element, see {@link Script#isOpReturn()}. */
+    OP_RETURN,
+    /** Anything else, including programs that can't be parsed. */
+    NON_STANDARD
+}
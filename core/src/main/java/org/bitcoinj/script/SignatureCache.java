@@ -0,0 +1,235 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) triples have already been found valid, so that a
+ * transaction whose scripts were checked when it was relayed doesn't have its signatures checked again when it
+ * turns up in a block. {@link Script} consults the cache returned by {@link #getDefault()} for every
+ * OP_CHECKSIG and OP_CHECKMULTISIG.</p>
+ *
+ * <p>Only valid signatures are stored, so a peer can't fill the cache with junk without paying for real signatures.
+ * Entries are keyed by a SHA-256 of the triple mixed with a random salt chosen per cache. They are spread by key
+ * over up to {@link #MAX_STRIPES} stripes, each with its own lock and an equal share of the size limit, so threads
+ * verifying in parallel rarely wait for each other. Each stripe drops its least recently used entries once it is
+ * full. All methods are thread safe.</p>
+ */
+public class SignatureCache {
+    /** The default size limit, enough for about a quarter of a million signatures. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Approximate heap cost of one entry: the 32 byte key and its {@link Sha256Hash} wrapper plus the map entry
+     * that holds it.
+     */
+    public static final int BYTES_PER_ENTRY = 128;
+
+    /** The most stripes a cache is split into. */
+    public static final int MAX_STRIPES = 16;
+
+    // A cache is only split while each stripe still gets this many entries, so small caches keep a single stripe.
+    private static final long MIN_STRIPE_ENTRIES = 1024;
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+    private final byte[] salt = new byte[32];
+    private final Stripe[] stripes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Entries in least recently used order, locked on itself. */
+    private static class Stripe extends LinkedHashMap<Sha256Hash, Boolean> {
+        private final long maxEntries;
+
+        Stripe(long maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    /** Creates a cache that holds at most maxBytes worth of entries, see {@link #BYTES_PER_ENTRY}. */
+    public SignatureCache(long maxBytes) {
+        checkArgument(maxBytes >= BYTES_PER_ENTRY, "maxBytes too small to hold any entries: %s", maxBytes);
+        this.maxBytes = maxBytes;
+        new SecureRandom().nextBytes(salt);
+        long maxEntries = maxBytes / BYTES_PER_ENTRY;
+        int count = 1;
+        while (count < MAX_STRIPES && maxEntries / (count * 2) >= MIN_STRIPE_ENTRIES)
+            count *= 2;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe(maxEntries / count);
+    }
+
+    /** Returns the cache used by {@link Script}. */
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by {@link Script}. */
+    public static void setDefault(SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Returns whether the signature is valid for the given signature hash and public key, as
+     * {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} would, but without verifying it again if it was
+     * already found valid.
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        // Fake signatures must not leave anything behind once they're switched off again.
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        Sha256Hash key = key(sigHash, signature, pubKey);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            if (stripe.get(key) != null) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        // Verify outside the lock, this is the slow part.
+        if (!ECKey.verify(sigHash.getBytes(), signature, pubKey))
+            return false;
+        synchronized (stripe) {
+            stripe.put(key, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether each signature is valid, in the same order as the checks, as
+     * {@link ECKey#verify(List, java.util.concurrent.ExecutorService)} would without an executor, but only verifying
+     * those that weren't already found valid. The data of each check must be a 32 byte signature hash.
+     */
+    public boolean[] verify(List<ECKey.SignatureCheck> checks) {
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(checks, null);
+        boolean[] results = new boolean[checks.size()];
+        Sha256Hash[] keys = new Sha256Hash[checks.size()];
+        List<ECKey.SignatureCheck> missed = new ArrayList<ECKey.SignatureCheck>();
+        for (int i = 0; i < checks.size(); i++) {
+            ECKey.SignatureCheck check = checks.get(i);
+            keys[i] = key(new Sha256Hash(check.data), check.signature, check.pubKey);
+            Stripe stripe = stripe(keys[i]);
+            synchronized (stripe) {
+                results[i] = stripe.get(keys[i]) != null;
+            }
+            if (!results[i])
+                missed.add(check);
+        }
+        hits.addAndGet(checks.size() - missed.size());
+        misses.addAndGet(missed.size());
+        if (missed.isEmpty())
+            return results;
+        boolean[] verified = ECKey.verify(missed, null);
+        for (int i = 0, j = 0; i < checks.size(); i++) {
+            if (results[i])
+                continue;
+            results[i] = verified[j++];
+            if (results[i]) {
+                Stripe stripe = stripe(keys[i]);
+                synchronized (stripe) {
+                    stripe.put(keys[i], Boolean.TRUE);
+                }
+            }
+        }
+        return results;
+    }
+
+    private Stripe stripe(Sha256Hash key) {
+        // The keys are uniformly distributed. The first byte isn't one of those the maps hash on.
+        return stripes[key.getBytes()[0] & (stripes.length - 1)];
+    }
+
+    private Sha256Hash key(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        byte[] der = signature.encodeToDER();
+        // The public key is length prefixed, the DER encoding already delimits itself.
+        byte[] buf = new byte[salt.length + 32 + 1 + pubKey.length + der.length];
+        int offset = 0;
+        System.arraycopy(salt, 0, buf, offset, salt.length);
+        offset += salt.length;
+        System.arraycopy(sigHash.getBytes(), 0, buf, offset, 32);
+        offset += 32;
+        buf[offset++] = (byte) pubKey.length;
+        System.arraycopy(pubKey, 0, buf, offset, pubKey.length);
+        offset += pubKey.length;
+        System.arraycopy(der, 0, buf, offset, der.length);
+        return new Sha256Hash(Utils.singleDigest(buf, 0, buf.length));
+    }
+
+    /** Number of lookups that found the signature already verified. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Number of lookups that had to verify the signature. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Number of signatures currently remembered. */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /** The size limit this cache was created with. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Forgets all signatures, but not the hit and miss counts. */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d signatures cached of at most %d in %d stripes, %d hits, %d misses",
+                size(), maxBytes / BYTES_PER_ENTRY, stripes.length, hits.get(), misses.get());
+    }
+}
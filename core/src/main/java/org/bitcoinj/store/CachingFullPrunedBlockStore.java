@@ -0,0 +1,613 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps a bounded cache of unspent outputs in front of another store, and
+ * holds back writes to it so they reach it in bulk. It makes the database stores usable for a full sync, where
+ * otherwise every input costs a SELECT and every output an INSERT and a DELETE.</p>
+ *
+ * <p>Outputs that are added are only marked dirty in the cache. An output the other store never saw is marked
+ * fresh as well, and if it is spent before the next flush it is simply dropped, so the many outputs that are spent
+ * within a few blocks of being created never reach the other store at all. Outputs that are looked up and found
+ * missing are remembered too, as most of the lookups made for the BIP30 check are.</p>
+ *
+ * <p>Batches commit to this store only. Everything committed since the last flush, including headers, undo blocks
+ * and chain heads, is written to the other store in a single batch of its own once the cache grows past its size
+ * limit or enough commits have gone by, and on {@link #flush()} and {@link #close()}. The other store is therefore
+ * always consistent, but if the process dies the blocks since the last flush are lost and have to be downloaded
+ * again.</p>
+ *
+ * <p>A new output that isn't from a coinbase is taken to be one the other store doesn't have, which the BIP30 check
+ * in {@link FullPrunedBlockChain} ensures. Like {@link MappedFullPrunedBlockStore}, only one thread may have a batch
+ * open at a time, and other threads don't see it.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default size limit of the cache, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024 * 1024;
+    /** The default number of commits after which writes are flushed even if the cache has room. */
+    public static final int DEFAULT_MAX_UNFLUSHED_COMMITS = 2000;
+
+    // Approximate heap cost of a cache entry, not counting the script: the map entry, the outpoint and its hash, the
+    // entry and the output with its hash and value.
+    private static final int ENTRY_BYTES = 300;
+
+    private final FullPrunedBlockStore store;
+    private final long maxBytes;
+    private final int maxUnflushedCommits;
+
+    // Entries in least recently used order.
+    private final LinkedHashMap<StoredTransactionOutPoint, Entry> cache =
+            new LinkedHashMap<StoredTransactionOutPoint, Entry>(16, 0.75f, true);
+    private long cacheBytes;
+    private int dirtyEntries;
+
+    // Committed writes other than outputs that the other store hasn't seen yet, in the order they were made, and the
+    // heads they leave, null where the other store's still stands.
+    private final LinkedHashMap<Sha256Hash, BlockWrite> blockWrites = new LinkedHashMap<Sha256Hash, BlockWrite>();
+    @Nullable private StoredBlock chainHead;
+    @Nullable private StoredBlock verifiedChainHead;
+    private long blockWriteBytes;
+    private int unflushedCommits;
+
+    private Batch batch;
+    private Thread batchOwner;
+    private boolean closed;
+
+    private long hits;
+    private long misses;
+    private long flushes;
+
+    /**
+     * What the cache knows about an outpoint. Either the other store doesn't have an output there (output is null),
+     * it has the output (not dirty), or the cache has changed it: added an output (not spent) or spent the output
+     * the other store has (spent). A fresh entry was added where the other store has nothing.
+     */
+    private static class Entry {
+        @Nullable final StoredTransactionOutput output;
+        final boolean spent;
+        final boolean dirty;
+        final boolean fresh;
+
+        Entry(@Nullable StoredTransactionOutput output, boolean spent, boolean dirty, boolean fresh) {
+            this.output = output;
+            this.spent = spent;
+            this.dirty = dirty;
+            this.fresh = fresh;
+        }
+
+        @Nullable
+        StoredTransactionOutput unspent() {
+            return spent ? null : output;
+        }
+
+        int bytes() {
+            return ENTRY_BYTES + (output == null ? 0 : output.getScriptBytes().length);
+        }
+    }
+
+    private static class BlockWrite {
+        final StoredBlock block;
+        @Nullable final StoredUndoableBlock undoableBlock;
+
+        BlockWrite(StoredBlock block, @Nullable StoredUndoableBlock undoableBlock) {
+            this.block = block;
+            this.undoableBlock = undoableBlock;
+        }
+    }
+
+    private static class HeadWrite {
+        final StoredBlock head;
+        final boolean verified;
+
+        HeadWrite(StoredBlock head, boolean verified) {
+            this.head = head;
+            this.verified = verified;
+        }
+    }
+
+    /** Writes that have not been committed yet. Changes to outputs go straight into the cache. */
+    private static class Batch {
+        final boolean implicit;
+        // The cache entries as they were before the batch changed them, null for none.
+        final Map<StoredTransactionOutPoint, Entry> previous = new HashMap<StoredTransactionOutPoint, Entry>();
+        final LinkedHashMap<Sha256Hash, BlockWrite> blockWrites = new LinkedHashMap<Sha256Hash, BlockWrite>();
+        final List<HeadWrite> headWrites = new ArrayList<HeadWrite>();
+
+        Batch(boolean implicit) {
+            this.implicit = implicit;
+        }
+    }
+
+    /** Caches the given store with the default limits. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_MAX_BYTES, DEFAULT_MAX_UNFLUSHED_COMMITS);
+    }
+
+    /**
+     * Caches the given store.
+     * @param maxBytes roughly how much heap the cache and the writes held back from the store may take
+     * @param maxUnflushedCommits how many commits may go by before writes are flushed to the store regardless
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxBytes, int maxUnflushedCommits) {
+        checkArgument(maxBytes > 0 && maxUnflushedCommits > 0);
+        this.store = store;
+        this.maxBytes = maxBytes;
+        this.maxUnflushedCommits = maxUnflushedCommits;
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Batch batch = startWrite();
+        batch.blockWrites.put(block.getHeader().getHash(), new BlockWrite(block, null));
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Batch batch = startWrite();
+        batch.blockWrites.put(storedBlock.getHeader().getHash(), new BlockWrite(storedBlock, undoableBlock));
+        finishWrite(batch);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        BlockWrite write = blockWrite(hash);
+        return write != null ? write.block : store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockWrite write = blockWrite(hash);
+        if (write != null)
+            return write.undoableBlock != null ? write.block : null;
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockWrite write = blockWrite(hash);
+        if (write != null && write.undoableBlock != null)
+            return write.undoableBlock;
+        return store.getUndoBlock(hash);
+    }
+
+    @Nullable
+    private BlockWrite blockWrite(Sha256Hash hash) {
+        Batch batch = pending();
+        BlockWrite write = batch == null ? null : batch.blockWrites.get(hash);
+        return write != null ? write : blockWrites.get(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        StoredBlock head = lastHead(false);
+        return head != null ? head : store.getChainHead();
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch batch = startWrite();
+        batch.headWrites.add(new HeadWrite(chainHead, false));
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        StoredBlock head = lastHead(true);
+        return head != null ? head : store.getVerifiedChainHead();
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch batch = startWrite();
+        batch.headWrites.add(new HeadWrite(chainHead, true));
+        finishWrite(batch);
+    }
+
+    // Returns the head the calling thread would see written last, or null if there is none waiting to be flushed.
+    @Nullable
+    private StoredBlock lastHead(boolean verified) throws BlockStoreException {
+        StoredBlock head = verified ? verifiedChainHead : chainHead;
+        Batch batch = pending();
+        if (batch != null) {
+            for (HeadWrite write : batch.headWrites)
+                head = headAfter(head, write, verified);
+        }
+        return head;
+    }
+
+    // Returns the head once the write is made, given the one before it. Setting the verified chain head can move the
+    // chain head too.
+    @Nullable
+    private StoredBlock headAfter(@Nullable StoredBlock head, HeadWrite write, boolean verified) throws BlockStoreException {
+        if (write.verified == verified)
+            return write.head;
+        if (!verified) {
+            StoredBlock current = head != null ? head : store.getChainHead();
+            if (current.getHeight() < write.head.getHeight())
+                return write.head;
+        }
+        return head;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Entry entry = lookup(new StoredTransactionOutPoint(hash, index));
+        return entry.unspent();
+    }
+
+    // Returns what the calling thread should see at the outpoint, asking the store if the cache doesn't know.
+    private Entry lookup(StoredTransactionOutPoint outPoint) throws BlockStoreException {
+        Entry entry = cache.get(outPoint);
+        // Another thread mustn't see what an open batch did.
+        boolean hidden = batch != null && pending() == null && batch.previous.containsKey(outPoint);
+        if (hidden)
+            entry = batch.previous.get(outPoint);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        entry = new Entry(store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex()), false, false, false);
+        if (!hidden) {
+            setEntry(outPoint, entry);
+            // Within a batch the cache is trimmed when it commits.
+            if (batch == null)
+                trim();
+        }
+        return entry;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch batch = startWrite();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        Entry entry = cache.get(outPoint);
+        boolean fresh;
+        if (entry == null) {
+            // Only a coinbase can repeat an earlier transaction, see BIP30.
+            fresh = !out.isCoinbase() || store.getTransactionOutput(out.getHash(), out.getIndex()) == null;
+        } else if (entry.dirty) {
+            fresh = entry.fresh;
+        } else {
+            fresh = entry.output == null;
+        }
+        change(batch, outPoint, new Entry(out, false, true, fresh));
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        Entry entry = lookup(outPoint);
+        if (entry.unspent() == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        Batch batch = startWrite();
+        if (entry.fresh) {
+            // The store never saw it, so it need never know.
+            change(batch, outPoint, new Entry(null, false, false, false));
+        } else {
+            change(batch, outPoint, new Entry(entry.output, true, true, false));
+        }
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        // Usually none of the outputs are known, and one question to the store answers for all of them.
+        boolean allKnown = true;
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+            Entry entry = cache.get(outPoint);
+            if (batch != null && pending() == null && batch.previous.containsKey(outPoint))
+                entry = batch.previous.get(outPoint);
+            if (entry == null)
+                allKnown = false;
+            else if (entry.unspent() != null)
+                return true;
+        }
+        if (allKnown || !store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        // The store has some, but the cache may know they were spent.
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void prefetchTransactionOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        // What another thread's batch hides can't be cached for it, so only the batch owner or anyone when there is
+        // no batch may prefetch.
+        if (batch != null && pending() == null)
+            return;
+        List<TransactionOutPoint> missing = new ArrayList<TransactionOutPoint>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            if (!cache.containsKey(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex())))
+                missing.add(outPoint);
+        }
+        if (missing.isEmpty())
+            return;
+        // The other store may only keep what it prefetched for the length of a batch. Nothing is written in this one.
+        store.beginDatabaseBatchWrite();
+        try {
+            store.prefetchTransactionOutputs(missing);
+            for (TransactionOutPoint outPoint : missing)
+                lookup(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex()));
+        } finally {
+            store.abortDatabaseBatchWrite();
+        }
+        // Within a batch the cache is trimmed when it commits.
+        if (batch == null)
+            trim();
+    }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        // Simplest to have the store do it once it has everything.
+        flush();
+        store.visitUnspentTransactionOutputs(visitor);
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batch != null && batchOwner == Thread.currentThread())
+            return;
+        if (batch != null)
+            throw new BlockStoreException("Another thread has a batch write open");
+        batch = new Batch(false);
+        batchOwner = Thread.currentThread();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        if (batch == null)
+            return;
+        this.batch = null;
+        batchOwner = null;
+        for (Map.Entry<Sha256Hash, BlockWrite> write : batch.blockWrites.entrySet()) {
+            BlockWrite old = blockWrites.remove(write.getKey());
+            if (old != null)
+                blockWriteBytes -= bytes(old);
+            blockWrites.put(write.getKey(), write.getValue());
+            blockWriteBytes += bytes(write.getValue());
+        }
+        for (HeadWrite write : batch.headWrites) {
+            chainHead = headAfter(chainHead, write, false);
+            verifiedChainHead = headAfter(verifiedChainHead, write, true);
+        }
+        unflushedCommits++;
+        if (cacheBytes + blockWriteBytes > maxBytes)
+            trim();
+        if (cacheBytes + blockWriteBytes > maxBytes || unflushedCommits >= maxUnflushedCommits) {
+            flush();
+            trim();
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        Batch batch = pending();
+        if (batch == null)
+            return;
+        rollBack(batch);
+    }
+
+    // Closes the batch, whichever thread has it open, and puts back the cache entries it changed.
+    private void rollBack(Batch batch) {
+        this.batch = null;
+        batchOwner = null;
+        for (Map.Entry<StoredTransactionOutPoint, Entry> previous : batch.previous.entrySet())
+            setEntry(previous.getKey(), previous.getValue());
+    }
+
+    /**
+     * Writes everything committed to this store through to the other store, in one batch. Must not be called with a
+     * batch write open.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (batch != null)
+            throw new BlockStoreException("Cannot flush with a batch write open");
+        long startTime = System.currentTimeMillis();
+        int outputs = dirtyEntries;
+        store.beginDatabaseBatchWrite();
+        try {
+            for (BlockWrite write : blockWrites.values()) {
+                if (write.undoableBlock != null)
+                    store.put(write.block, write.undoableBlock);
+                else
+                    store.put(write.block);
+            }
+            // Spends first, so that an output that replaces one the store has can be added after it's removed.
+            for (Entry entry : cache.values()) {
+                if (entry.dirty && (entry.spent || !entry.fresh))
+                    store.removeUnspentTransactionOutput(entry.output);
+            }
+            for (Entry entry : cache.values()) {
+                if (entry.dirty && !entry.spent)
+                    store.addUnspentTransactionOutput(entry.output);
+            }
+            // Only the last heads matter. The verified one goes first, as setting it may move the chain head.
+            if (verifiedChainHead != null)
+                store.setVerifiedChainHead(verifiedChainHead);
+            if (chainHead != null)
+                store.setChainHead(chainHead);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        for (Map.Entry<StoredTransactionOutPoint, Entry> entry : cache.entrySet()) {
+            Entry old = entry.getValue();
+            if (old.dirty) {
+                Entry flushed = new Entry(old.spent ? null : old.output, false, false, false);
+                entry.setValue(flushed);
+                cacheBytes += flushed.bytes() - old.bytes();
+            }
+        }
+        dirtyEntries = 0;
+        blockWrites.clear();
+        blockWriteBytes = 0;
+        chainHead = null;
+        verifiedChainHead = null;
+        unflushedCommits = 0;
+        flushes++;
+        log.info("Flushed {} outputs to the store in {} ms", outputs, System.currentTimeMillis() - startTime);
+    }
+
+    // Drops the least recently used entries that the store already agrees with, until the cache is under its limit.
+    private void trim() {
+        Iterator<Map.Entry<StoredTransactionOutPoint, Entry>> it = cache.entrySet().iterator();
+        while (cacheBytes + blockWriteBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (!entry.dirty) {
+                it.remove();
+                cacheBytes -= entry.bytes();
+            }
+        }
+    }
+
+    // Changes an entry, remembering what it was before so that the batch can be aborted.
+    private void change(Batch batch, StoredTransactionOutPoint outPoint, Entry entry) {
+        if (!batch.previous.containsKey(outPoint))
+            batch.previous.put(outPoint, cache.get(outPoint));
+        setEntry(outPoint, entry);
+    }
+
+    private void setEntry(StoredTransactionOutPoint outPoint, @Nullable Entry entry) {
+        Entry old = entry == null ? cache.remove(outPoint) : cache.put(outPoint, entry);
+        if (old != null) {
+            cacheBytes -= old.bytes();
+            if (old.dirty)
+                dirtyEntries--;
+        }
+        if (entry != null) {
+            cacheBytes += entry.bytes();
+            if (entry.dirty)
+                dirtyEntries++;
+        }
+    }
+
+    private static long bytes(BlockWrite write) {
+        long bytes = ENTRY_BYTES;
+        StoredUndoableBlock undoableBlock = write.undoableBlock;
+        if (undoableBlock == null)
+            return bytes;
+        if (undoableBlock.getTransactions() != null) {
+            for (Transaction tx : undoableBlock.getTransactions())
+                bytes += tx.getMessageSize();
+        } else {
+            TransactionOutputChanges changes = undoableBlock.getTxOutChanges();
+            for (StoredTransactionOutput out : changes.txOutsCreated)
+                bytes += ENTRY_BYTES + out.getScriptBytes().length;
+            for (StoredTransactionOutput out : changes.txOutsSpent)
+                bytes += ENTRY_BYTES + out.getScriptBytes().length;
+        }
+        return bytes;
+    }
+
+    // Returns the batch of the calling thread, if it has one.
+    @Nullable
+    private Batch pending() {
+        return batchOwner == Thread.currentThread() ? batch : null;
+    }
+
+    // Returns the batch to make a write in, starting one of its own if the caller hasn't.
+    private Batch startWrite() throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        if (batch != null)
+            return batch;
+        if (this.batch != null)
+            throw new BlockStoreException("Another thread has a batch write open");
+        this.batch = batch = new Batch(true);
+        batchOwner = Thread.currentThread();
+        return batch;
+    }
+
+    private void finishWrite(Batch batch) throws BlockStoreException {
+        if (batch.implicit)
+            commitDatabaseBatchWrite();
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("CachingFullPrunedBlockStore is closed");
+    }
+
+    /** Number of output lookups the cache answered. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Number of output lookups that had to ask the other store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Number of times writes were flushed to the other store. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Number of outpoints the cache knows about. */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Flushes everything committed to the other store and closes it. A batch write still open, even on another thread,
+     * is aborted, and any later writes fail.
+     */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        if (batch != null)
+            rollBack(batch);
+        closed = true;
+        flush();
+        store.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("%d outputs cached (%d dirty) in %d KB, %d hits, %d misses (%.1f%% hit rate), %d flushes",
+                cache.size(), dirtyEntries, cacheBytes / 1024, hits, misses,
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups, flushes);
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * <p>A {@link MemoryFullPrunedBlockStore} that keeps the unspent outputs packed into memory outside the Java heap,
+ * instead of as objects in a hash map. An output takes about its script length plus 70 bytes, and the garbage
+ * collector has nothing to trace for it, so full verification of testnet sized chains fits in a modest heap. The
+ * direct memory it takes is limited by the JVM's -XX:MaxDirectMemorySize option.</p>
+ *
+ * <p>Batch writes behave as they do in {@link MemoryFullPrunedBlockStore}: the outputs a thread changes in its batch
+ * are held on the heap, and only it sees them until it commits.</p>
+ */
+public class CompactMemoryFullPrunedBlockStore extends MemoryFullPrunedBlockStore {
+    private OffHeapOutputMap outputs = new OffHeapOutputMap();
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /** The outputs a thread has added and removed in its current batch write. */
+    private static class Batch {
+        final HashMap<StoredTransactionOutPoint, StoredTransactionOutput> added =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final HashSet<StoredTransactionOutPoint> removed = new HashSet<StoredTransactionOutPoint>();
+    }
+
+    /**
+     * Set up the CompactMemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public CompactMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        super(params, fullStoreDepth);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "CompactMemoryFullPrunedBlockStore is closed");
+        Batch batch = this.batch.get();
+        if (batch != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = batch.added.get(outPoint);
+            if (out != null)
+                return out;
+            if (batch.removed.contains(outPoint))
+                return null;
+        }
+        return outputs.get(hash, index);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "CompactMemoryFullPrunedBlockStore is closed");
+        Batch batch = this.batch.get();
+        if (batch != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            batch.removed.remove(outPoint);
+            batch.added.put(outPoint, out);
+        } else {
+            outputs.put(out);
+        }
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "CompactMemoryFullPrunedBlockStore is closed");
+        Batch batch = this.batch.get();
+        boolean removed;
+        if (batch != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            boolean stored = !batch.removed.contains(outPoint) && outputs.get(out.getHash(), out.getIndex()) != null;
+            if (stored)
+                batch.removed.add(outPoint);
+            removed = batch.added.remove(outPoint) != null || stored;
+        } else {
+            removed = outputs.remove(out.getHash(), out.getIndex());
+        }
+        if (!removed)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CompactMemoryFullPrunedBlockStore that it didn't have!");
+    }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "CompactMemoryFullPrunedBlockStore is closed");
+        outputs.visit(visitor);
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        super.beginDatabaseBatchWrite();
+        batch.set(new Batch());
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        super.commitDatabaseBatchWrite();
+        Batch batch = this.batch.get();
+        this.batch.remove();
+        if (batch == null)
+            return;
+        for (StoredTransactionOutPoint outPoint : batch.removed)
+            outputs.remove(outPoint.getHash(), outPoint.getIndex());
+        for (StoredTransactionOutput out : batch.added.values())
+            outputs.put(out);
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        super.abortDatabaseBatchWrite();
+        batch.remove();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        if (outputs != null)
+            outputs.clear();
+        outputs = null;
+    }
+
+    /** Returns the number of unspent outputs committed to the store. */
+    public synchronized int getOutputCount() {
+        Preconditions.checkNotNull(outputs, "CompactMemoryFullPrunedBlockStore is closed");
+        return outputs.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CompactMemoryFullPrunedBlockStore with " + outputs;
+    }
+}
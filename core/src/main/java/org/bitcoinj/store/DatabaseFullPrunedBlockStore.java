@@ -19,7 +19,9 @@ package org.bitcoinj.store;
 
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
-import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +32,13 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
@@ -84,6 +93,11 @@ import java.util.*;
  * </table>
  * </p>
  *
+ * <p>Undoable blocks that fall more than fullStoreDepth blocks behind the verified chain head are deleted by a
+ * background thread on its own connection, a small range of heights per statement with pauses in between. Requests
+ * to prune that arrive while it is busy are merged into one. Databases that lock whole tables, such as H2 1.3, make
+ * connecting a block wait while a delete statement runs (at most until the lock timeout), so the ranges are kept
+ * short to bound that wait rather than to remove it.</p>
  */
 public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
@@ -110,12 +124,20 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_UNDOABLEBLOCKS_SQL                       = "SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?";
     private static final String INSERT_UNDOABLEBLOCKS_SQL                       = "INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions) VALUES(?, ?, ?, ?)";
     private static final String UPDATE_UNDOABLEBLOCKS_SQL                       = "UPDATE undoableBlocks SET txOutChanges=?, transactions=? WHERE hash = ?";
-    private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableBlocks WHERE height <= ?";
+    private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableBlocks WHERE height > ? AND height <= ?";
+    private static final String SELECT_UNDOABLEBLOCKS_SIZE_SQL                  = "SELECT COALESCE(SUM(OCTET_LENGTH(txOutChanges)), 0) + COALESCE(SUM(OCTET_LENGTH(transactions)), 0) FROM undoableBlocks WHERE height > ? AND height <= ?";
+    private static final String SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL            = "SELECT MIN(height) FROM undoableBlocks";
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptBytes, coinbase FROM openOutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_PREFETCH_SQL                 = "SELECT hash, index, height, value, scriptBytes, coinbase FROM openOutputs WHERE ";
+    private static final String SELECT_OPENOUTPUTS_PREFETCH_CONDITION_SQL       = "(hash = ? AND index = ?)";
+    private static final String SELECT_OPENOUTPUTS_VISIT_SQL                    = "SELECT hash, index, height, value, scriptBytes, coinbase FROM openOutputs";
+
+    // The number of outputs looked up by each query of prefetchTransactionOutputs.
+    private static final int PREFETCH_BATCH_SIZE = 100;
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -142,12 +164,35 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected NetworkParameters params;
     protected ThreadLocal<Connection> conn;
     protected List<Connection> allConnections;
+    protected ThreadLocal<Map<String, PreparedStatement>> statements;
+    private final ThreadLocal<PendingOutputs> pendingOutputs = new ThreadLocal<PendingOutputs>() {
+        @Override
+        protected PendingOutputs initialValue() {
+            return new PendingOutputs();
+        }
+    };
     protected String connectionURL;
     protected int fullStoreDepth;
     protected String username;
     protected String password;
     protected String schemaName;
 
+    // The most heights of undoable blocks deleted by one statement. Kept small, as the statement may lock the table
+    // that connecting a block writes to.
+    private static final int PRUNE_BLOCKS_PER_STATEMENT = 10;
+    // Undoable blocks may be deleted up to this height. Raised by setVerifiedChainHead.
+    private volatile int pruneTarget = -1;
+    // Undoable blocks have been deleted up to this height, or if null, up to somewhere unknown. Only the pruning
+    // thread changes it, apart from resetStore.
+    private volatile Integer prunedHeight;
+    // Held by the pruning thread for each delete statement and by resetStore, so that a reset never lands in the
+    // middle of one and has its pruneTarget and prunedHeight overwritten by it.
+    private final ReentrantLock pruneLock = Threading.lock("pruner");
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean();
+    private final AtomicLong prunedBlocks = new AtomicLong();
+    private final AtomicLong prunedBytes = new AtomicLong();
+    private final ExecutorService pruner = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -170,6 +215,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.password = password;
         this.conn = new ThreadLocal<Connection>();
         this.allConnections = new LinkedList<Connection>();
+        this.statements = new ThreadLocal<Map<String, PreparedStatement>>() {
+            @Override
+            protected Map<String, PreparedStatement> initialValue() {
+                return new HashMap<String, PreparedStatement>();
+            }
+        };
 
         try {
             Class.forName(getDatabaseDriverClass());
@@ -353,13 +404,31 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     }
 
     /**
-     * Get the SQL to delete a undoableblocks record.
+     * Get the SQL to delete the undoableblocks records in a range of heights, above the first parameter and up to
+     * the second.
      * @return The SQL delete statement.
      */
     protected String getDeleteUndoableBlocksSQL() {
         return DELETE_UNDOABLEBLOCKS_SQL;
     }
 
+    /**
+     * Get the SQL to select the total size of the undoableblocks records in a range of heights, like
+     * {@link #getDeleteUndoableBlocksSQL()}.
+     * @return The SQL select statement.
+     */
+    protected String getSelectUndoableBlocksSizeSQL() {
+        return SELECT_UNDOABLEBLOCKS_SIZE_SQL;
+    }
+
+    /**
+     * Get the SQL to select the lowest height of the undoableblocks records.
+     * @return The SQL select statement.
+     */
+    protected String getSelectUndoableBlocksMinHeightSQL() {
+        return SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL;
+    }
+
     /**
      * Get the SQL to select a openoutputs record.
      * @return The SQL select statement.
@@ -392,6 +461,42 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select several openoutputs records at once. The parameters are the hash and index of each
+     * output in turn.
+     * @param count The number of outputs to select.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsPrefetchSQL(int count) {
+        return getSelectOpenoutputsPrefetchSQL(SELECT_OPENOUTPUTS_PREFETCH_SQL, SELECT_OPENOUTPUTS_PREFETCH_CONDITION_SQL, count);
+    }
+
+    /**
+     * Get the SQL to select all openoutputs records.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsVisitSQL() {
+        return SELECT_OPENOUTPUTS_VISIT_SQL;
+    }
+
+    /**
+     * Get the number of rows the driver should fetch at a time when all openoutputs records are selected.
+     * @return The fetch size, as given to {@link Statement#setFetchSize(int)}.
+     */
+    protected int getOpenoutputsVisitFetchSize() {
+        return 1000;
+    }
+
+    protected static String getSelectOpenoutputsPrefetchSQL(String select, String condition, int count) {
+        StringBuilder sql = new StringBuilder(select);
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                sql.append(" OR ");
+            sql.append(condition);
+        }
+        return sql.toString();
+    }
+
     /**
      * Get the SQL to select the setting dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -443,6 +548,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 conn.set(DriverManager.getConnection(connectionURL, props));
             }
             allConnections.add(conn.get());
+            statements.get().clear();
             Connection connection = conn.get();
             // set the schema if one is needed
             if (schemaName != null) {
@@ -457,8 +563,45 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * <p>Returns a prepared statement for the given SQL on this thread's connection, preparing it only the first time.
+     * The statement stays open for reuse, so callers must not close it.</p>
+     */
+    protected PreparedStatement prepareStatement(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statements.get();
+        PreparedStatement s = cache.get(sql);
+        if (s == null || s.isClosed()) {
+            s = conn.get().prepareStatement(sql);
+            cache.put(sql, s);
+        }
+        return s;
+    }
+
+    // Statements from prepareStatement stay open, so their results have to be closed on their own.
+    private static void closeResultSet(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Failed to close ResultSet");
+            }
+        }
+    }
+
     @Override
-    public synchronized void close() {
+    public void close() {
+        // Before taking the lock, which the pruning thread may be waiting for.
+        pruner.shutdown();
+        try {
+            if (!pruner.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("Gave up waiting for undoable blocks to be pruned");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnections();
+    }
+
+    private synchronized void closeConnections() {
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
@@ -473,6 +616,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        statements.get().clear();
     }
 
     /**
@@ -621,8 +765,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertHeadersSQL());
+            PreparedStatement s = prepareStatement(getInsertHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
@@ -632,21 +775,19 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if  (!(e.getSQLState().equals(getDuplicateKeyErrorCode())) || !wasUndoable)
                 throw e;
 
-            PreparedStatement s = conn.get().prepareStatement(getUpdateHeadersSQL());
+            PreparedStatement s = prepareStatement(getUpdateHeadersSQL());
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -692,8 +833,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+                PreparedStatement s = prepareStatement(getInsertUndoableBlocksSQL());
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -704,7 +844,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -715,8 +854,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     throw new BlockStoreException(e);
 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                PreparedStatement s = prepareStatement(getUpdateUndoableBlocksSQL());
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -726,7 +864,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -740,15 +877,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
+            PreparedStatement s = prepareStatement(getSelectHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -773,13 +909,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
@@ -796,16 +926,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectUndoableBlocksSQL());
+            PreparedStatement s = prepareStatement(getSelectUndoableBlocksSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
 
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -847,13 +976,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
@@ -869,12 +992,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = prepareStatement(getUpdateSettingsSLQ());
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -892,125 +1013,273 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = prepareStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        schedulePruning(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    // Has the pruning thread delete the undoable blocks up to the given height, unless it is already going to.
+    private void schedulePruning(int height) {
+        if (height <= pruneTarget)
+            return;
+        pruneTarget = height;
+        startPruning();
+    }
+
+    private void startPruning() {
+        if (pruneScheduled.compareAndSet(false, true)) {
+            try {
+                pruner.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prune();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed.
+                pruneScheduled.set(false);
+            }
+        }
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+    private void prune() {
+        boolean failed = true;
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteUndoableBlocksSQL());
-            s.setInt(1, height);
-            if (log.isDebugEnabled())
-                log.debug("Deleting undoable undoable block with height <= " + height);
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+            maybeConnect();
+            while (!pruner.isShutdown()) {
+                long startTime = System.nanoTime();
+                int to;
+                pruneLock.lock();
+                try {
+                    if (prunedHeight == null)
+                        prunedHeight = selectMinUndoableBlockHeight() - 1;
+                    int from = prunedHeight;
+                    if (from >= pruneTarget)
+                        break;
+                    to = Math.min(pruneTarget, from + PRUNE_BLOCKS_PER_STATEMENT);
+                    pruneRange(from, to);
+                    // Last, as the backlog is worked out from it.
+                    prunedHeight = to;
+                } finally {
+                    pruneLock.unlock();
+                }
+                // Leave the database to block connection at least half of the time.
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                if (to < pruneTarget && elapsedMillis > 0)
+                    Thread.sleep(elapsedMillis);
+            }
+            failed = false;
+        } catch (SQLException e) {
+            log.warn("Failed to prune undoable blocks", e);
+        } catch (BlockStoreException e) {
+            log.warn("Failed to prune undoable blocks", e);
+        } catch (InterruptedException e) {
+            return;
+        } finally {
+            pruneScheduled.set(false);
+        }
+        // A new target may have come in just as the loop ended. After a failure, wait for the next one.
+        Integer pruned = prunedHeight;
+        if (!failed && pruned != null && pruned < pruneTarget)
+            startPruning();
+    }
+
+    // Deletes the undoable blocks with heights above from and up to to.
+    private void pruneRange(int from, int to) throws SQLException {
+        PreparedStatement s = prepareStatement(getSelectUndoableBlocksSizeSQL());
+        s.setInt(1, from);
+        s.setInt(2, to);
+        long bytes;
+        ResultSet results = s.executeQuery();
+        try {
+            bytes = results.next() ? results.getLong(1) : 0;
+        } finally {
+            results.close();
         }
+        s = prepareStatement(getDeleteUndoableBlocksSQL());
+        s.setInt(1, from);
+        s.setInt(2, to);
+        int blocks = s.executeUpdate();
+        prunedBlocks.addAndGet(blocks);
+        prunedBytes.addAndGet(bytes);
+        if (log.isDebugEnabled())
+            log.debug("Deleted {} undoable blocks with heights {} to {}", blocks, from + 1, to);
+    }
+
+    private int selectMinUndoableBlockHeight() throws SQLException {
+        PreparedStatement s = prepareStatement(getSelectUndoableBlocksMinHeightSQL());
+        ResultSet results = s.executeQuery();
+        try {
+            return results.next() && results.getObject(1) != null ? results.getInt(1) : pruneTarget + 1;
+        } finally {
+            results.close();
+        }
+    }
+
+    /** Returns the number of undoable blocks the pruning thread has deleted. */
+    public long getPrunedBlocks() {
+        return prunedBlocks.get();
+    }
+
+    /** Returns the number of bytes of undo data the pruning thread has deleted. */
+    public long getPrunedBytes() {
+        return prunedBytes.get();
+    }
+
+    /** Returns how many heights of undoable blocks are waiting for the pruning thread to delete them. */
+    public int getPruneBacklog() {
+        Integer pruned = prunedHeight;
+        return pruned == null ? Math.max(0, pruneTarget + 1) : Math.max(0, pruneTarget - pruned);
     }
 
     @Override
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        StoredTransactionOutput added = pending.added.get(outPoint);
+        if (added != null)
+            return added;
+        if (pending.removed.contains(outPoint))
+            return null;
+        if (pending.loaded.containsKey(outPoint))
+            return pending.loaded.get(outPoint);
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = prepareStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            results = s.executeQuery();
+            StoredTransactionOutput txout = null;
+            if (results.next()) {
+                // Parse it.
+                int height = results.getInt(1);
+                Coin value = Coin.valueOf(results.getLong(2));
+                byte[] scriptBytes = results.getBytes(3);
+                boolean coinbase = results.getBoolean(4);
+                txout = new StoredTransactionOutput(hash, index, value, height, coinbase, scriptBytes);
             }
-            // Parse it.
-            int height = results.getInt(1);
-            Coin value = Coin.valueOf(results.getLong(2));
-            byte[] scriptBytes = results.getBytes(3);
-            boolean coinbase = results.getBoolean(4);
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, coinbase, scriptBytes);
+            // Within a batch write, removing it will very likely ask again.
+            if (pending.inBatch)
+                pending.loaded.put(outPoint, txout);
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
+    /**
+     * <p>Looks up the given outputs with as few queries as possible, so that {@link #getTransactionOutput(Sha256Hash, long)}
+     * doesn't need to ask the database for them. The results are kept until the current batch write ends, and
+     * nothing is done outside of one.</p>
+     *
+     * <p>Call this with all the outputs a block spends before connecting it.</p>
+     */
     @Override
-    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+    public void prefetchTransactionOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
-
-        // Calculate the toAddress (if any)
-        String dbAddress = "";
-        int type = 0;
-        Script outputScript = null;
-        try {
-            outputScript = new Script(out.getScriptBytes());
+        PendingOutputs pending = pendingOutputs.get();
+        if (!pending.inBatch)
+            return;
+        List<StoredTransactionOutPoint> missing = new ArrayList<StoredTransactionOutPoint>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+            if (!pending.added.containsKey(key) && !pending.removed.contains(key) && !pending.loaded.containsKey(key)) {
+                // Until found, it isn't there.
+                if (pending.loaded.put(key, null) == null)
+                    missing.add(key);
+            }
         }
-        catch (ScriptException e) {
-            // Unparseable, but this isn't an error - it's an output not containing an address
-            log.info("Could not parse script for output: " + out.getHash().toString());
+        try {
+            selectOpenOutputs(missing, pending.loaded);
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
         }
-        if (outputScript != null && (outputScript.isSentToAddress()
-                || outputScript.isSentToRawPubKey()
-                || outputScript.isPayToScriptHash())) {
-            if (outputScript.isSentToAddress()) {
-                Address targetAddr = new Address(params, outputScript.getPubKeyHash());
-                dbAddress = targetAddr.toString();
-                type = 1;
+    }
+
+    // Puts the outputs among the given ones that are in the database into the map, with one query for each
+    // PREFETCH_BATCH_SIZE of them.
+    private void selectOpenOutputs(List<StoredTransactionOutPoint> outPoints,
+                                   Map<StoredTransactionOutPoint, StoredTransactionOutput> found) throws SQLException {
+        // Queries always look for PREFETCH_BATCH_SIZE outputs, repeating the last one if need be, so that there
+        // is only one statement to prepare.
+        PreparedStatement s = prepareStatement(getSelectOpenoutputsPrefetchSQL(PREFETCH_BATCH_SIZE));
+        for (int start = 0; start < outPoints.size(); start += PREFETCH_BATCH_SIZE) {
+            for (int i = 0; i < PREFETCH_BATCH_SIZE; i++) {
+                StoredTransactionOutPoint key = outPoints.get(Math.min(start + i, outPoints.size() - 1));
+                s.setBytes(2 * i + 1, key.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2 * i + 2, (int) key.getIndex());
             }
-            else if (outputScript.isSentToRawPubKey()) {
-                /*
-                 *   Note we use the deprecated getFromAddress here.  Coinbase outputs seem to have the target address
-                 *   in the pubkey of the script - perhaps we can rename this function?
-                 */
-                dbAddress = outputScript.getFromAddress(params).toString();
-                type = 2;
-            } else {
-                dbAddress = Address.fromP2SHHash(params, outputScript.getPubKeyHash()).toString();
-                type = 3;
+            ResultSet results = s.executeQuery();
+            try {
+                while (results.next()) {
+                    Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    int height = results.getInt(3);
+                    Coin value = Coin.valueOf(results.getLong(4));
+                    byte[] scriptBytes = results.getBytes(5);
+                    boolean coinbase = results.getBoolean(6);
+                    found.put(new StoredTransactionOutPoint(hash, index),
+                            new StoredTransactionOutput(hash, index, value, height, coinbase, scriptBytes));
+                }
+            } finally {
+                results.close();
             }
         }
+    }
 
+    @Override
+    public void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        Connection connection = conn.get();
+        Statement s = null;
+        boolean restoreAutoCommit = false;
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
-            s.setBoolean(8, out.isCoinbase());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
-                throw new BlockStoreException(e);
+            // Some drivers (Postgres) ignore the fetch size and read every row up front unless there is a transaction.
+            if (connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+            s = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Ask for the rows a few at a time rather than all at once.
+            s.setFetchSize(getOpenoutputsVisitFetchSize());
+            ResultSet results = s.executeQuery(getSelectOpenoutputsVisitSQL());
+            while (results.next()) {
+                Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                long index = results.getInt(2) & 0xFFFFFFFFL;
+                int height = results.getInt(3);
+                Coin value = Coin.valueOf(results.getLong(4));
+                byte[] scriptBytes = results.getBytes(5);
+                boolean coinbase = results.getBoolean(6);
+                visitor.visit(new StoredTransactionOutput(hash, index, value, height, coinbase, scriptBytes));
+            }
+            results.close();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
         } finally {
             if (s != null) {
                 try {
                     s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Could not close statement");
+                }
+            }
+            if (restoreAutoCommit) {
+                try {
+                    // Nothing was written.
+                    connection.rollback();
+                    connection.setAutoCommit(true);
                 } catch (SQLException e) {
                     throw new BlockStoreException(e);
                 }
@@ -1018,25 +1287,122 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        maybeConnect();
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending.inBatch) {
+            pending.added.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
+        try {
+            PreparedStatement s = prepareStatement(getInsertOpenoutputsSQL());
+            setInsertOpenoutputsParameters(s, out);
+            s.executeUpdate();
+        } catch (SQLException e) {
+            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
+                throw new BlockStoreException(e);
+        }
+    }
+
+    private void setInsertOpenoutputsParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        // Calculate the toAddress (if any), straight from the script bytes as this happens for every output.
+        String dbAddress = "";
+        int type = 0;
+        byte[] scriptBytes = out.getScriptBytes();
+        switch (ScriptPattern.classify(scriptBytes)) {
+            case SENT_TO_ADDRESS:
+                dbAddress = new Address(params, ScriptPattern.extractHash(scriptBytes)).toString();
+                type = 1;
+                break;
+            case SENT_TO_RAW_PUBKEY:
+                // Coinbase outputs seem to have the target address in the pubkey of the script.
+                dbAddress = new Address(params, Utils.sha256hash160(ScriptPattern.extractPubKey(scriptBytes))).toString();
+                type = 2;
+                break;
+            case PAY_TO_SCRIPT_HASH:
+                dbAddress = Address.fromP2SHHash(params, ScriptPattern.extractHash(scriptBytes)).toString();
+                type = 3;
+                break;
+            default:
+                // Not an output containing an address.
+                break;
+        }
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, scriptBytes);
+        s.setString(6, dbAddress);
+        s.setInt(7, type);
+        s.setBoolean(8, out.isCoinbase());
+    }
+
     @Override
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from DatabaseFullPrunedBlockStore that it didn't have!");
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending.inBatch) {
+            // Usually answered by what was loaded when the spending transaction was checked.
+            if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from DatabaseFullPrunedBlockStore that it didn't have!");
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            pending.added.remove(outPoint);
+            pending.removed.add(outPoint);
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
+            PreparedStatement s = prepareStatement(getDeleteOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            if (s.executeUpdate() == 0)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from DatabaseFullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Writes the outputs removed and added in the current batch write, with one round trip for each.
+    private void writePendingOutputs(PendingOutputs pending) throws SQLException {
+        if (!pending.removed.isEmpty()) {
+            PreparedStatement s = prepareStatement(getDeleteOpenoutputsSQL());
+            for (StoredTransactionOutPoint outPoint : pending.removed) {
+                s.setBytes(1, outPoint.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) outPoint.getIndex());
+                s.addBatch();
+            }
+            s.executeBatch();
+        }
+        if (!pending.added.isEmpty()) {
+            // Outputs that are already stored (duplicated transactions) are left as they are, as when inserting them
+            // one at a time. They have to be left out of the batch: a driver may stop at the first failing row and
+            // some databases then abort the whole transaction.
+            List<StoredTransactionOutPoint> unknown = new ArrayList<StoredTransactionOutPoint>();
+            for (StoredTransactionOutPoint outPoint : pending.added.keySet()) {
+                if (!pending.removed.contains(outPoint) && !pending.loaded.containsKey(outPoint)) {
+                    pending.loaded.put(outPoint, null);
+                    unknown.add(outPoint);
+                }
+            }
+            selectOpenOutputs(unknown, pending.loaded);
+            PreparedStatement s = prepareStatement(getInsertOpenoutputsSQL());
+            boolean any = false;
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : pending.added.entrySet()) {
+                StoredTransactionOutPoint outPoint = entry.getKey();
+                if (!pending.removed.contains(outPoint) && pending.loaded.get(outPoint) != null)
+                    continue;
+                setInsertOpenoutputsParameters(s, entry.getValue());
+                s.addBatch();
+                any = true;
+            }
+            if (any)
+                s.executeBatch();
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1044,6 +1410,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             log.debug("Starting database batch write with connection: " + conn.get().toString());
         try {
             conn.get().setAutoCommit(false);
+            PendingOutputs pending = pendingOutputs.get();
+            pending.clear();
+            pending.inBatch = true;
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1054,11 +1423,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        PendingOutputs pending = pendingOutputs.get();
         try {
+            writePendingOutputs(pending);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            pending.clear();
         }
     }
 
@@ -1067,6 +1440,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        pendingOutputs.get().clear();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1082,27 +1456,35 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        boolean anyRemoved = false;
+        for (int i = 0; i < numOutputs && !(pending.added.isEmpty() && pending.removed.isEmpty()); i++) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+            if (pending.added.containsKey(outPoint))
+                return true;
+            anyRemoved |= pending.removed.contains(outPoint);
+        }
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = prepareStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            if (count == 0 || !anyRemoved)
+                return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
+        // Some of them were removed in this batch write, so look at them one by one.
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
     }
 
     /**
@@ -1111,12 +1493,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void resetStore() throws BlockStoreException {
         maybeConnect();
+        // Waits for any delete statement the pruning thread is running, which then finds nothing left to prune.
+        pruneLock.lock();
         try {
             deleteStore();
             createTables();
+            pruneTarget = -1;
+            prunedHeight = null;
             initFromDatabase();
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            pruneLock.unlock();
         }
     }
 
@@ -1351,4 +1739,22 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
         s.close();
     }
+
+    /** The outputs a thread has added, removed and looked up during its current batch write. */
+    private static class PendingOutputs {
+        final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> added =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final LinkedHashSet<StoredTransactionOutPoint> removed = new LinkedHashSet<StoredTransactionOutPoint>();
+        // A null value means the output isn't in the database.
+        final HashMap<StoredTransactionOutPoint, StoredTransactionOutput> loaded =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        boolean inBatch;
+
+        void clear() {
+            added.clear();
+            removed.clear();
+            loaded.clear();
+            inBatch = false;
+        }
+    }
 }
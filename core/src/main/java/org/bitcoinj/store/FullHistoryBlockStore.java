@@ -0,0 +1,469 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A block store that keeps every header it is given, unlike {@link SPVBlockStore} which forgets old ones. Headers
+ * are appended to a memory mapped file of fixed size records. A second file holds a hash table of them, and a third
+ * the record of the best chain at each height, so that {@link #getByHeight(int)} and {@link #get(Sha256Hash)} are
+ * both a couple of reads from memory. Walks of thousands of headers, like the ones for difficulty transitions and
+ * block locators, make use of that through {@link StoredBlock#getAncestor(BlockStore, int)}.</p>
+ *
+ * <p>The files live in a directory of their own. Only the headers file matters: the other two are rebuilt from it
+ * if they are missing or were left half written.</p>
+ */
+public class FullHistoryBlockStore implements HeightIndexedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(FullHistoryBlockStore.class);
+
+    public static final String HEADERS_MAGIC = "FHBS";
+    public static final String INDEX_MAGIC = "FHBI";
+    public static final String HEIGHTS_MAGIC = "FHBH";
+
+    private static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    // Files grow by doubling from this many records.
+    private static final int MIN_RECORDS = 64 * 1024;
+
+    // Headers file format:
+    //   4 header bytes = "FHBS"
+    //   4 bytes of the number of records
+    //   32 bytes of the hash of the chain head
+    // and from PROLOGUE_BYTES on, for each header, 32 bytes of its hash and its compact serialization.
+    //
+    // Index file format:
+    //   4 header bytes = "FHBI"
+    //   4 bytes that are non-zero while a write is in progress
+    //   4 bytes of the number of records indexed
+    //   4 bytes of the number of slots
+    // and from PROLOGUE_BYTES on, a hash table of 4 byte entries, using linear probing, of record numbers plus one,
+    // or zero if empty.
+    //
+    // Heights file format:
+    //   4 header bytes = "FHBH"
+    //   4 bytes that are non-zero while a write is in progress
+    //   4 bytes of the record number of the chain head the table was written for
+    //   4 bytes of the number of heights there is room for
+    // and from PROLOGUE_BYTES on, the record number plus one of the block of the best chain at each height.
+    private static final int PROLOGUE_BYTES = 64;
+    private static final int COUNT_OFFSET = 4;
+    private static final int CHAIN_HEAD_OFFSET = 8;
+    private static final int DIRTY_OFFSET = 4;
+    private static final int INDEXED_OFFSET = 8;
+    private static final int SLOTS_OFFSET = 12;
+    private static final int HEAD_RECORD_OFFSET = 8;
+    private static final int HEIGHTS_OFFSET = 12;
+
+    private final NetworkParameters params;
+    private final ReentrantLock lock = Threading.lock("FullHistoryBlockStore");
+
+    private RandomAccessFile headersFile;
+    private RandomAccessFile indexFile;
+    private RandomAccessFile heightsFile;
+    // Stops other processes opening the store.
+    private FileLock fileLock;
+    private MappedByteBuffer headers;
+    private MappedByteBuffer index;
+    private MappedByteBuffer heights;
+
+    private int count;
+    private StoredBlock chainHead;
+    private int chainHeadRecord;
+
+    /**
+     * Opens the store in the given directory, creating it if it doesn't exist. This operation will block on disk,
+     * and can take a while if the index has to be rebuilt.
+     */
+    public FullHistoryBlockStore(NetworkParameters params, File directory) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        try {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            headersFile = new RandomAccessFile(new File(directory, "headers"), "rw");
+            fileLock = headersFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            boolean exists = headersFile.length() > 0;
+            if (exists) {
+                headers = map(headersFile, headersFile.length());
+                if (!HEADERS_MAGIC.equals(readMagic(headers)))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADERS_MAGIC);
+                count = headers.getInt(COUNT_OFFSET);
+                if (count <= 0 || recordOffset(count) > headers.capacity())
+                    throw new BlockStoreException("Corrupted block store: bad record count " + count);
+            } else {
+                headers = map(headersFile, recordOffset(MIN_RECORDS));
+                headers.put(HEADERS_MAGIC.getBytes("US-ASCII"));
+                // Whatever is left of an earlier store would only be rebuilt.
+                new File(directory, "index").delete();
+                new File(directory, "heights").delete();
+            }
+            openIndex(new File(directory, "index"));
+            if (exists) {
+                byte[] hash = new byte[32];
+                headers.position(CHAIN_HEAD_OFFSET);
+                headers.get(hash);
+                chainHeadRecord = findRecord(hash);
+                if (chainHeadRecord < 0)
+                    throw new BlockStoreException("Corrupted block store: could not find chain head: " + new Sha256Hash(hash));
+                chainHead = readRecord(chainHeadRecord);
+                openHeights(new File(directory, "heights"));
+            } else {
+                openHeights(new File(directory, "heights"));
+                Block genesis = params.getGenesisBlock().cloneAsHeader();
+                StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                put(storedGenesis);
+                setChainHead(storedGenesis);
+            }
+        } catch (Exception e) {
+            closeFiles();
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void openIndex(File file) throws IOException {
+        indexFile = new RandomAccessFile(file, "rw");
+        boolean valid = indexFile.length() >= PROLOGUE_BYTES;
+        if (valid) {
+            index = map(indexFile, indexFile.length());
+            int slots = index.getInt(SLOTS_OFFSET);
+            valid = INDEX_MAGIC.equals(readMagic(index)) && index.getInt(DIRTY_OFFSET) == 0
+                    && slots > 0 && Integer.bitCount(slots) == 1 && indexFile.length() == PROLOGUE_BYTES + 4L * slots
+                    && index.getInt(INDEXED_OFFSET) <= count;
+        }
+        if (!valid) {
+            log.info("Rebuilding the index of {}", file);
+            rebuildIndex(Math.max(MIN_RECORDS, Integer.highestOneBit(count) * 4));
+            return;
+        }
+        // Records that were written but didn't make it into the index before the process stopped.
+        for (int record = index.getInt(INDEXED_OFFSET); record < count; record++)
+            indexRecord(record);
+        index.putInt(INDEXED_OFFSET, count);
+    }
+
+    private void openHeights(File file) throws IOException {
+        heightsFile = new RandomAccessFile(file, "rw");
+        if (heightsFile.length() >= PROLOGUE_BYTES + 4 * MIN_RECORDS) {
+            heights = map(heightsFile, heightsFile.length());
+            int capacity = heights.getInt(HEIGHTS_OFFSET);
+            if (chainHead != null && HEIGHTS_MAGIC.equals(readMagic(heights)) && heights.getInt(DIRTY_OFFSET) == 0
+                    && heightsFile.length() == PROLOGUE_BYTES + 4L * capacity
+                    && heights.getInt(HEAD_RECORD_OFFSET) == chainHeadRecord + 1)
+                return;
+        } else {
+            heights = map(heightsFile, PROLOGUE_BYTES + 4 * MIN_RECORDS);
+        }
+        heights.position(0);
+        heights.put(HEIGHTS_MAGIC.getBytes("US-ASCII"));
+        heights.putInt(DIRTY_OFFSET, 1);
+        heights.putInt(HEIGHTS_OFFSET, (heights.capacity() - PROLOGUE_BYTES) / 4);
+        clear(heights);
+        if (chainHead != null) {
+            log.info("Rebuilding the heights of {}", file);
+            indexHeights(chainHead, chainHeadRecord);
+            heights.putInt(HEAD_RECORD_OFFSET, chainHeadRecord + 1);
+        }
+        heights.putInt(DIRTY_OFFSET, 0);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (recordOffset(count + 1) > headers.capacity())
+                headers = map(headersFile, PROLOGUE_BYTES + 2L * count * RECORD_SIZE);
+            headers.position(recordOffset(count));
+            headers.put(block.getHeader().getHash().getBytes());
+            block.serializeCompact(headers);
+            // The record only counts once it's complete, and the index catches up with it on opening if need be.
+            count++;
+            headers.putInt(COUNT_OFFSET, count);
+            if (2L * count > index.getInt(SLOTS_OFFSET)) {
+                rebuildIndex(index.getInt(SLOTS_OFFSET) * 2);
+            } else {
+                indexRecord(count - 1);
+                index.putInt(INDEXED_OFFSET, count);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int record = findRecord(hash.getBytes());
+            return record < 0 ? null : readRecord(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (height < 0 || height > chainHead.getHeight())
+                return null;
+            int entry = heights.getInt(heightOffset(height));
+            return entry == 0 ? null : readRecord(entry - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of headers in the store, including any that were stored more than once. */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            byte[] hash = chainHead.getHeader().getHash().getBytes();
+            int record = findRecord(hash);
+            if (record < 0)
+                throw new BlockStoreException("Chain head was not put into the store: " + chainHead);
+            headers.position(CHAIN_HEAD_OFFSET);
+            headers.put(hash);
+            if (chainHead.getHeight() >= heights.getInt(HEIGHTS_OFFSET)) {
+                int capacity = Math.max(chainHead.getHeight() + 1, heights.getInt(HEIGHTS_OFFSET) * 2);
+                heights = map(heightsFile, PROLOGUE_BYTES + 4L * capacity);
+                heights.putInt(HEIGHTS_OFFSET, capacity);
+            }
+            heights.putInt(DIRTY_OFFSET, 1);
+            // Heights above the new head belong to a chain that is no longer the best one.
+            if (this.chainHead != null) {
+                for (int height = chainHead.getHeight() + 1; height <= this.chainHead.getHeight(); height++)
+                    heights.putInt(heightOffset(height), 0);
+            }
+            indexHeights(chainHead, record);
+            heights.putInt(HEAD_RECORD_OFFSET, record + 1);
+            heights.putInt(DIRTY_OFFSET, 0);
+            this.chainHead = chainHead;
+            this.chainHeadRecord = record;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Points the heights of the chain ending at the given block at its records, walking back until they already do.
+    private void indexHeights(StoredBlock block, int record) {
+        while (true) {
+            int offset = heightOffset(block.getHeight());
+            if (heights.getInt(offset) == record + 1)
+                return;
+            heights.putInt(offset, record + 1);
+            if (block.getHeight() == 0)
+                return;
+            record = findRecord(block.getHeader().getPrevBlockHash().getBytes());
+            if (record < 0)
+                return;  // Only happens below a checkpoint, where the store starts.
+            block = readRecord(record);
+        }
+    }
+
+    private StoredBlock readRecord(int record) {
+        headers.position(recordOffset(record) + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, headers);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    // Returns the number of the record holding the header with the given hash, or -1. If it was stored more than
+    // once, the last record is returned.
+    private int findRecord(byte[] hash) {
+        int mask = index.getInt(SLOTS_OFFSET) - 1;
+        int bucket = hashCode(hash) & mask;
+        while (true) {
+            int entry = index.getInt(PROLOGUE_BYTES + 4 * bucket);
+            if (entry == 0)
+                return -1;
+            if (recordHashEquals(entry - 1, hash))
+                return entry - 1;
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    private boolean recordHashEquals(int record, byte[] hash) {
+        int offset = recordOffset(record);
+        // Compare the last bytes first, the first ones are mostly zeros.
+        if (headers.getInt(offset + 28) != hashCode(hash))
+            return false;
+        for (int i = 0; i < 28; i += 4)
+            if (headers.getInt(offset + i) != getInt(hash, i))
+                return false;
+        return true;
+    }
+
+    private void indexRecord(int record) {
+        byte[] hash = new byte[32];
+        headers.position(recordOffset(record));
+        headers.get(hash);
+        int mask = index.getInt(SLOTS_OFFSET) - 1;
+        int bucket = hashCode(hash) & mask;
+        while (true) {
+            int entry = index.getInt(PROLOGUE_BYTES + 4 * bucket);
+            if (entry == 0 || recordHashEquals(entry - 1, hash)) {
+                index.putInt(PROLOGUE_BYTES + 4 * bucket, record + 1);
+                return;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    private void rebuildIndex(int slots) throws IOException {
+        if (index == null || index.capacity() != PROLOGUE_BYTES + 4L * slots)
+            index = map(indexFile, PROLOGUE_BYTES + 4L * slots);
+        index.position(0);
+        index.put(INDEX_MAGIC.getBytes("US-ASCII"));
+        index.putInt(DIRTY_OFFSET, 1);
+        index.putInt(SLOTS_OFFSET, slots);
+        clear(index);
+        for (int record = 0; record < count; record++)
+            indexRecord(record);
+        index.putInt(INDEXED_OFFSET, count);
+        index.putInt(DIRTY_OFFSET, 0);
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            headers.force();
+            index.force();
+            heights.force();
+            headers = null;  // Allow them to be GCd and the underlying file mappings to go away.
+            index = null;
+            heights = null;
+            if (!closeFiles())
+                throw new BlockStoreException("Failed to close the store files");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean closeFiles() {
+        boolean closed = true;
+        for (RandomAccessFile file : new RandomAccessFile[] { headersFile, indexFile, heightsFile }) {
+            try {
+                if (file != null)
+                    file.close();
+            } catch (IOException e) {
+                log.error("Failed to close store file", e);
+                closed = false;
+            }
+        }
+        return closed;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (headers == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    // Maps the whole file read/write, growing it to the given size first if it's smaller.
+    private static MappedByteBuffer map(RandomAccessFile file, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Store file would be too large: " + size);
+        if (file.length() < size)
+            file.setLength(size);
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static String readMagic(ByteBuffer buffer) throws IOException {
+        byte[] magic = new byte[4];
+        buffer.position(0);
+        buffer.get(magic);
+        return new String(magic, "US-ASCII");
+    }
+
+    // Zeroes everything after the prologue.
+    private static void clear(ByteBuffer buffer) {
+        byte[] zeros = new byte[4096];
+        buffer.position(PROLOGUE_BYTES);
+        while (buffer.hasRemaining())
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+    }
+
+    private static int recordOffset(int record) {
+        return PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private static int heightOffset(int height) {
+        return PROLOGUE_BYTES + 4 * height;
+    }
+
+    // The same as Sha256Hash.hashCode(), the last bytes of the hash.
+    private static int hashCode(byte[] hash) {
+        return getInt(hash, 28);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+}
@@ -20,6 +20,9 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredTransactionOutput;
 import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import java.util.Collection;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -95,6 +98,25 @@ public interface FullPrunedBlockStore extends BlockStore {
      * @param numOutputs the number of outputs the given transaction has
      */
     boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException;
+
+    /**
+     * Tells the store that the outputs at the given outpoints are about to be looked up with
+     * {@link #getTransactionOutput(Sha256Hash, long)}, so that it can load them all at once. Outpoints that have no
+     * unspent output are allowed. A store may keep what it loaded only until the current batch write ends, and
+     * stores whose lookups are cheap may do nothing at all.
+     */
+    void prefetchTransactionOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException;
+
+    /** Receives the outputs passed over by {@link #visitUnspentTransactionOutputs(UnspentOutputVisitor)}. */
+    interface UnspentOutputVisitor {
+        void visit(StoredTransactionOutput out) throws BlockStoreException;
+    }
+
+    /**
+     * Passes every unspent output in the store to the visitor, in no particular order. These are the outputs as of
+     * the verified chain head, so nothing may write to the store meanwhile, and no batch write may be open.
+     */
+    void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException;
     
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work that has
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.StoredBlock;
+
+/**
+ * A {@link BlockStore} that can find the headers of the best chain by their height, without walking back to them
+ * from the chain head one header at a time. {@link StoredBlock#getAncestor(BlockStore, int)} makes use of it.
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block at the given height of the chain that ends at the chain head, or null if the chain isn't
+     * that long or the store doesn't have the block any more.
+     */
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+}
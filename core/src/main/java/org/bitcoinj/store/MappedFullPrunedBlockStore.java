@@ -0,0 +1,941 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps everything in memory mapped files in a directory, so that a fully
+ * verifying node can sync without an external database and without holding the unspent output set on the heap.</p>
+ *
+ * <p>The directory holds:</p>
+ * <ul>
+ *     <li>the unspent outputs, indexed by outpoint, and the block headers, indexed by hash, each in a data file with
+ *     an off-heap hash index next to it,</li>
+ *     <li>an append only log of the undo data of recent blocks, whose locations are kept in memory,</li>
+ *     <li>a small state file with the chain heads, and</li>
+ *     <li>a journal that makes each batch of writes atomic.</li>
+ * </ul>
+ *
+ * <p>Writes between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are held in memory
+ * and are only visible to the thread that made them. On commit they are written to the journal and synced, then
+ * applied to the mapped files, which are synced in turn before the journal is emptied. If the process dies part way
+ * through, the journal is replayed when the store is next opened, so a batch is either entirely in the store or not
+ * at all. Writes made outside a batch are committed on their own. Only one thread may have a batch open at a
+ * time.</p>
+ *
+ * <p>Spending outputs leaves dead records behind. Once most of a file is dead it is compacted after the next commit,
+ * and {@link #compact()} does the same on demand.</p>
+ */
+public class MappedFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    /** The size of the segments the data files are mapped in, they grow a segment at a time. */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final String STATE_FILE = "state";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String UNDO_FILE = "undo";
+
+    // State file:
+    //    4 bytes magic
+    //    4 bytes version
+    //   32 bytes hash of the chain head
+    //   32 bytes hash of the verified chain head
+    //    8 bytes length of the undo log
+    private static final int STATE_MAGIC = 0x4d465042;  // "MFPB"
+    private static final int VERSION = 1;
+    private static final int STATE_BYTES = 1024;
+
+    private static final int OUTPOINT_KEY_BYTES = 32 + 4;
+    private static final int HEADER_VALUE_BYTES = StoredBlock.COMPACT_SERIALIZED_SIZE + 1;
+
+    // Each undo log record is the 32 byte block hash, the 4 byte height and the 4 byte length of the undo data,
+    // followed by the data. A length of -1 records that the undo data of the block was pruned.
+    private static final int UNDO_RECORD_HEADER_BYTES = 32 + 4 + 4;
+    private static final int PRUNED = -1;
+
+    // The journal is a magic number, the ends of the two record files before the batch, the new length of the undo
+    // log, and the operations of the batch ending with END. It finishes with the SHA-256 of all of that, so a journal
+    // that wasn't completely written is ignored.
+    private static final int JOURNAL_MAGIC = 0x4a524e4c;  // "JRNL"
+    private static final int END = 0;
+    private static final int PUT_HEADER = 1;
+    private static final int PUT_OUTPUT = 2;
+    private static final int REMOVE_OUTPUT = 3;
+    private static final int SET_CHAIN_HEAD = 4;
+    private static final int SET_VERIFIED_CHAIN_HEAD = 5;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private final File directory;
+    private final int segmentBytes;
+    private final File journalFile;
+
+    private RandomAccessFile stateFile;
+    private FileLock fileLock;
+    private MappedByteBuffer state;
+    private MappedRecordFile outputs;
+    private MappedRecordFile headers;
+    private RandomAccessFile undoFile;
+
+    // Committed state. The undo log may extend past undoLength with records of the open batch.
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private final Map<Sha256Hash, UndoEntry> undoEntries = new HashMap<Sha256Hash, UndoEntry>();
+    private long undoLength;
+    private long undoEnd;
+    private long undoLiveBytes;
+
+    private Batch batch;
+    private Thread batchOwner;
+
+    @VisibleForTesting boolean failAfterJournal;
+
+    /** Where the undo data of a block is in the undo log. */
+    private static class UndoEntry {
+        final int height;
+        final long position;
+        final int length;
+
+        UndoEntry(int height, long position, int length) {
+            this.height = height;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /** Writes that have not been committed yet. */
+    private static class Batch {
+        final boolean implicit;
+        final Map<Sha256Hash, byte[]> headers = new LinkedHashMap<Sha256Hash, byte[]>();
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> addedOutputs =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final Set<StoredTransactionOutPoint> removedOutputs = new LinkedHashSet<StoredTransactionOutPoint>();
+        final Map<Sha256Hash, UndoEntry> addedUndo = new HashMap<Sha256Hash, UndoEntry>();
+        final Set<Sha256Hash> removedUndo = new HashSet<Sha256Hash>();
+        StoredBlock chainHead;
+        StoredBlock verifiedChainHead;
+
+        Batch(boolean implicit) {
+            this.implicit = implicit;
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it doesn't exist. If the process died while committing,
+     * the interrupted batch is finished first. This operation will block on disk.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory that holds the store's files
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_BYTES);
+    }
+
+    MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentBytes)
+            throws BlockStoreException {
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentBytes = segmentBytes;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            File file = new File(directory, STATE_FILE);
+            boolean exists = file.exists();
+            stateFile = new RandomAccessFile(file, "rw");
+            // Used to stop other applications/processes from opening the store.
+            fileLock = stateFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is already locked by another process");
+            if (exists && stateFile.length() != STATE_BYTES)
+                throw new BlockStoreException("State file is " + stateFile.length() + " bytes, expected " + STATE_BYTES);
+            stateFile.setLength(STATE_BYTES);
+            state = stateFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, STATE_BYTES);
+            if (exists && (state.getInt(0) != STATE_MAGIC || state.getInt(4) != VERSION))
+                throw new BlockStoreException("State file is not from a MappedFullPrunedBlockStore");
+
+            outputs = new MappedRecordFile(new File(directory, "outputs"), new File(directory, "outputs.index"),
+                    OUTPOINT_KEY_BYTES, segmentBytes);
+            headers = new MappedRecordFile(new File(directory, "headers"), new File(directory, "headers.index"),
+                    32, segmentBytes);
+            MappedRecordFile.recoverTempFile(new File(directory, UNDO_FILE));
+            undoFile = new RandomAccessFile(new File(directory, UNDO_FILE), "rw");
+            if (!exists) {
+                state.putInt(0, STATE_MAGIC);
+                state.putInt(4, VERSION);
+                undoLength = 0;
+                writeState(Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH);
+                state.force();
+                initNewStore();
+                return;
+            }
+            recoverJournal();
+            undoLength = state.getLong(72);
+            loadUndoLog();
+            chainHead = get(readHash(8));
+            verifiedChainHead = get(readHash(40));
+            if (chainHead == null || verifiedChainHead == null || get(params.getGenesisBlock().getHash()) == null)
+                throw new BlockStoreException("Store does not hold a chain for " + params.getId());
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private void initNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Batch batch = startWrite();
+        batch.headers.put(block.getHeader().getHash(), encodeHeader(block, false));
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Batch batch = startWrite();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        try {
+            UndoEntry entry = appendUndo(hash, storedBlock.getHeight(), encodeUndo(undoableBlock));
+            batch.addedUndo.put(hash, entry);
+        } catch (IOException e) {
+            failWrite(batch);
+            throw new BlockStoreException(e);
+        }
+        batch.headers.put(hash, encodeHeader(storedBlock, true));
+        finishWrite(batch);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = getHeader(hash);
+        return value == null ? null : decodeHeader(value);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = getHeader(hash);
+        return (value != null && value[HEADER_VALUE_BYTES - 1] != 0) ? decodeHeader(value) : null;
+    }
+
+    @Nullable
+    private byte[] getHeader(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        if (batch != null) {
+            byte[] value = batch.headers.get(hash);
+            if (value != null)
+                return value;
+        }
+        return headers.get(hash.getBytes());
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        UndoEntry entry = null;
+        if (batch != null) {
+            entry = batch.addedUndo.get(hash);
+            if (entry == null && batch.removedUndo.contains(hash))
+                return null;
+        }
+        if (entry == null)
+            entry = undoEntries.get(hash);
+        if (entry == null)
+            return null;
+        try {
+            return decodeUndo(hash, readUndo(entry));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted undo log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        return batch != null && batch.chainHead != null ? batch.chainHead : chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch batch = startWrite();
+        batch.chainHead = chainHead;
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        return batch != null && batch.verifiedChainHead != null ? batch.verifiedChainHead : verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch batch = startWrite();
+        batch.verifiedChainHead = chainHead;
+        if (getChainHead() == null || getChainHead().getHeight() < chainHead.getHeight())
+            batch.chainHead = chainHead;
+        try {
+            pruneUndo(batch, chainHead.getHeight() - fullStoreDepth);
+        } catch (IOException e) {
+            failWrite(batch);
+            throw new BlockStoreException(e);
+        }
+        finishWrite(batch);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        if (batch != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = batch.addedOutputs.get(outPoint);
+            if (out != null)
+                return out;
+            if (batch.removedOutputs.contains(outPoint))
+                return null;
+        }
+        byte[] value = outputs.get(outPointKey(hash, index));
+        return value == null ? null : decodeOutput(hash, index, value);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch batch = startWrite();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        // Replacing an output that is still stored doesn't need it removed first.
+        batch.removedOutputs.remove(outPoint);
+        batch.addedOutputs.put(outPoint, out);
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MappedFullPrunedBlockStore that it didn't have!");
+        Batch batch = startWrite();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        batch.addedOutputs.remove(outPoint);
+        if (outputs.contains(outPointKey(out.getHash(), out.getIndex())))
+            batch.removedOutputs.add(outPoint);
+        finishWrite(batch);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public void prefetchTransactionOutputs(Collection<TransactionOutPoint> outPoints) {
+        // The outputs are read straight from the mapped file, so there is nothing to gain.
+    }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(final UnspentOutputVisitor visitor) throws BlockStoreException {
+        checkOpen();
+        if (batch != null)
+            throw new BlockStoreException("Cannot visit outputs with a batch write open");
+        outputs.visit(new MappedRecordFile.RecordVisitor() {
+            @Override
+            public void visit(byte[] key, byte[] value) throws BlockStoreException {
+                Sha256Hash hash = new Sha256Hash(Arrays.copyOf(key, 32));
+                visitor.visit(decodeOutput(hash, Utils.readUint32(key, 32), value));
+            }
+        });
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batch != null && batchOwner == Thread.currentThread())
+            return;
+        if (batch != null)
+            throw new BlockStoreException("Another thread has a batch write open");
+        batch = new Batch(false);
+        batchOwner = Thread.currentThread();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        if (batch == null)
+            return;
+        this.batch = null;
+        batchOwner = null;
+        try {
+            commit(batch);
+        } catch (IOException e) {
+            // Whatever part of the batch made it to disk is finished or undone when the store is opened again.
+            log.error("Failed to commit, closing the store. It must be opened again to recover.", e);
+            closeQuietly();
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (pending() == null)
+            return;
+        batch = null;
+        batchOwner = null;
+        // Drop the undo data written by the batch.
+        try {
+            undoFile.setLength(undoLength);
+            undoEnd = undoLength;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Compacts all files of the store now, rather than waiting until most of a file is dead. Must not be called with
+     * a batch write open.
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        if (batch != null)
+            throw new BlockStoreException("Cannot compact with a batch write open");
+        try {
+            outputs.compact();
+            headers.compact();
+            compactUndoLog();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (state == null)
+            return;
+        try {
+            if (batch != null)
+                undoFile.setLength(undoLength);
+            batch = null;
+            batchOwner = null;
+            outputs.close();
+            headers.close();
+            undoFile.close();
+            state.force();
+            MappedRecordFile.unmap(state);
+            stateFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            state = null;
+            outputs = null;
+            headers = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (state == null)
+            return "MappedFullPrunedBlockStore at " + directory + " (closed)";
+        return String.format("MappedFullPrunedBlockStore at %s: %d unspent outputs, %d headers, %d undo blocks",
+                directory, outputs.size(), headers.size(), undoEntries.size());
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (state == null)
+            throw new BlockStoreException("MappedFullPrunedBlockStore is closed");
+    }
+
+    // Returns the batch of the calling thread, if it has one.
+    @Nullable
+    private Batch pending() {
+        return batchOwner == Thread.currentThread() ? batch : null;
+    }
+
+    // Returns the batch to make a write in, starting one of its own if the caller hasn't.
+    private Batch startWrite() throws BlockStoreException {
+        checkOpen();
+        Batch batch = pending();
+        if (batch != null)
+            return batch;
+        if (this.batch != null)
+            throw new BlockStoreException("Another thread has a batch write open");
+        this.batch = batch = new Batch(true);
+        batchOwner = Thread.currentThread();
+        return batch;
+    }
+
+    private void finishWrite(Batch batch) throws BlockStoreException {
+        if (batch.implicit)
+            commitDatabaseBatchWrite();
+    }
+
+    private void failWrite(Batch batch) throws BlockStoreException {
+        if (batch.implicit)
+            abortDatabaseBatchWrite();
+    }
+
+    private void commit(Batch batch) throws IOException {
+        if (undoEnd > undoLength)
+            undoFile.getChannel().force(false);
+        byte[] journal = writeJournal(batch);
+        if (failAfterJournal)
+            throw new IOException("Failing after the journal was written");
+        apply(journal, false);
+        outputs.force();
+        headers.force();
+        state.force();
+        clearJournal();
+
+        for (Sha256Hash hash : batch.removedUndo) {
+            UndoEntry entry = undoEntries.remove(hash);
+            if (entry != null)
+                undoLiveBytes -= UNDO_RECORD_HEADER_BYTES + entry.length;
+        }
+        for (Map.Entry<Sha256Hash, UndoEntry> entry : batch.addedUndo.entrySet()) {
+            UndoEntry old = undoEntries.put(entry.getKey(), entry.getValue());
+            if (old != null)
+                undoLiveBytes -= UNDO_RECORD_HEADER_BYTES + old.length;
+            undoLiveBytes += UNDO_RECORD_HEADER_BYTES + entry.getValue().length;
+        }
+        if (batch.chainHead != null)
+            chainHead = batch.chainHead;
+        if (batch.verifiedChainHead != null)
+            verifiedChainHead = batch.verifiedChainHead;
+
+        if (outputs.needsCompaction())
+            outputs.compact();
+        if (headers.needsCompaction())
+            headers.compact();
+        if (undoLength >= 4L * segmentBytes && undoLength > 2 * undoLiveBytes)
+            compactUndoLog();
+    }
+
+    // Writes the batch to the journal file and syncs it, returning what was written without the checksum.
+    private byte[] writeJournal(Batch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeLong(outputs.getEnd());
+        out.writeLong(headers.getEnd());
+        out.writeLong(undoEnd);
+        for (Map.Entry<Sha256Hash, byte[]> entry : batch.headers.entrySet()) {
+            out.write(PUT_HEADER);
+            out.write(entry.getKey().getBytes());
+            out.write(entry.getValue());
+        }
+        for (StoredTransactionOutPoint outPoint : batch.removedOutputs) {
+            out.write(REMOVE_OUTPUT);
+            out.write(outPointKey(outPoint.getHash(), outPoint.getIndex()));
+        }
+        for (StoredTransactionOutput output : batch.addedOutputs.values()) {
+            byte[] value = encodeOutput(output);
+            out.write(PUT_OUTPUT);
+            out.write(outPointKey(output.getHash(), output.getIndex()));
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        if (batch.chainHead != null) {
+            out.write(SET_CHAIN_HEAD);
+            out.write(batch.chainHead.getHeader().getHash().getBytes());
+        }
+        if (batch.verifiedChainHead != null) {
+            out.write(SET_VERIFIED_CHAIN_HEAD);
+            out.write(batch.verifiedChainHead.getHeader().getHash().getBytes());
+        }
+        out.write(END);
+        out.flush();
+        byte[] journal = bytes.toByteArray();
+
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(0);
+            file.write(journal);
+            file.write(Sha256Hash.create(journal).getBytes());
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        return journal;
+    }
+
+    // The journal file is emptied rather than deleted so that it doesn't need creating again for the next batch.
+    private void clearJournal() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(0);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    // Finishes a batch whose journal was written but maybe not all applied, or throws away a partly written journal.
+    private void recoverJournal() throws IOException {
+        if (!journalFile.exists() || journalFile.length() == 0)
+            return;
+        byte[] contents = new byte[(int) journalFile.length()];
+        RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            file.readFully(contents);
+        } finally {
+            file.close();
+        }
+        if (contents.length > 32 + 4) {
+            byte[] journal = Arrays.copyOf(contents, contents.length - 32);
+            byte[] checksum = Arrays.copyOfRange(contents, contents.length - 32, contents.length);
+            if (Arrays.equals(checksum, Sha256Hash.create(journal).getBytes())) {
+                log.info("Replaying journal of {} bytes", journal.length);
+                apply(journal, true);
+                outputs.force();
+                headers.force();
+                state.force();
+            }
+        }
+        clearJournal();
+    }
+
+    // Applies a journal to the files. When replaying, the record files are first put back how they were before the
+    // batch, as far as that matters: records the batch appended are forgotten and the indexes are rebuilt. The
+    // operations are then applied again in the same order, which writes the same records in the same places.
+    private void apply(byte[] journal, boolean replay) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        if (in.readInt() != JOURNAL_MAGIC)
+            throw new IOException("Corrupt journal");
+        long outputsEnd = in.readLong();
+        long headersEnd = in.readLong();
+        long newUndoLength = in.readLong();
+        if (replay) {
+            outputs.truncate(outputsEnd);
+            outputs.rebuildIndex();
+            headers.truncate(headersEnd);
+            headers.rebuildIndex();
+        }
+        Sha256Hash newChainHead = readHash(8);
+        Sha256Hash newVerifiedChainHead = readHash(40);
+        byte[] hash = new byte[32];
+        byte[] outPoint = new byte[OUTPOINT_KEY_BYTES];
+        int op;
+        while ((op = in.read()) != END) {
+            switch (op) {
+                case PUT_HEADER:
+                    byte[] header = new byte[HEADER_VALUE_BYTES];
+                    in.readFully(hash);
+                    in.readFully(header);
+                    headers.put(hash, header);
+                    break;
+                case REMOVE_OUTPUT:
+                    in.readFully(outPoint);
+                    // Already gone if this is a replay and the removal got to disk before.
+                    outputs.remove(outPoint);
+                    break;
+                case PUT_OUTPUT:
+                    in.readFully(outPoint);
+                    byte[] output = new byte[in.readInt()];
+                    in.readFully(output);
+                    outputs.put(outPoint, output);
+                    break;
+                case SET_CHAIN_HEAD:
+                    in.readFully(hash);
+                    newChainHead = new Sha256Hash(hash.clone());
+                    break;
+                case SET_VERIFIED_CHAIN_HEAD:
+                    in.readFully(hash);
+                    newVerifiedChainHead = new Sha256Hash(hash.clone());
+                    break;
+                default:
+                    throw new IOException("Corrupt journal");
+            }
+        }
+        undoLength = undoEnd = newUndoLength;
+        writeState(newChainHead, newVerifiedChainHead);
+    }
+
+    private void writeState(Sha256Hash chainHead, Sha256Hash verifiedChainHead) {
+        state.position(8);
+        state.put(chainHead.getBytes());
+        state.put(verifiedChainHead.getBytes());
+        state.putLong(undoLength);
+    }
+
+    private Sha256Hash readHash(int position) {
+        byte[] hash = new byte[32];
+        state.position(position);
+        state.get(hash);
+        return new Sha256Hash(hash);
+    }
+
+    // Reads the undo log up to its committed length, dropping anything after that.
+    private void loadUndoLog() throws IOException {
+        // A compaction that finished after the last commit leaves the log shorter than the state file says.
+        long length = Math.min(undoLength, undoFile.length());
+        undoFile.setLength(length);
+        undoLength = undoEnd = length;
+        ByteBuffer header = ByteBuffer.allocate(UNDO_RECORD_HEADER_BYTES);
+        for (long position = 0; position < length; ) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            byte[] hash = new byte[32];
+            header.get(hash);
+            int height = header.getInt();
+            int dataLength = header.getInt();
+            position += UNDO_RECORD_HEADER_BYTES;
+            if (dataLength == PRUNED) {
+                UndoEntry entry = undoEntries.remove(new Sha256Hash(hash));
+                if (entry != null)
+                    undoLiveBytes -= UNDO_RECORD_HEADER_BYTES + entry.length;
+            } else {
+                UndoEntry old = undoEntries.put(new Sha256Hash(hash), new UndoEntry(height, position, dataLength));
+                if (old != null)
+                    undoLiveBytes -= UNDO_RECORD_HEADER_BYTES + old.length;
+                undoLiveBytes += UNDO_RECORD_HEADER_BYTES + dataLength;
+                position += dataLength;
+            }
+        }
+    }
+
+    private UndoEntry appendUndo(Sha256Hash hash, int height, byte[] data) throws IOException {
+        writeUndoRecord(undoFile.getChannel(), undoEnd, hash, height, data.length, data);
+        UndoEntry entry = new UndoEntry(height, undoEnd + UNDO_RECORD_HEADER_BYTES, data.length);
+        undoEnd += UNDO_RECORD_HEADER_BYTES + data.length;
+        return entry;
+    }
+
+    // Prunes the undo data of all blocks at or below the given height.
+    private void pruneUndo(Batch batch, int height) throws IOException {
+        List<Sha256Hash> pruned = new ArrayList<Sha256Hash>();
+        for (Map.Entry<Sha256Hash, UndoEntry> entry : undoEntries.entrySet())
+            if (entry.getValue().height <= height && !batch.removedUndo.contains(entry.getKey()))
+                pruned.add(entry.getKey());
+        for (Map.Entry<Sha256Hash, UndoEntry> entry : batch.addedUndo.entrySet())
+            if (entry.getValue().height <= height)
+                pruned.add(entry.getKey());
+        for (Sha256Hash hash : pruned) {
+            writeUndoRecord(undoFile.getChannel(), undoEnd, hash, 0, PRUNED, null);
+            undoEnd += UNDO_RECORD_HEADER_BYTES;
+            batch.addedUndo.remove(hash);
+            if (undoEntries.containsKey(hash))
+                batch.removedUndo.add(hash);
+        }
+    }
+
+    private static void writeUndoRecord(FileChannel channel, long position, Sha256Hash hash, int height, int length,
+                                        @Nullable byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(UNDO_RECORD_HEADER_BYTES + (data == null ? 0 : data.length));
+        buffer.put(hash.getBytes());
+        buffer.putInt(height);
+        buffer.putInt(length);
+        if (data != null)
+            buffer.put(data);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private byte[] readUndo(UndoEntry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(buffer, entry.position);
+        return buffer.array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        FileChannel channel = undoFile.getChannel();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+    // Copies the undo data that hasn't been pruned to a new log. Only called with no batch open.
+    private void compactUndoLog() throws IOException {
+        long startTime = System.currentTimeMillis();
+        long oldLength = undoLength;
+        File file = new File(directory, UNDO_FILE);
+        File temp = new File(directory, UNDO_FILE + ".tmp");
+        RandomAccessFile compacted = new RandomAccessFile(temp, "rw");
+        compacted.setLength(0);
+        Map<Sha256Hash, UndoEntry> moved = new HashMap<Sha256Hash, UndoEntry>();
+        long position = 0;
+        for (Map.Entry<Sha256Hash, UndoEntry> entry : undoEntries.entrySet()) {
+            UndoEntry old = entry.getValue();
+            writeUndoRecord(compacted.getChannel(), position, entry.getKey(), old.height, old.length, readUndo(old));
+            moved.put(entry.getKey(), new UndoEntry(old.height, position + UNDO_RECORD_HEADER_BYTES, old.length));
+            position += UNDO_RECORD_HEADER_BYTES + old.length;
+        }
+        compacted.getChannel().force(true);
+        // Windows won't rename a file that is open, so both are closed and the new one opened again.
+        compacted.close();
+        undoFile.close();
+        MappedRecordFile.replace(temp, file);
+        undoFile = new RandomAccessFile(file, "rw");
+        undoEntries.clear();
+        undoEntries.putAll(moved);
+        undoLength = undoEnd = undoLiveBytes = position;
+        state.putLong(72, undoLength);
+        state.force();
+        log.info("Compacted undo log from {} to {} bytes in {} ms", oldLength, undoLength,
+                System.currentTimeMillis() - startTime);
+    }
+
+    private void closeQuietly() {
+        try {
+            if (outputs != null)
+                outputs.close();
+            if (headers != null)
+                headers.close();
+            if (undoFile != null)
+                undoFile.close();
+            if (state != null)
+                MappedRecordFile.unmap(state);
+            if (stateFile != null)
+                stateFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to close store", e);
+        }
+        state = null;
+        outputs = null;
+        headers = null;
+        batch = null;
+        batchOwner = null;
+    }
+
+    private static byte[] outPointKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[OUTPOINT_KEY_BYTES];
+        System.arraycopy(hash.getBytes(), 0, key, 0, 32);
+        Utils.uint32ToByteArrayLE(index, key, 32);
+        return key;
+    }
+
+    private static byte[] encodeOutput(StoredTransactionOutput out) {
+        byte[] script = out.getScriptBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + script.length);
+        buffer.putInt(out.getHeight());
+        buffer.putLong(out.getValue().value);
+        buffer.put((byte) (out.isCoinbase() ? 1 : 0));
+        buffer.put(script);
+        return buffer.array();
+    }
+
+    private static StoredTransactionOutput decodeOutput(Sha256Hash hash, long index, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        int height = buffer.getInt();
+        Coin coin = Coin.valueOf(buffer.getLong());
+        boolean coinbase = buffer.get() != 0;
+        byte[] script = Arrays.copyOfRange(value, buffer.position(), value.length);
+        return new StoredTransactionOutput(hash, index, coin, height, coinbase, script);
+    }
+
+    private static byte[] encodeHeader(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_VALUE_BYTES);
+        block.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        return buffer.array();
+    }
+
+    private StoredBlock decodeHeader(byte[] value) throws BlockStoreException {
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value));
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // The undo data is a byte saying which form it's in, then the same bytes as the database stores keep.
+    private static byte[] encodeUndo(StoredUndoableBlock undoableBlock) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (undoableBlock.getTxOutChanges() != null) {
+            bos.write(0);
+            undoableBlock.getTxOutChanges().serializeToStream(bos);
+        } else {
+            bos.write(1);
+            int numTxn = undoableBlock.getTransactions().size();
+            bos.write((int) (0xFF & (numTxn >> 0)));
+            bos.write((int) (0xFF & (numTxn >> 8)));
+            bos.write((int) (0xFF & (numTxn >> 16)));
+            bos.write((int) (0xFF & (numTxn >> 24)));
+            for (Transaction tx : undoableBlock.getTransactions())
+                tx.bitcoinSerialize(bos);
+        }
+        return bos.toByteArray();
+    }
+
+    private StoredUndoableBlock decodeUndo(Sha256Hash hash, byte[] data) throws IOException, ProtocolException {
+        if (data[0] == 0)
+            return new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(data, 1, data.length - 1)));
+        int offset = 1;
+        int numTxn = ((data[offset++] & 0xFF) << 0) |
+                ((data[offset++] & 0xFF) << 8) |
+                ((data[offset++] & 0xFF) << 16) |
+                ((data[offset++] & 0xFF) << 24);
+        List<Transaction> transactionList = new LinkedList<Transaction>();
+        for (int i = 0; i < numTxn; i++) {
+            Transaction tx = new Transaction(params, data, offset);
+            transactionList.add(tx);
+            offset += tx.getMessageSize();
+        }
+        return new StoredUndoableBlock(hash, transactionList);
+    }
+}
@@ -0,0 +1,619 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A file of records with fixed length keys, and an index over them, both memory mapped. Used by
+ * {@link MappedFullPrunedBlockStore} for the unspent outputs and the block headers.</p>
+ *
+ * <p>Records are only ever appended to the data file. Replacing or removing a record marks the old copy dead, and
+ * {@link #compact()} reclaims the space. The index is an open addressing hash table of (key hash, record position)
+ * slots in a second file. It holds nothing that can't be worked out again from the data file, so after a crash
+ * {@link #rebuildIndex()} puts it right. Both files are mapped in segments of a fixed size so they can grow beyond
+ * 2GB, and no record or slot crosses a segment boundary.</p>
+ *
+ * <p>The headers of both files are only brought up to date by {@link #force()}. Not thread safe.</p>
+ */
+class MappedRecordFile {
+    private static final Logger log = LoggerFactory.getLogger(MappedRecordFile.class);
+
+    private static final int DATA_MAGIC = 0x4d524446;  // "MRDF"
+    private static final int INDEX_MAGIC = 0x4d524958;  // "MRIX"
+    private static final int VERSION = 1;
+
+    // Data file header:
+    //    4 bytes magic
+    //    4 bytes version
+    //    8 bytes end of the last record
+    //    8 bytes generation, changed by each compaction
+    //    8 bytes total length of the live records
+    //    8 bytes number of live records
+    //
+    // Index file header:
+    //    4 bytes magic
+    //    4 bytes version
+    //    8 bytes number of slots, a power of two
+    //    8 bytes number of slots in use
+    //    8 bytes generation of the data file that was indexed
+    static final int HEADER_BYTES = 64;
+
+    // Each record is a flags byte, the 4 byte length of the value, the key and then the value. A zero flags byte means
+    // the rest of the segment is unused.
+    private static final int RECORD_HEADER_BYTES = 5;
+    private static final byte PADDING = 0;
+    private static final byte LIVE = 1;
+    private static final byte DEAD = 2;
+
+    // Each slot is the 8 byte hash of the key and the 8 byte position of the record, zero for an empty slot.
+    private static final int SLOT_BYTES = 16;
+    private static final long INITIAL_SLOTS = 1 << 12;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final int keyLength;
+    private final int segmentBytes;
+    private final byte[] scratchKey;
+
+    private Segments data;
+    private long end;
+    private long generation;
+    private long liveBytes;
+    private long liveRecords;
+
+    private Segments index;
+    private long slots;
+    private long usedSlots;
+
+    /**
+     * Opens the record file, creating it if it's missing. The index is rebuilt if it's missing or doesn't belong to
+     * the data file.
+     * @param segmentBytes the size of the segments the files are mapped in, a multiple of 16 that is larger than any
+     *                     record will be
+     */
+    MappedRecordFile(File dataFile, File indexFile, int keyLength, int segmentBytes) throws IOException {
+        checkArgument(segmentBytes % SLOT_BYTES == 0 && segmentBytes > HEADER_BYTES);
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+        this.keyLength = keyLength;
+        this.segmentBytes = segmentBytes;
+        this.scratchKey = new byte[keyLength];
+        // Left behind by a compaction or index resize that didn't finish.
+        recoverTempFile(dataFile);
+        recoverTempFile(indexFile);
+
+        boolean exists = dataFile.exists();
+        data = new Segments(dataFile, segmentBytes);
+        if (exists) {
+            if (data.length() < HEADER_BYTES)
+                throw new IOException("Not a record file: " + dataFile);
+            MappedByteBuffer header = data.at(0);
+            if (header.getInt() != DATA_MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a record file: " + dataFile);
+            end = header.getLong();
+            generation = header.getLong();
+            liveBytes = header.getLong();
+            liveRecords = header.getLong();
+        } else {
+            data.ensureLength(segmentBytes);
+            end = HEADER_BYTES;
+            generation = 1;
+            writeDataHeader();
+        }
+
+        if (indexFile.exists()) {
+            index = new Segments(indexFile, segmentBytes);
+            MappedByteBuffer header = index.length() < HEADER_BYTES ? null : index.at(0);
+            if (header != null && header.getInt() == INDEX_MAGIC && header.getInt() == VERSION) {
+                slots = header.getLong();
+                usedSlots = header.getLong();
+                if (header.getLong() == generation && index.length() == HEADER_BYTES + slots * SLOT_BYTES)
+                    return;
+            }
+            log.info("Index {} doesn't match {}", indexFile, dataFile);
+        }
+        rebuildIndex();
+    }
+
+    /** Returns the value stored under the given key, or null if there is none. */
+    @Nullable
+    byte[] get(byte[] key) {
+        long slot = findSlot(key, hash(key));
+        if (slot < 0)
+            return null;
+        long position = recordPosition(slot);
+        byte[] value = new byte[data.at(position + 1).getInt()];
+        data.at(position + RECORD_HEADER_BYTES + keyLength).get(value);
+        return value;
+    }
+
+    /** Returns whether anything is stored under the given key. */
+    boolean contains(byte[] key) {
+        return findSlot(key, hash(key)) >= 0;
+    }
+
+    /** Stores the value under the given key, replacing any value already there. */
+    void put(byte[] key, byte[] value) throws IOException {
+        checkArgument(key.length == keyLength);
+        long hash = hash(key);
+        long slot = findSlot(key, hash);
+        if (slot >= 0)
+            kill(recordPosition(slot));
+        long position = append(key, value);
+        if (slot >= 0)
+            setSlot(index, slot, hash, position);
+        else
+            insert(hash, position);
+    }
+
+    /** Removes the value stored under the given key, returning false if there wasn't one. */
+    boolean remove(byte[] key) {
+        long slot = findSlot(key, hash(key));
+        if (slot < 0)
+            return false;
+        kill(recordPosition(slot));
+        deleteSlot(slot);
+        return true;
+    }
+
+    /** Receives the records passed over by {@link #visit(RecordVisitor)}. */
+    interface RecordVisitor {
+        void visit(byte[] key, byte[] value) throws BlockStoreException;
+    }
+
+    /** Passes every live record to the visitor, in the order they were written. */
+    void visit(RecordVisitor visitor) throws BlockStoreException {
+        for (long position = HEADER_BYTES; position < end; ) {
+            MappedByteBuffer buffer = data.at(position);
+            byte flags = buffer.get();
+            if (flags == PADDING) {
+                position = nextSegment(position);
+                continue;
+            }
+            byte[] value = new byte[buffer.getInt()];
+            if (flags == LIVE) {
+                byte[] key = new byte[keyLength];
+                buffer.get(key);
+                buffer.get(value);
+                visitor.visit(key, value);
+            }
+            position += RECORD_HEADER_BYTES + keyLength + value.length;
+        }
+    }
+
+    /** Returns the position just past the last record. */
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * Forgets all records from the given position on, which must have been the end at some point since the last
+     * compaction. The index must be rebuilt afterwards.
+     */
+    void truncate(long newEnd) {
+        checkArgument(newEnd >= HEADER_BYTES && newEnd <= data.length());
+        end = newEnd;
+    }
+
+    /** Returns the number of bytes taken by live records. */
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /** Returns the number of records. */
+    long size() {
+        return liveRecords;
+    }
+
+    /** Returns whether most of the data file is taken by dead records, and it is big enough for that to matter. */
+    boolean needsCompaction() {
+        return end >= 4L * segmentBytes && end - HEADER_BYTES > 2 * liveBytes;
+    }
+
+    /** Rewrites the data file with only the live records in it, then rebuilds the index for it. */
+    void compact() throws IOException {
+        long startTime = System.currentTimeMillis();
+        long oldEnd = end;
+        File temp = tempFile(dataFile);
+        temp.delete();
+        Segments compacted = new Segments(temp, segmentBytes);
+        compacted.ensureLength(segmentBytes);
+        long newEnd = HEADER_BYTES;
+        byte[] key = new byte[keyLength];
+        for (long position = HEADER_BYTES; position < end; ) {
+            MappedByteBuffer buffer = data.at(position);
+            byte flags = buffer.get();
+            if (flags == PADDING) {
+                position = nextSegment(position);
+                continue;
+            }
+            byte[] value = new byte[buffer.getInt()];
+            if (flags == LIVE) {
+                buffer.get(key);
+                buffer.get(value);
+                newEnd = writeRecord(compacted, newEnd, key, value);
+            }
+            position += RECORD_HEADER_BYTES + keyLength + value.length;
+        }
+        // The new data file gets a new generation so that a crash before the index is rebuilt is noticed.
+        Segments old = data;
+        data = compacted;
+        end = newEnd;
+        generation++;
+        writeDataHeader();
+        // Windows won't rename a file that is open or mapped, so both are closed and the new one opened again.
+        compacted.close();
+        old.close();
+        replace(temp, dataFile);
+        data = new Segments(dataFile, segmentBytes);
+        rebuildIndex();
+        log.info("Compacted {} from {} to {} bytes in {} ms", dataFile, oldEnd, end,
+                System.currentTimeMillis() - startTime);
+    }
+
+    /** Throws away the index and builds a new one from the live records in the data file. */
+    void rebuildIndex() throws IOException {
+        long startTime = System.currentTimeMillis();
+        if (index != null)
+            index.close();
+        indexFile.delete();
+        index = createIndex(indexFile, INITIAL_SLOTS);
+        slots = INITIAL_SLOTS;
+        usedSlots = 0;
+        liveBytes = 0;
+        liveRecords = 0;
+        byte[] key = new byte[keyLength];
+        for (long position = HEADER_BYTES; position < end; ) {
+            MappedByteBuffer buffer = data.at(position);
+            byte flags = buffer.get();
+            if (flags == PADDING) {
+                position = nextSegment(position);
+                continue;
+            }
+            int length = RECORD_HEADER_BYTES + keyLength + buffer.getInt();
+            if (flags == LIVE) {
+                buffer.get(key);
+                // A record written twice by a replayed journal is only indexed once, the later copy wins.
+                long hash = hash(key);
+                long slot = findSlot(key, hash);
+                if (slot >= 0) {
+                    kill(recordPosition(slot));
+                    setSlot(index, slot, hash, position);
+                } else {
+                    insert(hash, position);
+                }
+                liveBytes += length;
+                liveRecords++;
+            }
+            position += length;
+        }
+        force();
+        log.info("Rebuilt index of {} with {} records in {} ms", dataFile, liveRecords,
+                System.currentTimeMillis() - startTime);
+    }
+
+    /** Brings the file headers up to date and writes all changes to disk. */
+    void force() {
+        writeDataHeader();
+        writeIndexHeader();
+        data.force();
+        index.force();
+    }
+
+    void close() throws IOException {
+        force();
+        data.close();
+        index.close();
+    }
+
+    private void writeDataHeader() {
+        MappedByteBuffer header = data.at(0);
+        header.putInt(DATA_MAGIC);
+        header.putInt(VERSION);
+        header.putLong(end);
+        header.putLong(generation);
+        header.putLong(liveBytes);
+        header.putLong(liveRecords);
+    }
+
+    private void writeIndexHeader() {
+        MappedByteBuffer header = index.at(0);
+        header.putInt(INDEX_MAGIC);
+        header.putInt(VERSION);
+        header.putLong(slots);
+        header.putLong(usedSlots);
+        header.putLong(generation);
+    }
+
+    private long append(byte[] key, byte[] value) throws IOException {
+        int length = RECORD_HEADER_BYTES + keyLength + value.length;
+        if (length > segmentBytes - HEADER_BYTES)
+            throw new IOException("Record of " + length + " bytes does not fit in a segment");
+        end = writeRecord(data, end, key, value);
+        liveBytes += length;
+        liveRecords++;
+        return end - length;
+    }
+
+    // Writes a live record at or after the given end, returning the new end.
+    private long writeRecord(Segments segments, long end, byte[] key, byte[] value) throws IOException {
+        int length = RECORD_HEADER_BYTES + keyLength + value.length;
+        long position = placeRecord(segments, end, length);
+        segments.ensureLength(nextSegment(position + length - 1));
+        MappedByteBuffer buffer = segments.at(position);
+        buffer.put(LIVE);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+        return position + length;
+    }
+
+    // Returns where a record of the given length appended at end goes, so that it doesn't cross into the next
+    // segment, and marks any space skipped over as padding.
+    private long placeRecord(Segments segments, long end, int length) {
+        long segmentEnd = nextSegment(end);
+        if (end + length <= segmentEnd)
+            return end;
+        segments.at(end).put(PADDING);
+        return segmentEnd;
+    }
+
+    private long nextSegment(long position) {
+        return (position / segmentBytes + 1) * segmentBytes;
+    }
+
+    private void kill(long position) {
+        MappedByteBuffer buffer = data.at(position);
+        buffer.put(DEAD);
+        liveBytes -= RECORD_HEADER_BYTES + keyLength + buffer.getInt();
+        liveRecords--;
+    }
+
+    private static long hash(byte[] key) {
+        // FNV-1a. The keys are mostly hashes already, but block hashes start with a run of zero bytes.
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 31);
+    }
+
+    // Returns the slot holding the record with the given key, or -1 if there isn't one.
+    private long findSlot(byte[] key, long hash) {
+        long mask = slots - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            MappedByteBuffer buffer = index.at(slotPosition(slot));
+            long slotHash = buffer.getLong();
+            long position = buffer.getLong();
+            if (position == 0)
+                return -1;
+            if (slotHash == hash) {
+                data.at(position + RECORD_HEADER_BYTES).get(scratchKey);
+                if (Arrays.equals(scratchKey, key))
+                    return slot;
+            }
+        }
+    }
+
+    private long recordPosition(long slot) {
+        return index.at(slotPosition(slot) + 8).getLong();
+    }
+
+    private static long slotPosition(long slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static void setSlot(Segments index, long slot, long hash, long position) {
+        MappedByteBuffer buffer = index.at(slotPosition(slot));
+        buffer.putLong(hash);
+        buffer.putLong(position);
+    }
+
+    private void insert(long hash, long position) throws IOException {
+        // Keep the table at most 70% full so probe sequences stay short.
+        if ((usedSlots + 1) * 10 > slots * 7)
+            growIndex();
+        insert(index, slots, hash, position);
+        usedSlots++;
+    }
+
+    private static void insert(Segments index, long slots, long hash, long position) {
+        long mask = slots - 1;
+        long slot = hash & mask;
+        while (index.at(slotPosition(slot) + 8).getLong() != 0)
+            slot = (slot + 1) & mask;
+        setSlot(index, slot, hash, position);
+    }
+
+    // Empties the slot and moves later entries of the same probe sequence back, so no tombstones are needed.
+    private void deleteSlot(long slot) {
+        long mask = slots - 1;
+        long empty = slot;
+        for (long next = (slot + 1) & mask; ; next = (next + 1) & mask) {
+            MappedByteBuffer buffer = index.at(slotPosition(next));
+            long hash = buffer.getLong();
+            long position = buffer.getLong();
+            if (position == 0)
+                break;
+            // The entry can move to the empty slot if that doesn't put it before its home slot.
+            long home = hash & mask;
+            boolean stays = empty <= next ? (home > empty && home <= next) : (home > empty || home <= next);
+            if (!stays) {
+                setSlot(index, empty, hash, position);
+                empty = next;
+            }
+        }
+        setSlot(index, empty, 0, 0);
+        usedSlots--;
+    }
+
+    private void growIndex() throws IOException {
+        long newSlots = slots * 2;
+        File temp = tempFile(indexFile);
+        temp.delete();
+        Segments grown = createIndex(temp, newSlots);
+        for (long slot = 0; slot < slots; slot++) {
+            MappedByteBuffer buffer = index.at(slotPosition(slot));
+            long hash = buffer.getLong();
+            long position = buffer.getLong();
+            if (position != 0)
+                insert(grown, newSlots, hash, position);
+        }
+        grown.close();
+        index.close();
+        replace(temp, indexFile);
+        index = new Segments(indexFile, segmentBytes);
+        slots = newSlots;
+    }
+
+    private Segments createIndex(File file, long slots) throws IOException {
+        Segments segments = new Segments(file, segmentBytes);
+        // Extending a file fills it with zeros on every platform we run on, which is what makes the slots empty.
+        segments.ensureLength(HEADER_BYTES + slots * SLOT_BYTES);
+        return segments;
+    }
+
+    private static File tempFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /** Puts a finished temporary file in place of the file it replaces. Neither may be open. */
+    static void replace(File temp, File file) throws IOException {
+        // Work around an issue on Windows whereby you can't rename over existing files.
+        if (Utils.isWindows() && file.exists() && !file.delete())
+            throw new IOException("Failed to delete " + file + " for replacement");
+        if (!temp.renameTo(file))
+            throw new IOException("Could not rename " + temp + " to " + file);
+    }
+
+    /**
+     * Deletes the temporary file left by a replacement that didn't finish, unless the file it was replacing had
+     * already been deleted, in which case the temporary file was complete and is put in its place.
+     */
+    static void recoverTempFile(File file) throws IOException {
+        File temp = tempFile(file);
+        if (!file.exists() && temp.exists())
+            replace(temp, file);
+        else
+            temp.delete();
+    }
+
+    /**
+     * Releases the mapping now rather than whenever the buffer is collected, as Windows won't delete or rename a
+     * file while it is mapped. The buffer must not be used afterwards.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Before Java 9 the buffer's cleaner is called directly.
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            // Not a JVM we know how to do this on. The mapping goes when the buffer is collected.
+            log.debug("Could not unmap buffer", e);
+        }
+    }
+
+    /** A file mapped as a list of segments of the same size, except perhaps the last. */
+    private static class Segments {
+        private final RandomAccessFile file;
+        private final int segmentBytes;
+        private final List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>();
+        private long length;
+
+        Segments(File file, int segmentBytes) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            this.segmentBytes = segmentBytes;
+            ensureLength(this.file.length());
+        }
+
+        long length() {
+            return length;
+        }
+
+        /** Extends the file to at least the given length, mapping the new part of it. */
+        void ensureLength(long newLength) throws IOException {
+            if (newLength <= length)
+                return;
+            // The last segment may have been mapped short, so map it again along with any new ones. The short mapping
+            // is released now, as in close(), rather than left until the buffer is collected.
+            int first = (int) (length / segmentBytes);
+            while (buffers.size() > first) {
+                MappedByteBuffer superseded = buffers.remove(buffers.size() - 1);
+                superseded.force();
+                unmap(superseded);
+            }
+            file.setLength(newLength);
+            for (long start = (long) first * segmentBytes; start < newLength; start += segmentBytes) {
+                long size = Math.min(segmentBytes, newLength - start);
+                buffers.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, start, size));
+            }
+            length = newLength;
+        }
+
+        /** Returns the segment containing the given position, positioned there. */
+        MappedByteBuffer at(long position) {
+            MappedByteBuffer buffer = buffers.get((int) (position / segmentBytes));
+            buffer.position((int) (position % segmentBytes));
+            return buffer;
+        }
+
+        void force() {
+            for (MappedByteBuffer buffer : buffers)
+                buffer.force();
+        }
+
+        void close() throws IOException {
+            force();
+            for (MappedByteBuffer buffer : buffers)
+                unmap(buffer);
+            buffers.clear();
+            file.close();
+        }
+    }
+}
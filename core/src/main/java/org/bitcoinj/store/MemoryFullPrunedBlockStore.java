@@ -240,6 +240,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
+    // Undoable blocks have been removed up to this height.
+    private int prunedHeight = -1;
     
     /**
      * Set up the MemoryFullPrunedBlockStore
@@ -329,9 +331,12 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHead = chainHead;
         if (this.chainHead.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        // Potential leak here if not all blocks get setChainHead'd
-        // Though the FullPrunedBlockStore allows for this, the current AbstractBlockChain will not do it.
-        fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+        // Remove every height since the last time, so that none are left behind when the verified chain head skips
+        // ahead. Removing from the maps is cheap enough to do here rather than in the background.
+        int pruneHeight = chainHead.getHeight() - fullStoreDepth;
+        for (int height = prunedHeight + 1; height <= pruneHeight; height++)
+            fullBlockMap.removeByMultiKey(height);
+        prunedHeight = Math.max(prunedHeight, pruneHeight);
     }
     
     @Override
@@ -389,4 +394,16 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
                 return true;
         return false;
     }
+
+    @Override
+    public void prefetchTransactionOutputs(Collection<TransactionOutPoint> outPoints) {
+        // Lookups are as cheap one at a time.
+    }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        for (StoredTransactionOutput out : transactionOutputMap.map.values())
+            visitor.visit(out);
+    }
 }
@@ -82,6 +82,9 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String SELECT_OPENOUTPUTS_SQL                  = "SELECT height, value, scriptBytes, coinbase FROM openOutputs WHERE hash = ? AND `index` = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                  = "INSERT INTO openOutputs (hash, `index`, height, value, scriptBytes, toAddress, addressTargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                  = "DELETE FROM openOutputs WHERE hash = ? AND `index` = ?";
+    private static final String SELECT_OPENOUTPUTS_PREFETCH_SQL         = "SELECT hash, `index`, height, value, scriptBytes, coinbase FROM openOutputs WHERE ";
+    private static final String SELECT_OPENOUTPUTS_PREFETCH_CONDITION_SQL = "(hash = ? AND `index` = ?)";
+    private static final String SELECT_OPENOUTPUTS_VISIT_SQL            = "SELECT hash, `index`, height, value, scriptBytes, coinbase FROM openOutputs";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -119,6 +122,22 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectOpenoutputsPrefetchSQL(int count) {
+        return getSelectOpenoutputsPrefetchSQL(SELECT_OPENOUTPUTS_PREFETCH_SQL, SELECT_OPENOUTPUTS_PREFETCH_CONDITION_SQL, count);
+    }
+
+    @Override
+    protected String getSelectOpenoutputsVisitSQL() {
+        return SELECT_OPENOUTPUTS_VISIT_SQL;
+    }
+
+    @Override
+    protected int getOpenoutputsVisitFetchSize() {
+        // The only value for which Connector/J streams the rows instead of reading them all into memory.
+        return Integer.MIN_VALUE;
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<String>();
@@ -0,0 +1,313 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A map of unspent outputs by outpoint that keeps them packed into direct byte buffers, outside the Java heap. Used
+ * by {@link CompactMemoryFullPrunedBlockStore}.</p>
+ *
+ * <p>Outputs are appended to fixed size slabs. Removing or replacing one marks the old copy dead, and once most of the
+ * space is dead the live outputs are copied into new slabs and the old ones left to the garbage collector. The index
+ * is an open addressing hash table held in two primitive arrays, so the heap holds no object per output.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class OffHeapOutputMap {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapOutputMap.class);
+
+    /** The default size of the slabs the outputs are packed into. */
+    static final int DEFAULT_SLAB_BYTES = 16 * 1024 * 1024;
+
+    // Each record is a flags byte, the 4 byte length of the script, the 32 byte transaction hash, the 4 byte output
+    // index, the 4 byte height, the 8 byte value, a coinbase byte and then the script.
+    private static final int RECORD_HEADER_BYTES = 54;
+    private static final byte LIVE = 1;
+    private static final byte DEAD = 2;
+
+    @VisibleForTesting static final int INITIAL_SLOTS = 1 << 12;
+
+    private final int slabBytes;
+    private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private long allocatedBytes;
+    private long liveBytes;
+
+    // Each slot is the record address plus one, zero for an empty slot, and the hash of its key.
+    private long[] positions = new long[INITIAL_SLOTS];
+    private int[] hashes = new int[INITIAL_SLOTS];
+    private int size;
+
+    OffHeapOutputMap() {
+        this(DEFAULT_SLAB_BYTES);
+    }
+
+    OffHeapOutputMap(int slabBytes) {
+        checkArgument(slabBytes > RECORD_HEADER_BYTES);
+        this.slabBytes = slabBytes;
+    }
+
+    /** Returns the output at the given outpoint, or null if there is none. */
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        int slot = findSlot(hash.getBytes(), (int) index, hash(hash, (int) index));
+        if (slot < 0)
+            return null;
+        return read(positions[slot] - 1, hash, index);
+    }
+
+    /** Passes every output to the visitor, in no particular order. */
+    void visit(FullPrunedBlockStore.UnspentOutputVisitor visitor) throws BlockStoreException {
+        for (long position : positions) {
+            if (position == 0)
+                continue;
+            byte[] hashBytes = new byte[32];
+            ByteBuffer record = slabs.get(slab(position - 1)).duplicate();
+            record.position(offset(position - 1) + 5);
+            record.get(hashBytes);
+            long index = record.getInt() & 0xFFFFFFFFL;
+            visitor.visit(read(position - 1, new Sha256Hash(hashBytes), index));
+        }
+    }
+
+    private StoredTransactionOutput read(long address, Sha256Hash hash, long index) {
+        ByteBuffer slab = slabs.get(slab(address));
+        int offset = offset(address);
+        byte[] script = new byte[slab.getInt(offset + 1)];
+        int height = slab.getInt(offset + 41);
+        Coin value = Coin.valueOf(slab.getLong(offset + 45));
+        boolean coinbase = slab.get(offset + 53) != 0;
+        // The position of the last slab is where the next record goes, so read through a duplicate.
+        ByteBuffer record = slab.duplicate();
+        record.position(offset + RECORD_HEADER_BYTES);
+        record.get(script);
+        return new StoredTransactionOutput(hash, index, value, height, coinbase, script);
+    }
+
+    /** Stores the output, replacing any output already at its outpoint. */
+    void put(StoredTransactionOutput out) {
+        byte[] hashBytes = out.getHash().getBytes();
+        int index = (int) out.getIndex();
+        int hash = hash(out.getHash(), index);
+        int slot = findSlot(hashBytes, index, hash);
+        if (slot >= 0) {
+            kill(positions[slot] - 1);
+            positions[slot] = append(out) + 1;
+            return;
+        }
+        // Keep the table at most 70% full so probe sequences stay short.
+        if ((size + 1) * 10L > positions.length * 7L)
+            grow();
+        insert(positions, hashes, hash, append(out) + 1);
+        size++;
+    }
+
+    /** Removes the output at the given outpoint, returning false if there wasn't one. */
+    boolean remove(Sha256Hash hash, long index) {
+        int slot = findSlot(hash.getBytes(), (int) index, hash(hash, (int) index));
+        if (slot < 0)
+            return false;
+        kill(positions[slot] - 1);
+        deleteSlot(slot);
+        size--;
+        if (allocatedBytes >= 4L * slabBytes && allocatedBytes > 2 * liveBytes)
+            compact();
+        return true;
+    }
+
+    /** Returns the number of outputs. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the number of bytes taken by the outputs themselves. */
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /** Returns the number of bytes of direct memory allocated for slabs. */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** Drops all outputs. The slabs are freed when the garbage collector gets to them. */
+    void clear() {
+        slabs = new ArrayList<ByteBuffer>();
+        allocatedBytes = 0;
+        liveBytes = 0;
+        positions = new long[INITIAL_SLOTS];
+        hashes = new int[INITIAL_SLOTS];
+        size = 0;
+    }
+
+    @VisibleForTesting static int hash(Sha256Hash txHash, int index) {
+        // Transaction hashes are already uniformly distributed, so some of their bytes will do.
+        int hash = txHash.hashCode() ^ (index * 0x9e3779b9);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int slab(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    // Returns the slot holding the output at the given outpoint, or -1 if there isn't one.
+    private int findSlot(byte[] hashBytes, int index, int hash) {
+        int mask = positions.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long position = positions[slot];
+            if (position == 0)
+                return -1;
+            if (hashes[slot] == hash && keyEquals(position - 1, hashBytes, index))
+                return slot;
+        }
+    }
+
+    private boolean keyEquals(long address, byte[] hashBytes, int index) {
+        ByteBuffer slab = slabs.get(slab(address));
+        int offset = offset(address);
+        if (slab.getInt(offset + 37) != index)
+            return false;
+        for (int i = 0; i < hashBytes.length; i++) {
+            if (slab.get(offset + 5 + i) != hashBytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Writes the output as a live record at the end of the last slab, or a new one if it doesn't fit.
+    private long append(StoredTransactionOutput out) {
+        byte[] script = out.getScriptBytes();
+        int length = RECORD_HEADER_BYTES + script.length;
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slab.remaining() < length) {
+            // The odd huge script gets a slab of its own.
+            slab = ByteBuffer.allocateDirect(Math.max(slabBytes, length));
+            slabs.add(slab);
+            allocatedBytes += slab.capacity();
+        }
+        long address = ((long) (slabs.size() - 1) << 32) | slab.position();
+        slab.put(LIVE);
+        slab.putInt(script.length);
+        slab.put(out.getHash().getBytes());
+        slab.putInt((int) out.getIndex());
+        slab.putInt(out.getHeight());
+        slab.putLong(out.getValue().value);
+        slab.put((byte) (out.isCoinbase() ? 1 : 0));
+        slab.put(script);
+        liveBytes += length;
+        return address;
+    }
+
+    private void kill(long address) {
+        ByteBuffer slab = slabs.get(slab(address));
+        int offset = offset(address);
+        slab.put(offset, DEAD);
+        liveBytes -= RECORD_HEADER_BYTES + slab.getInt(offset + 1);
+    }
+
+    private static void insert(long[] positions, int[] hashes, int hash, long position) {
+        int mask = positions.length - 1;
+        int slot = hash & mask;
+        while (positions[slot] != 0)
+            slot = (slot + 1) & mask;
+        positions[slot] = position;
+        hashes[slot] = hash;
+    }
+
+    // Empties the slot and moves later entries of the same probe sequence back, so no tombstones are needed.
+    private void deleteSlot(int slot) {
+        int mask = positions.length - 1;
+        int empty = slot;
+        for (int next = (slot + 1) & mask; positions[next] != 0; next = (next + 1) & mask) {
+            // The entry can move to the empty slot if that doesn't put it before its home slot.
+            int home = hashes[next] & mask;
+            boolean stays = empty <= next ? (home > empty && home <= next) : (home > empty || home <= next);
+            if (!stays) {
+                positions[empty] = positions[next];
+                hashes[empty] = hashes[next];
+                empty = next;
+            }
+        }
+        positions[empty] = 0;
+        hashes[empty] = 0;
+    }
+
+    private void grow() {
+        checkArgument(positions.length < 1 << 30, "Too many outputs");
+        long[] newPositions = new long[positions.length * 2];
+        int[] newHashes = new int[hashes.length * 2];
+        for (int slot = 0; slot < positions.length; slot++) {
+            if (positions[slot] != 0)
+                insert(newPositions, newHashes, hashes[slot], positions[slot]);
+        }
+        positions = newPositions;
+        hashes = newHashes;
+    }
+
+    // Copies the live records into new slabs. The slots stay where they are, only the addresses in them change.
+    private void compact() {
+        long startTime = System.currentTimeMillis();
+        long oldBytes = allocatedBytes;
+        List<ByteBuffer> oldSlabs = slabs;
+        slabs = new ArrayList<ByteBuffer>();
+        allocatedBytes = 0;
+        liveBytes = 0;
+        for (int slot = 0; slot < positions.length; slot++) {
+            if (positions[slot] == 0)
+                continue;
+            long address = positions[slot] - 1;
+            ByteBuffer from = oldSlabs.get(slab(address));
+            int offset = offset(address);
+            int length = RECORD_HEADER_BYTES + from.getInt(offset + 1);
+            ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+            if (slab == null || slab.remaining() < length) {
+                slab = ByteBuffer.allocateDirect(Math.max(slabBytes, length));
+                slabs.add(slab);
+                allocatedBytes += slab.capacity();
+            }
+            positions[slot] = (((long) (slabs.size() - 1) << 32) | slab.position()) + 1;
+            ByteBuffer record = from.duplicate();
+            record.limit(offset + length);
+            record.position(offset);
+            slab.put(record);
+            liveBytes += length;
+        }
+        log.info("Compacted {} outputs from {} to {} bytes in {} ms", size, oldBytes, allocatedBytes,
+                System.currentTimeMillis() - startTime);
+    }
+
+    @Override
+    public String toString() {
+        return size + " outputs in " + (liveBytes / 1024) + " KB of " + slabs.size() + " slabs";
+    }
+}
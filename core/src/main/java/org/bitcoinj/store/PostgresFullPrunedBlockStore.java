@@ -198,19 +198,19 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             if (log.isDebugEnabled())
                 log.debug("Looking for undoable block with hash: " + Utils.HEX.encode(hashBytes));
 
-            PreparedStatement findS = conn.get().prepareStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
+            PreparedStatement findS = prepareStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
             findS.setBytes(1, hashBytes);
 
             ResultSet rs = findS.executeQuery();
-            if (rs.next())
+            boolean exists = rs.next();
+            rs.close();
+            if (exists)
             {
                 // We already have this output, update it.
-                findS.close();
 
                 // Postgres insert-or-updates are very complex (and finnicky).  This level of transaction isolation
                 // seems to work for bitcoinj
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                PreparedStatement s = prepareStatement(getUpdateUndoableBlocksSQL());
                 s.setBytes(3, hashBytes);
 
                 if (log.isDebugEnabled())
@@ -224,13 +224,11 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
 
                 return;
             }
 
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+            PreparedStatement s = prepareStatement(getInsertUndoableBlocksSQL());
             s.setBytes(1, hashBytes);
             s.setInt(2, height);
 
@@ -245,7 +243,6 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
                 s.setBytes(4, transactions);
             }
             s.executeUpdate();
-            s.close();
             try {
                 putUpdateStoredBlock(storedBlock, true);
             } catch (SQLException e) {
@@ -29,32 +29,41 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Headers are found through a hash table kept in a second memory mapped file next to the ring buffer, with the
+ * same name plus ".index". It also maps the heights of the best chain to headers, see {@link #getByHeight(int)}.
+ * The index is rebuilt from the ring buffer if it's missing or doesn't match it, so it can be deleted at any time.
+ * Lookups share a read lock, so they only wait for writes and not for each other.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    public static final String INDEX_MAGIC = "SPVI";
 
     protected volatile MappedByteBuffer buffer;
+    protected volatile MappedByteBuffer indexBuffer;
     protected int numHeaders;
     protected NetworkParameters params;
 
-    protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Writes, and anything that moves the position of the buffers, take the write lock. Lookups take the read lock.
+    protected final ReentrantReadWriteLock lock = Threading.factory.newReentrantReadWriteLock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -63,6 +72,9 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    // The index cuts the number of those calls per lookup, but not to none.
+    //
+    // Lookups share the read lock, so the caches are guarded by cacheLock as well.
     protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
@@ -82,19 +94,32 @@ public class SPVBlockStore implements BlockStore {
             return size() > 100;  // This was chosen arbitrarily.
         }
     };
+    private final Object cacheLock = new Object();
+
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
+    protected RandomAccessFile indexFile = null;
 
     /**
      * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing, and an existing file must have been created with the same number of headers. This operation
+     * will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(numHeaders > 0);
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = numHeaders;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -127,11 +152,16 @@ public class SPVBlockStore implements BlockStore {
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
             } else {
-                initNewStore(params);
+                buffer.put(HEADER_MAGIC.getBytes("US-ASCII"));
+                setRingCursor(buffer, FILE_PROLOGUE_BYTES);
             }
+            openIndex(new File(file.getPath() + ".index"));
+            if (!exists)
+                initNewStore(params);
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (indexFile != null) indexFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -140,47 +170,110 @@ public class SPVBlockStore implements BlockStore {
     }
 
     private void initNewStore(NetworkParameters params) throws Exception {
-        byte[] header;
-        header = HEADER_MAGIC.getBytes("US-ASCII");
-        buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
-        try {
-            setRingCursor(buffer, FILE_PROLOGUE_BYTES);
-        } finally {
-            lock.unlock();
-        }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
         put(storedGenesis);
         setChainHead(storedGenesis);
     }
 
+    private void openIndex(File file) throws Exception {
+        // Files from before there was an index have no id. It tells an index apart from one left over from another
+        // ring buffer of the same name.
+        long storeId = buffer.getLong(STORE_ID_OFFSET);
+        if (storeId == 0) {
+            storeId = new SecureRandom().nextLong() | 1;
+            buffer.putLong(STORE_ID_OFFSET, storeId);
+        }
+        indexFile = new RandomAccessFile(file, "rw");
+        boolean matches = indexFile.length() == getIndexFileSize();
+        indexFile.setLength(getIndexFileSize());
+        indexBuffer = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, getIndexFileSize());
+        byte[] header = new byte[4];
+        indexBuffer.get(header);
+        matches = matches && new String(header, "US-ASCII").equals(INDEX_MAGIC)
+                && indexBuffer.getInt(INDEX_DIRTY_OFFSET) == 0
+                && indexBuffer.getLong(INDEX_STORE_ID_OFFSET) == storeId
+                && indexBuffer.getInt(INDEX_CURSOR_OFFSET) == getRingCursor(buffer);
+        if (!matches)
+            rebuildIndex(storeId);
+    }
+
+    // Indexes every header in the ring buffer, oldest first so that a header stored twice is found where it was
+    // stored last, and then the heights of the best chain.
+    private void rebuildIndex(long storeId) throws Exception {
+        log.info("Rebuilding the index of the SPV block chain file");
+        final MappedByteBuffer index = indexBuffer;
+        byte[] zeros = new byte[4096];
+        index.position(0);
+        while (index.hasRemaining())
+            index.put(zeros, 0, Math.min(zeros.length, index.remaining()));
+        index.position(0);
+        index.put(INDEX_MAGIC.getBytes("US-ASCII"));
+        index.putInt(INDEX_DIRTY_OFFSET, 1);
+        index.putLong(INDEX_STORE_ID_OFFSET, storeId);
+        int cursorSlot = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        byte[] hash = new byte[32];
+        for (int i = 0; i < numHeaders; i++) {
+            int slot = (cursorSlot + i) % numHeaders;
+            buffer.position(recordOffset(slot));
+            buffer.get(hash);
+            if (!Arrays.equals(hash, EMPTY_HASH))
+                indexHash(hash, slot);
+        }
+        buffer.position(8);
+        buffer.get(hash);
+        if (!Arrays.equals(hash, EMPTY_HASH)) {
+            StoredBlock head = find(buffer, new Sha256Hash(hash));
+            if (head != null)
+                indexHeights(head);
+        }
+        index.putInt(INDEX_CURSOR_OFFSET, getRingCursor(buffer));
+        index.putInt(INDEX_DIRTY_OFFSET, 0);
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    private int getIndexFileSize() {
+        return INDEX_HEIGHTS_OFFSET + 4 * numHeaders + 4 * getIndexSlots();
+    }
+
+    // The number of slots in the hash table, enough to keep it at most half full.
+    private int getIndexSlots() {
+        return Integer.highestOneBit(numHeaders) * 4;
+    }
+
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            beginWrite();
+            unindexSlot(slot);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
+            indexHash(hash.getBytes(), slot);
             setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            indexBuffer.putInt(INDEX_CURSOR_OFFSET, buffer.position());
+            endWrite();
+            synchronized (cacheLock) {
+                notFoundCache.remove(hash);
+                blockCache.put(hash, block);
+            }
+        } finally { lock.writeLock().unlock(); }
     }
 
     @Override
@@ -189,53 +282,82 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+            synchronized (cacheLock) {
+                StoredBlock cacheHit = blockCache.get(hash);
+                if (cacheHit != null)
+                    return cacheHit;
+                if (notFoundCache.get(hash) != null)
+                    return null;
+            }
+            StoredBlock block = find(buffer, hash);
+            // Still holding the read lock, so no write can have made this out of date.
+            synchronized (cacheLock) {
+                if (block != null)
+                    blockCache.put(hash, block);
+                else
+                    notFoundCache.put(hash, notFoundMarker);
+            }
+            return block;
+        } finally { lock.readLock().unlock(); }
+    }
+
+    /**
+     * Returns the header at the given height of the best chain, or null if it's no longer in the ring buffer or the
+     * chain isn't that long.
+     */
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        if (height < 0 || height > getChainHead().getHeight())
             return null;
+
+        lock.readLock().lock();
+        try {
+            return findByHeight(buffer, height);
+        } finally { lock.readLock().unlock(); }
+    }
+
+    @Nullable
+    private StoredBlock find(MappedByteBuffer buffer, Sha256Hash hash) {
+        int slot = findSlot(buffer, hash.getBytes());
+        return slot < 0 ? null : readRecord(buffer, slot);
+    }
+
+    @Nullable
+    private StoredBlock findByHeight(MappedByteBuffer buffer, int height) {
+        int entry = indexBuffer.getInt(heightOffset(height));
+        if (entry == 0)
+            return null;
+        StoredBlock block = readRecord(buffer, entry - 1);
+        return block.getHeight() == height ? block : null;
+    }
+
+    // Reads through a view of its own, so that lookups under the read lock don't move the position of the buffer.
+    private StoredBlock readRecord(MappedByteBuffer buffer, int slot) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(recordOffset(slot) + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, view);
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
+        lock.writeLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
@@ -248,7 +370,7 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { lock.writeLock().unlock(); }
     }
 
     @Override
@@ -256,23 +378,161 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.writeLock().lock();
         try {
-            lastChainHead = chainHead;
-            byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            StoredBlock oldHead = lastChainHead;
+            byte[] headHash = new byte[32];
+            if (oldHead == null) {
+                buffer.position(8);
+                buffer.get(headHash);
+                oldHead = find(buffer, new Sha256Hash(headHash));
+            }
+            beginWrite();
+            headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+            // Heights above the new head belong to a chain that is no longer the best one.
+            if (oldHead != null) {
+                for (int height = chainHead.getHeight() + 1;
+                     height <= oldHead.getHeight() && height <= chainHead.getHeight() + numHeaders; height++)
+                    indexBuffer.putInt(heightOffset(height), 0);
+            }
+            indexHeights(chainHead);
+            endWrite();
+            lastChainHead = chainHead;
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    // Points the heights of the chain ending at the given block at its headers, walking back until they already do.
+    private void indexHeights(StoredBlock block) {
+        while (true) {
+            int height = block.getHeight();
+            int slot = findSlot(buffer, block.getHeader().getHash().getBytes());
+            if (slot < 0) {
+                // The rest of the chain is gone from the ring buffer, so whatever is below belongs to other chains.
+                for (int below = height; below >= 0 && below > height - numHeaders; below--)
+                    indexBuffer.putInt(heightOffset(below), 0);
+                return;
+            }
+            int offset = heightOffset(height);
+            if (indexBuffer.getInt(offset) == slot + 1 || height == 0) {
+                indexBuffer.putInt(offset, slot + 1);
+                return;
+            }
+            indexBuffer.putInt(offset, slot + 1);
+            StoredBlock prev = find(buffer, block.getHeader().getPrevBlockHash());
+            if (prev == null) {
+                for (int below = height - 1; below >= 0 && below > height - numHeaders; below--)
+                    indexBuffer.putInt(heightOffset(below), 0);
+                return;
+            }
+            block = prev;
+        }
+    }
+
+    // Returns the slot in the ring buffer holding the header with the given hash, or -1.
+    private int findSlot(MappedByteBuffer buffer, byte[] hash) {
+        final MappedByteBuffer index = indexBuffer;
+        int mask = getIndexSlots() - 1;
+        int bucket = hashCode(hash) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int entry = index.getInt(hashOffset(bucket));
+            if (entry == 0)
+                return -1;
+            if (recordHashEquals(buffer, entry - 1, hash))
+                return entry - 1;
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean recordHashEquals(MappedByteBuffer buffer, int slot, byte[] hash) {
+        int offset = recordOffset(slot);
+        // Compare the last bytes first, the first ones are mostly zeros.
+        if (buffer.getInt(offset + 28) != hashCode(hash))
+            return false;
+        for (int i = 0; i < 28; i += 4)
+            if (buffer.getInt(offset + i) != getInt(hash, i))
+                return false;
+        return true;
+    }
+
+    // Adds the hash to the index, or moves it if it's already there.
+    private void indexHash(byte[] hash, int slot) {
+        final MappedByteBuffer index = indexBuffer;
+        int mask = getIndexSlots() - 1;
+        int bucket = hashCode(hash) & mask;
+        while (true) {
+            int entry = index.getInt(hashOffset(bucket));
+            if (entry == 0 || recordHashEquals(buffer, entry - 1, hash)) {
+                index.putInt(hashOffset(bucket), slot + 1);
+                return;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    // Removes whatever the index says about the header in the given slot, before it's overwritten.
+    private void unindexSlot(int slot) {
+        final MappedByteBuffer index = indexBuffer;
+        int recordOffset = recordOffset(slot);
+        if (buffer.getLong(recordOffset) == 0 && buffer.getLong(recordOffset + 24) == 0)
+            return;  // Never written.
+        StoredBlock block = readRecord(buffer, slot);
+        int heightOffset = heightOffset(block.getHeight());
+        if (index.getInt(heightOffset) == slot + 1)
+            index.putInt(heightOffset, 0);
+        int mask = getIndexSlots() - 1;
+        int bucket = buffer.getInt(recordOffset + 28) & mask;
+        while (true) {
+            int entry = index.getInt(hashOffset(bucket));
+            if (entry == 0)
+                return;  // The same header was stored again later, and the index points there.
+            if (entry == slot + 1)
+                break;
+            bucket = (bucket + 1) & mask;
+        }
+        // Shift back the entries after it that would no longer be found, see "linear probing" deletion.
+        int hole = bucket;
+        int next = bucket;
+        while (true) {
+            next = (next + 1) & mask;
+            int entry = index.getInt(hashOffset(next));
+            if (entry == 0)
+                break;
+            int home = buffer.getInt(recordOffset(entry - 1) + 28) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                index.putInt(hashOffset(hole), entry);
+                hole = next;
+            }
+        }
+        index.putInt(hashOffset(hole), 0);
+    }
+
+    // Writes to the ring buffer and index happen between these. The dirty flag makes the index be rebuilt if the
+    // process dies half way through.
+    private void beginWrite() {
+        indexBuffer.putInt(INDEX_DIRTY_OFFSET, 1);
+    }
+
+    private void endWrite() {
+        indexBuffer.putInt(INDEX_DIRTY_OFFSET, 0);
     }
 
     @Override
     public void close() throws BlockStoreException {
+        lock.writeLock().lock();
         try {
             buffer.force();
+            indexBuffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            indexBuffer = null;
             randomAccessFile.close();
+            indexFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -282,6 +542,7 @@ public class SPVBlockStore implements BlockStore {
     //   4 header bytes = "SPVB"
     //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
     //   32 bytes for the hash of the chain head
+    //   8 bytes of random id, which the index also records
     //
     // For each header (128 bytes)
     //   32 bytes hash of the header
@@ -289,6 +550,44 @@ public class SPVBlockStore implements BlockStore {
     //    4 bytes of height
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int STORE_ID_OFFSET = 40;
+
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes that are non-zero while a write is in progress
+    //   8 bytes of the id of the ring buffer
+    //   4 bytes of the ring cursor when the index was last written
+    //   a table of 4 byte entries for each header, the slot of the header at each height modulo the number of
+    //   headers plus one, or zero if none
+    //   a hash table of 4 byte entries, using linear probing, of the slots of headers plus one, or zero if empty
+    private static final int INDEX_DIRTY_OFFSET = 4;
+    private static final int INDEX_STORE_ID_OFFSET = 8;
+    private static final int INDEX_CURSOR_OFFSET = 16;
+    private static final int INDEX_HEIGHTS_OFFSET = 64;
+
+    private static final byte[] EMPTY_HASH = new byte[32];
+
+    private static int recordOffset(int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+    }
+
+    private int heightOffset(int height) {
+        return INDEX_HEIGHTS_OFFSET + 4 * (height % numHeaders);
+    }
+
+    private int hashOffset(int bucket) {
+        return INDEX_HEIGHTS_OFFSET + 4 * numHeaders + 4 * bucket;
+    }
+
+    // The same as Sha256Hash.hashCode(), the last bytes of the hash.
+    private static int hashCode(byte[] hash) {
+        return getInt(hash, 28);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Writes the unspent outputs of a {@link FullPrunedBlockStore} to a stream, and loads them into an empty store, so
+ * that a new fully verifying node can start from a snapshot it trusts rather than replaying the chain from genesis.
+ * Much like {@link CheckpointManager} seeds SPV stores, but with the whole unspent output set.</p>
+ *
+ * <p>The format is the string "UTXO SNAPSHOT 1", then an int32 number of headers, each in the 96 byte compact form
+ * {@link StoredBlock#serializeCompact(ByteBuffer)} uses, from the last difficulty transition point up to the verified
+ * chain head the snapshot was taken at. The chain needs those to check the next difficulty transition. Each output
+ * follows as a 1 byte, the 32 byte transaction hash, uint32 index, int32 height, int64 value, a coinbase byte, an int32
+ * script length and the script. A 0 byte ends the outputs, followed by an int64 count of them and finally the SHA-256
+ * hash of everything before it. All numbers are big endian.</p>
+ *
+ * <p>Right after a difficulty transition point the snapshot holds fewer than the 11 headers the median time past is
+ * taken over. A chain that checks it (see {@link FullPrunedBlockChain}, which does when verifying new blocks) then
+ * works it out from the headers it has, and may accept or reject the next few blocks' timestamps differently from the
+ * rest of the network.</p>
+ *
+ * <p>The hash returned by {@link #write(NetworkParameters, FullPrunedBlockStore, OutputStream)} identifies the
+ * snapshot, and should be published along with the hash of its chain head so that whoever loads it can check they
+ * got the one they trust.</p>
+ */
+public class UnspentOutputSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UnspentOutputSnapshot.class);
+
+    private static final String MAGIC = "UTXO SNAPSHOT 1";
+    private static final int MORE_OUTPUTS = 1;
+    private static final int END_OF_OUTPUTS = 0;
+
+    // Outputs loaded per batch write, so that the store can write them in bulk without holding them all.
+    private static final int OUTPUTS_PER_BATCH = 10000;
+
+    private UnspentOutputSnapshot() {
+    }
+
+    /**
+     * Writes the unspent outputs of the store as of its verified chain head to the stream, which is flushed but not
+     * closed. Nothing may write to the store meanwhile.
+     * @return the hash of the snapshot
+     */
+    public static Sha256Hash write(NetworkParameters params, FullPrunedBlockStore store, OutputStream stream)
+            throws IOException, BlockStoreException {
+        long startTime = System.currentTimeMillis();
+        StoredBlock head = store.getVerifiedChainHead();
+        List<StoredBlock> headers = new ArrayList<StoredBlock>();
+        int first = head.getHeight() - head.getHeight() % params.getInterval();
+        StoredBlock cursor = head;
+        while (true) {
+            headers.add(cursor);
+            if (cursor.getHeight() == first)
+                break;
+            StoredBlock prev = cursor.getPrev(store);
+            if (prev == null)
+                throw new BlockStoreException("Store is missing the header before " + cursor.getHeader().getHash());
+            cursor = prev;
+        }
+        Collections.reverse(headers);
+
+        MessageDigest digest = newDigest();
+        DigestOutputStream digestStream = new DigestOutputStream(new BufferedOutputStream(stream), digest);
+        final DataOutputStream out = new DataOutputStream(digestStream);
+        out.write(MAGIC.getBytes("US-ASCII"));
+        out.writeInt(headers.size());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock header : headers) {
+            buffer.clear();
+            header.serializeCompact(buffer);
+            out.write(buffer.array());
+        }
+        final long[] count = new long[1];
+        try {
+            store.visitUnspentTransactionOutputs(new FullPrunedBlockStore.UnspentOutputVisitor() {
+                @Override
+                public void visit(StoredTransactionOutput output) throws BlockStoreException {
+                    try {
+                        writeOutput(out, output);
+                    } catch (IOException e) {
+                        throw new BlockStoreException(e);
+                    }
+                    count[0]++;
+                }
+            });
+        } catch (BlockStoreException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        out.writeByte(END_OF_OUTPUTS);
+        out.writeLong(count[0]);
+        out.flush();
+        Sha256Hash hash = new Sha256Hash(digest.digest());
+        digestStream.on(false);
+        out.write(hash.getBytes());
+        out.flush();
+        log.info("Wrote snapshot {} of {} outputs at block {} in {} ms", hash, count[0], head.getHeight(),
+                System.currentTimeMillis() - startTime);
+        return hash;
+    }
+
+    private static void writeOutput(DataOutputStream out, StoredTransactionOutput output) throws IOException {
+        out.writeByte(MORE_OUTPUTS);
+        out.write(output.getHash().getBytes());
+        out.writeInt((int) output.getIndex());
+        out.writeInt(output.getHeight());
+        out.writeLong(output.getValue().value);
+        out.writeBoolean(output.isCoinbase());
+        out.writeInt(output.getScriptBytes().length);
+        out.write(output.getScriptBytes());
+    }
+
+    /**
+     * <p>Loads a snapshot into a store that has nothing past the genesis block, and makes the snapshot's chain head
+     * the store's chain head and verified chain head. The stream is closed.</p>
+     *
+     * <p>The outputs are committed as they are read, and the chain head only once the whole snapshot has been
+     * checked, so a store that this fails on still has the genesis block as its chain head but must be thrown
+     * away. Blocks before the snapshot's chain head cannot be disconnected, as if they had been pruned.</p>
+     *
+     * @param expectedHash the hash the snapshot must have, or null to only check that it isn't corrupt
+     * @return the chain head of the snapshot
+     * @throws IOException if the snapshot is corrupt or not the expected one
+     */
+    public static StoredBlock read(NetworkParameters params, InputStream stream, FullPrunedBlockStore store,
+                                   @Nullable Sha256Hash expectedHash) throws IOException, BlockStoreException {
+        long startTime = System.currentTimeMillis();
+        if (store.getVerifiedChainHead().getHeight() != 0)
+            throw new BlockStoreException("Can only load a snapshot into an empty store");
+        MessageDigest digest = newDigest();
+        DigestInputStream digestStream = new DigestInputStream(new BufferedInputStream(stream), digest);
+        DataInputStream in = new DataInputStream(digestStream);
+        try {
+            byte[] magic = new byte[MAGIC.length()];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC.getBytes("US-ASCII")))
+                throw new IOException("Not a snapshot");
+            List<StoredBlock> headers = readHeaders(params, in);
+            StoredBlock head = headers.get(headers.size() - 1);
+            long count = readOutputs(in, digest, digestStream, store, headers, expectedHash);
+            log.info("Read snapshot of {} outputs at block {} in {} ms", count, head.getHeight(),
+                    System.currentTimeMillis() - startTime);
+            return head;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Loads the outputs and checks the hash, then stores the headers and sets the chain heads. Returns the number of
+    // outputs.
+    private static long readOutputs(DataInputStream in, MessageDigest digest, DigestInputStream digestStream,
+                                    FullPrunedBlockStore store, List<StoredBlock> headers,
+                                    @Nullable Sha256Hash expectedHash) throws IOException, BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        boolean done = false;
+        try {
+            long count = 0;
+            int marker;
+            while ((marker = in.readUnsignedByte()) == MORE_OUTPUTS) {
+                store.addUnspentTransactionOutput(readOutput(in));
+                if (++count % OUTPUTS_PER_BATCH == 0) {
+                    store.commitDatabaseBatchWrite();
+                    store.beginDatabaseBatchWrite();
+                }
+            }
+            if (marker != END_OF_OUTPUTS || in.readLong() != count)
+                throw new IOException("Corrupt snapshot");
+            Sha256Hash hash = new Sha256Hash(digest.digest());
+            digestStream.on(false);
+            byte[] checksum = new byte[32];
+            in.readFully(checksum);
+            if (!Arrays.equals(checksum, hash.getBytes()))
+                throw new IOException("Snapshot checksum does not match");
+            if (expectedHash != null && !expectedHash.equals(hash))
+                throw new IOException("Snapshot has hash " + hash + " but expected " + expectedHash);
+
+            for (StoredBlock header : headers)
+                store.put(header);
+            StoredBlock head = headers.get(headers.size() - 1);
+            store.setChainHead(head);
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+            done = true;
+            return count;
+        } finally {
+            if (!done)
+                store.abortDatabaseBatchWrite();
+        }
+    }
+
+    private static List<StoredBlock> readHeaders(NetworkParameters params, DataInputStream in) throws IOException {
+        int numHeaders = in.readInt();
+        if (numHeaders < 1 || numHeaders > params.getInterval())
+            throw new IOException("Number of headers out of range: " + numHeaders);
+        List<StoredBlock> headers = new ArrayList<StoredBlock>(numHeaders);
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        try {
+            for (int i = 0; i < numHeaders; i++) {
+                buffer.clear();
+                in.readFully(buffer.array());
+                StoredBlock header = StoredBlock.deserializeCompact(params, buffer);
+                if (!headers.isEmpty()) {
+                    StoredBlock prev = headers.get(headers.size() - 1);
+                    if (header.getHeight() != prev.getHeight() + 1
+                            || !header.getHeader().getPrevBlockHash().equals(prev.getHeader().getHash()))
+                        throw new IOException("Snapshot headers do not form a chain");
+                }
+                headers.add(header);
+            }
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        }
+        return headers;
+    }
+
+    private static StoredTransactionOutput readOutput(DataInputStream in) throws IOException {
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+        long index = in.readInt() & 0xFFFFFFFFL;
+        int height = in.readInt();
+        Coin value = Coin.valueOf(in.readLong());
+        boolean coinbase = in.readBoolean();
+        int scriptLength = in.readInt();
+        if (scriptLength < 0 || scriptLength > Block.MAX_BLOCK_SIZE)
+            throw new IOException("Corrupt snapshot");
+        byte[] script = new byte[scriptLength];
+        in.readFully(script);
+        return new StoredTransactionOutput(new Sha256Hash(hash), index, value, height, coinbase, script);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
@@ -19,16 +19,26 @@ package org.bitcoinj.utils;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
-import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
@@ -37,6 +47,11 @@ import java.util.NoSuchElementException;
  * 
  * <p>In order to comply with Iterator&lt;Block>, this class swallows a lot of IOExceptions, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
+ *
+ * <p>Each file is memory mapped and scanned for blocks in place, so the only copy of a block is the one it is parsed
+ * from. Given parsing threads, blocks are parsed on them a few ahead of the consumer, and still come out in file
+ * order. The mappings are released when the garbage collector gets to them, which on Windows keeps the files from
+ * being deleted until then.</p>
  * 
  * <p>To blindly import all files which can be found in a reference client (version >= 0.8) datadir automatically,
  * try this code fragment:<br>
@@ -46,6 +61,11 @@ import java.util.NoSuchElementException;
  * }</p>
  */
 public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
+    // How many blocks each parsing thread may be ahead of the consumer.
+    private static final int BLOCKS_AHEAD_PER_THREAD = 8;
+
     /**
      * Gets the list of files which contain blocks from the Satoshi client.
      */
@@ -71,13 +91,28 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    // The mapping of the current file, positioned where the search for the next block starts.
+    @Nullable private ByteBuffer currentFile = null;
     private Block nextBlock = null;
     private NetworkParameters params;
+    @Nullable private final ExecutorService parser;
+    private final int maxAhead;
+    private final LinkedList<Future<Block>> parsing = new LinkedList<Future<Block>>();
     
     public BlockFileLoader(NetworkParameters params, List<File> files) {
+        this(params, files, 0);
+    }
+
+    /**
+     * Creates a loader that parses blocks on the given number of daemon threads, ahead of the consumer.
+     * @param parseThreads the number of threads, or 0 to parse each block on the thread that asks for it
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int parseThreads) {
+        checkArgument(parseThreads >= 0);
         fileIt = files.iterator();
         this.params = params;
+        this.parser = parseThreads > 0 ? Executors.newFixedThreadPool(parseThreads, new DaemonThreadFactory()) : null;
+        this.maxAhead = parseThreads * BLOCKS_AHEAD_PER_THREAD;
     }
     
     @Override
@@ -97,69 +132,112 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private void loadNextBlock() {
+        if (parser == null) {
+            ByteBuffer bytes;
+            while ((bytes = nextBlockBytes()) != null) {
+                nextBlock = parse(bytes);
+                if (nextBlock != null)
+                    return;
+            }
+            return;
+        }
         while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
+            while (parsing.size() < maxAhead) {
+                final ByteBuffer bytes = nextBlockBytes();
+                if (bytes == null)
                     break;
+                parsing.add(parser.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() {
+                        return parse(bytes);
+                    }
+                }));
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
+            if (parsing.isEmpty()) {
+                parser.shutdown();
+                return;
             }
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = new Block(params, bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
+                nextBlock = parsing.removeFirst().get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            if (nextBlock != null)
+                return;
+        }
+    }
+
+    // Returns the bytes of the next block as a slice of the mapping of its file, or null after the last file.
+    @Nullable
+    private ByteBuffer nextBlockBytes() {
+        int magic = (int) params.getPacketMagic();
+        byte magicFirstByte = (byte) (magic >>> 24);
+        while (true) {
+            ByteBuffer file = currentFile;
+            // Room for the magic and the size.
+            if (file == null || file.remaining() < 8) {
+                if (!fileIt.hasNext()) {
+                    currentFile = null;
+                    return null;
                 }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+                currentFile = map(fileIt.next());
+                continue;
+            }
+            int end = file.limit() - 8;
+            int pos = file.position();
+            while (pos <= end && (file.get(pos) != magicFirstByte || file.getInt(pos) != magic))
+                pos++;
+            if (pos > end) {
+                file.position(file.limit());
+                continue;
+            }
+            // The size is little endian, unlike the magic.
+            long size = Integer.reverseBytes(file.getInt(pos + 4)) & 0xFFFFFFFFL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0) {
+                file.position(pos + 8);
                 continue;
             }
+            if (size > file.limit() - pos - 8) {
+                // Cut off, as when the reference client is killed while writing.
+                file.position(file.limit());
+                continue;
+            }
+            ByteBuffer bytes = file.duplicate();
+            bytes.limit(pos + 8 + (int) size);
+            bytes.position(pos + 8);
+            file.position(pos + 8 + (int) size);
+            return bytes.slice();
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer map(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // Block files are far smaller than the 2GB a mapping can cover. The mapping outlives the channel.
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read block file " + file, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private Block parse(ByteBuffer bytes) {
+        byte[] payload = new byte[bytes.remaining()];
+        bytes.get(payload);
+        try {
+            return new Block(params, payload);
+        } catch (ProtocolException e) {
+            return null;
         }
     }
 
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of byte buffers in power of two size classes, so that code which needs a short lived buffer for every
+ * network message can reuse them instead of leaving the garbage collector to clean up after it. Direct buffers are
+ * especially worth pooling, as they are slow to allocate and are only freed when the collector gets around to it.</p>
+ *
+ * <p>{@link #acquire(int)} hands out a cleared buffer of at least the requested capacity, and {@link #release(ByteBuffer)}
+ * takes it back once nobody uses it any more. Buffers bigger than the largest size class are allocated when asked for
+ * and never pooled. The pool keeps at most a given number of bytes of free buffers, and drops any buffers given back
+ * beyond that.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class ByteBufferPool {
+    private static final int MIN_SIZE_SHIFT = 8;
+
+    private final boolean direct;
+    private final int maxPooledSize;
+    private final long maxFreeBytes;
+
+    // The free buffers of each size class, smallest first.
+    private final List<ArrayDeque<ByteBuffer>> free;
+    private long freeBytes;
+    private long hits, misses;
+
+    /**
+     * @param direct whether to allocate direct buffers
+     * @param maxPooledSize the largest buffer capacity to pool, rounded up to a power of two
+     * @param maxFreeBytes the most bytes of free buffers to keep
+     */
+    public ByteBufferPool(boolean direct, int maxPooledSize, long maxFreeBytes) {
+        checkArgument(maxPooledSize > 0 && maxPooledSize <= 1 << 30);
+        checkArgument(maxFreeBytes >= 0);
+        this.direct = direct;
+        this.maxPooledSize = sizeClassCapacity(sizeClass(maxPooledSize));
+        this.maxFreeBytes = maxFreeBytes;
+        this.free = new ArrayList<ArrayDeque<ByteBuffer>>();
+        for (int i = 0; i <= sizeClass(maxPooledSize); i++)
+            free.add(new ArrayDeque<ByteBuffer>());
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    private static int sizeClassCapacity(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_SHIFT);
+    }
+
+    /** Returns a cleared buffer with at least the given capacity, which should be given back with {@link #release(ByteBuffer)}. */
+    public ByteBuffer acquire(int size) {
+        checkArgument(size >= 0);
+        if (size > maxPooledSize)
+            return allocate(size);
+        int sizeClass = sizeClass(size);
+        synchronized (this) {
+            ByteBuffer buffer = free.get(sizeClass).pollLast();
+            if (buffer != null) {
+                freeBytes -= buffer.capacity();
+                hits++;
+                return buffer;
+            }
+            misses++;
+        }
+        return allocate(sizeClassCapacity(sizeClass));
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Gives a buffer from {@link #acquire(int)} back to the pool. The caller must not touch it, or any duplicate or slice
+     * of it, afterwards. Buffers that didn't come from a pool like this one are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || buffer.isReadOnly() || capacity > maxPooledSize
+                || capacity != sizeClassCapacity(sizeClass(capacity)))
+            return;
+        buffer.clear();
+        synchronized (this) {
+            if (freeBytes + capacity > maxFreeBytes)
+                return;
+            free.get(sizeClass(capacity)).addLast(buffer);
+            freeBytes += capacity;
+        }
+    }
+
+    /** Returns the number of bytes of free buffers the pool holds. */
+    public synchronized long getFreeBytes() {
+        return freeBytes;
+    }
+
+    /** Returns the fraction of pooled size acquisitions that got a free buffer instead of allocating one. */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s byte buffer pool, %d KB free, %.0f%% hit rate", direct ? "Direct" : "Heap",
+                freeBytes / 1024, getHitRate() * 100);
+    }
+}
@@ -108,6 +108,8 @@ public abstract class AbstractFullPrunedBlockChainTest
                 fail();
             }
         }
+        // The failed blocks must not have stopped the verification engine from working on later ones.
+        assertTrue(chain.getVerificationEngine().getStats().inputs > 0);
     }
 
     @Test
@@ -146,6 +148,49 @@ public abstract class AbstractFullPrunedBlockChainTest
         }
     }
 
+    @Test
+    public void scriptsShareOneCopyOfEachTransaction() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+
+        // Split the coinbase into more outputs than one batch of inputs holds.
+        final int numOutputs = ScriptVerificationEngine.DEFAULT_INPUTS_PER_BATCH * 2 + 1;
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction split = new Transaction(params);
+        for (int i = 0; i < numOutputs; i++)
+            split.addOutput(new TransactionOutput(params, split, FIFTY_COINS.divide(numOutputs), outKey.toAddress(params)));
+        split.addSignedInput(spendableOutput, outKey);
+        rollingBlock.addTransaction(split);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        // Spending them all in one transaction spreads its inputs over three batches, which must not parse it again.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction spend = new Transaction(params);
+        spend.addOutput(new TransactionOutput(params, spend, Coin.COIN, new byte[] {}));
+        for (TransactionOutput output : split.getOutputs())
+            spend.addSignedInput(output, outKey);
+        rollingBlock.addTransaction(spend);
+        rollingBlock.solve();
+        ScriptVerificationEngine.Stats before = chain.getVerificationEngine().getStats();
+        assertTrue(chain.add(rollingBlock));
+        ScriptVerificationEngine.Stats after = chain.getVerificationEngine().getStats();
+        assertEquals(1, after.transactions - before.transactions);
+        assertEquals(numOutputs, after.inputs - before.inputs);
+        // They all spend pay to address outputs, so their signatures are checked in batches.
+        assertEquals(numOutputs, after.batchedSignatures - before.batchedSignatures);
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
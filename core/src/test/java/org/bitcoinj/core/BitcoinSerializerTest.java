@@ -18,6 +18,7 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.utils.ByteBufferPool;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
@@ -256,6 +257,80 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testSerializeIntoPooledBuffer() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        ByteBufferPool pool = new ByteBufferPool(true, 1024, 1024 * 1024);
+        Message addr = bs.deserialize(ByteBuffer.wrap(addrMessage));
+        // Its length isn't known up front and goes over the size the buffer starts at, so the buffer has to grow.
+        Transaction tx = new Transaction(MainNetParams.get());
+        tx.addOutput(new TransactionOutput(MainNetParams.get(), tx, Coin.COIN, new byte[2000]));
+        for (Message message : new Message[] {addr, tx}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bs.serialize(message, bos);
+            ByteBuffer buffer = bs.serialize(message, pool);
+            assertTrue(buffer.isDirect());
+            assertEquals(0, buffer.position());
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            assertArrayEquals(bos.toByteArray(), bytes);
+            pool.release(buffer);
+        }
+        assertTrue(pool.getFreeBytes() > 0);
+    }
+
+    @Test
+    public void testDeserializeFromRecycledArray() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(genesis, bos);
+        ByteBuffer in = ByteBuffer.wrap(bos.toByteArray());
+        bs.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = bs.deserializeHeader(in);
+        assertTrue(bs.canRecyclePayload(header));
+        assertFalse(new BitcoinSerializer(MainNetParams.get(), false, true).canRecyclePayload(header));
+        // Left over bytes from whatever the array held before must be ignored.
+        byte[] recycled = new byte[header.size + 100];
+        Arrays.fill(recycled, (byte) 0xff);
+        in.get(recycled, 0, header.size);
+        Block block = (Block) bs.deserializePayload(header, recycled, null);
+        assertEquals(genesis, block);
+        assertEquals(1, block.getTransactions().size());
+
+        in = ByteBuffer.wrap(addrMessage);
+        bs.seekPastMagicBytes(in);
+        header = bs.deserializeHeader(in);
+        assertFalse(bs.canRecyclePayload(header));
+        try {
+            bs.deserializePayload(header, new byte[header.size + 1], null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testTruncatedMessageInRecycledArray() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        byte[] txBytes = MainNetParams.get().getGenesisBlock().getTransactions().get(0).bitcoinSerialize();
+        // The same transaction without its lock time, in an array that still holds the whole transaction from before.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize("tx", Arrays.copyOf(txBytes, txBytes.length - 4), bos);
+        ByteBuffer in = ByteBuffer.wrap(bos.toByteArray());
+        bs.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = bs.deserializeHeader(in);
+        assertTrue(bs.canRecyclePayload(header));
+        byte[] recycled = Arrays.copyOf(txBytes, 1024);
+        in.get(recycled, 0, header.size);
+        try {
+            bs.deserializePayload(header, recycled, null);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
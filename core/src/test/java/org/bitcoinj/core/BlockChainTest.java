@@ -32,7 +32,10 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static org.bitcoinj.core.Coin.*;
@@ -177,6 +180,91 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void addHeaders() throws Exception {
+        // Stay short of a difficulty transition, which the unit test params put close.
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = unitTestParams.getGenesisBlock();
+        for (int i = 0; i < unitTestParams.getInterval() - 1; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            headers.add(prev);
+        }
+        assertEquals(headers.size(), chain.addHeaders(headers));
+        assertEquals(headers.get(headers.size() - 1), chain.getChainHead().getHeader());
+        assertEquals(headers.size(), chain.getBestChainHeight());
+        assertEquals(headers.size(), wallet.getLastBlockSeenHeight());
+        // Headers already in the chain are skipped, as when added one at a time.
+        assertEquals(2, chain.addHeaders(headers.subList(3, 5)));
+        assertEquals(headers.size(), chain.getBestChainHeight());
+    }
+
+    @Test
+    public void addHeadersStopsAtBadHeader() throws Exception {
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = unitTestParams.getGenesisBlock();
+        for (int i = 0; i < unitTestParams.getInterval() - 1; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            if (i == 5) {
+                // Not a difficulty transition point.
+                prev.setDifficultyTarget(0x201fFFFFL);
+                prev.solve();
+            }
+            headers.add(prev);
+        }
+        try {
+            chain.addHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The headers before the bad one are kept.
+        assertEquals(headers.get(4), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void addUnconnectedHeaders() throws Exception {
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo).cloneAsHeader();
+        Block b2 = b1.createNextBlock(coinbaseTo).cloneAsHeader();
+        Block b3 = b2.createNextBlock(coinbaseTo).cloneAsHeader();
+        assertEquals(1, chain.addHeaders(Arrays.asList(b1, b3)));
+        assertEquals(b1, chain.getChainHead().getHeader());
+        assertTrue(chain.isOrphan(b3.getHash()));
+    }
+
+    @Test
+    public void addHeadersStopsAtUnverifiableHeader() throws Exception {
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = unitTestParams.getGenesisBlock();
+        for (int i = 0; i < unitTestParams.getInterval() - 1; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            if (i == 5) {
+                // Fails its own checks, before it is compared with the chain. The headers after it do too.
+                prev.setTime(Utils.currentTimeSeconds() + Block.ALLOWED_TIME_DRIFT + 60);
+                prev.solve();
+            }
+            headers.add(prev);
+        }
+        try {
+            chain.addHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The headers before the bad one are kept.
+        assertEquals(headers.get(4), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void addHeadersConnectsOrphans() throws Exception {
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo).cloneAsHeader();
+        Block b2 = b1.createNextBlock(coinbaseTo).cloneAsHeader();
+        Block b3 = b2.createNextBlock(coinbaseTo).cloneAsHeader();
+        assertFalse(chain.add(b3));
+        assertEquals(2, chain.addHeaders(Arrays.asList(b1, b2)));
+        assertEquals(b3, chain.getChainHead().getHeader());
+        assertFalse(chain.isOrphan(b3.getHash()));
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
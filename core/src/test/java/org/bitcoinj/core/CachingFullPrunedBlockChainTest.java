@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.After;
+
+/**
+ * A CachingFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        // Flush every few blocks so that the tests cover both the cache and the store behind it.
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 1024 * 1024, 3);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        //No-op for memory store, because it's not persistent
+    }
+}
@@ -0,0 +1,23 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CompactMemoryFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+
+/**
+ * A CompactMemoryFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class CompactMemoryFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        return new CompactMemoryFullPrunedBlockStore(params, blockCount);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op for memory store, because it's not persistent
+    }
+}
@@ -47,6 +47,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import static org.bitcoinj.core.Utils.HEX;
@@ -118,6 +119,37 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void batchVerify() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        List<ECKey.SignatureCheck> checks = Lists.newArrayList();
+        for (int i = 0; i < 40; i++) {
+            // Mostly the same two keys, as in a block spending many outputs of the same wallet.
+            ECKey key = i % 3 == 0 ? key2 : key1;
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i});
+            byte[] pubKey = i % 5 == 0 ? key1.getPubKey() : key.getPubKey();
+            checks.add(new ECKey.SignatureCheck(hash.getBytes(), key.sign(hash), pubKey));
+        }
+        // A public key that isn't on the curve at all.
+        byte[] badPubKey = new byte[33];
+        badPubKey[0] = 0x02;
+        badPubKey[1] = 0x05;
+        checks.add(new ECKey.SignatureCheck(Sha256Hash.ZERO_HASH.getBytes(), key1.sign(Sha256Hash.ZERO_HASH), badPubKey));
+
+        boolean[] expected = new boolean[checks.size()];
+        for (int i = 0; i < 40; i++)
+            expected[i] = i % 5 != 0 || i % 3 != 0;
+        assertTrue(Arrays.equals(expected, ECKey.verify(checks, null)));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertTrue(Arrays.equals(expected, ECKey.verify(checks, executor)));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, ECKey.verify(Lists.<ECKey.SignatureCheck>newArrayList(), null).length);
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = HEX.decode(
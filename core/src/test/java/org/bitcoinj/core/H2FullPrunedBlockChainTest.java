@@ -1,11 +1,17 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.DatabaseFullPrunedBlockStore;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -13,6 +19,8 @@ import java.io.File;
 public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
     @After
     public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
         deleteFiles();
     }
 
@@ -35,4 +43,78 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    // Adds the given number of empty blocks on top of the genesis block and returns them in order of height.
+    private List<Block> addBlocks(int count) throws Exception {
+        List<Block> blocks = new ArrayList<Block>();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            rollingBlock = rollingBlock.createNextBlock(null);
+            assertTrue(chain.add(rollingBlock));
+            blocks.add(rollingBlock);
+        }
+        return blocks;
+    }
+
+    private static void awaitPruning(DatabaseFullPrunedBlockStore store) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (store.getPruneBacklog() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, store.getPruneBacklog());
+    }
+
+    @Test
+    public void pruneToTarget() throws Exception {
+        DatabaseFullPrunedBlockStore dbStore = (DatabaseFullPrunedBlockStore) createStore(params, 10);
+        store = dbStore;
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+        assertEquals(0, dbStore.getPruneBacklog());
+
+        List<Block> blocks = addBlocks(30);
+        awaitPruning(dbStore);
+        // The undo data of the genesis block and up to height 20 is gone, the last ten blocks can still be undone.
+        for (int height = 1; height <= 30; height++)
+            assertEquals("height " + height, height > 20, store.getUndoBlock(blocks.get(height - 1).getHash()) != null);
+        assertEquals(21, dbStore.getPrunedBlocks());
+        assertTrue(dbStore.getPrunedBytes() > 0);
+    }
+
+    @Test
+    public void putWhilePruning() throws Exception {
+        DatabaseFullPrunedBlockStore dbStore = (DatabaseFullPrunedBlockStore) createStore(params, 10);
+        store = dbStore;
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+
+        // Enough blocks for the pruning thread to need several statements, which it runs while the following blocks
+        // are still being connected.
+        List<Block> blocks = addBlocks(250);
+        awaitPruning(dbStore);
+        for (int height = 1; height <= 250; height++)
+            assertEquals("height " + height, height > 240, store.getUndoBlock(blocks.get(height - 1).getHash()) != null);
+        assertEquals(241, dbStore.getPrunedBlocks());
+        assertEquals(blocks.get(249).getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertEquals(250, store.getChainHead().getHeight());
+    }
+
+    @Test
+    public void pruneBacklogAfterReset() throws Exception {
+        DatabaseFullPrunedBlockStore dbStore = (DatabaseFullPrunedBlockStore) createStore(params, 10);
+        store = dbStore;
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+        addBlocks(30);
+        awaitPruning(dbStore);
+
+        // A new chain in the reset store is pruned from its own start, not from where the old one had got to.
+        resetStore(store);
+        assertEquals(0, dbStore.getPruneBacklog());
+        chain = new FullPrunedBlockChain(params, store);
+        List<Block> blocks = addBlocks(15);
+        awaitPruning(dbStore);
+        assertNull(store.getUndoBlock(blocks.get(4).getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(5).getHash()));
+        assertEquals(21 + 6, dbStore.getPrunedBlocks());
+    }
 }
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class HeaderDownloadSchedulerTest {
+    // Checkpoints every few blocks, below the first difficulty transition of the unit test network.
+    private static final int CHECKPOINT_SPACING = 3;
+    private static final int CHECKPOINTS = 3;
+
+    private NetworkParameters params;
+    private BlockChain chain;
+    private Address to;
+
+    // Answers nothing itself. The test feeds the scheduler the headers it would have sent.
+    private class MockPeer extends Peer {
+        final List<GetHeadersMessage> requests = new CopyOnWriteArrayList<GetHeadersMessage>();
+        volatile boolean closed;
+
+        MockPeer(int port) {
+            super(params, new VersionMessage(params, 0), chain, new PeerAddress(new InetSocketAddress("127.0.0.1", port)));
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            requests.add((GetHeadersMessage) message);
+        }
+
+        @Override
+        public long getBestHeight() {
+            return CHECKPOINT_SPACING * CHECKPOINTS;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        GetHeadersMessage lastRequest() {
+            return requests.get(requests.size() - 1);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        params = UnitTestParams.get();
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        to = new ECKey().toAddress(params);
+    }
+
+    // Builds the headers following the genesis block, the one at badHeight (if any) with a difficulty the chain rejects.
+    private List<Block> buildHeaders(int badHeight) {
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int height = 1; height <= CHECKPOINT_SPACING * CHECKPOINTS; height++) {
+            Block block = prev.createNextBlock(to, params.getGenesisBlock().getTimeSeconds() + height * 60);
+            if (height == badHeight)
+                block.setDifficultyTarget(0x201fffffL);
+            block.solve();
+            headers.add(block.cloneAsHeader());
+            prev = block;
+        }
+        return headers;
+    }
+
+    private HeaderDownloadScheduler createScheduler(List<Block> headers) throws Exception {
+        StringBuilder data = new StringBuilder("TXT CHECKPOINTS 1\n0\n" + CHECKPOINTS + "\n");
+        StoredBlock stored = chain.getChainHead();
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (Block header : headers) {
+            stored = stored.build(header);
+            if (stored.getHeight() % CHECKPOINT_SPACING == 0) {
+                buffer.clear();
+                stored.serializeCompact(buffer);
+                data.append(CheckpointManager.BASE64.encode(buffer.array())).append('\n');
+            }
+        }
+        CheckpointManager checkpoints = new CheckpointManager(params,
+                new ByteArrayInputStream(data.toString().getBytes(Charsets.US_ASCII)));
+        return new HeaderDownloadScheduler(params, chain, checkpoints, Utils.currentTimeSeconds() + 86400 * 30, null);
+    }
+
+    // The headers after the given height up to and including the checkpoint that ends its range.
+    private HeadersMessage range(List<Block> headers, int fromHeight) throws Exception {
+        return new HeadersMessage(params, headers.subList(fromHeight, fromHeight + CHECKPOINT_SPACING));
+    }
+
+    private Sha256Hash hashAt(List<Block> headers, int height) {
+        return height == 0 ? params.getGenesisBlock().getHash() : headers.get(height - 1).getHash();
+    }
+
+    private void assertRequested(List<Block> headers, GetHeadersMessage request, int fromHeight, int toHeight) {
+        assertEquals(Collections.singletonList(hashAt(headers, fromHeight)), request.getLocator());
+        assertEquals(hashAt(headers, toHeight), request.getStopHash());
+    }
+
+    @Test
+    public void rangesDeliveredOutOfOrder() throws Exception {
+        List<Block> headers = buildHeaders(-1);
+        HeaderDownloadScheduler scheduler = createScheduler(headers);
+        assertEquals(CHECKPOINTS, scheduler.getRangesLeft());
+        MockPeer a = new MockPeer(1), b = new MockPeer(2);
+        scheduler.addPeer(a);
+        scheduler.addPeer(b);
+        assertRequested(headers, a.lastRequest(), 0, 3);
+        assertRequested(headers, b.lastRequest(), 3, 6);
+
+        // The second range arrives first, and has to wait for the first before it goes into the chain.
+        scheduler.receive(b, range(headers, 3));
+        assertEquals(0, chain.getBestChainHeight());
+        assertRequested(headers, b.lastRequest(), 6, 9);
+        scheduler.receive(a, range(headers, 0));
+        assertEquals(6, chain.getBestChainHeight());
+        assertFalse(scheduler.getFuture().isDone());
+
+        scheduler.receive(b, range(headers, 6));
+        assertEquals(9, chain.getBestChainHeight());
+        assertEquals(hashAt(headers, 9), scheduler.getFuture().get().getHeader().getHash());
+        assertEquals(0, scheduler.getRangesLeft());
+        assertEquals(1, a.requests.size());
+        assertEquals(2, b.requests.size());
+    }
+
+    @Test
+    public void stalledPeer() throws Exception {
+        List<Block> headers = buildHeaders(-1);
+        HeaderDownloadScheduler scheduler = createScheduler(headers);
+        MockPeer a = new MockPeer(1), b = new MockPeer(2);
+        scheduler.addPeer(a);
+        scheduler.addPeer(b);
+        scheduler.receive(b, range(headers, 3));
+        scheduler.receive(b, range(headers, 6));
+        assertEquals(2, b.requests.size());
+
+        // The first peer never answers, so once it has had long enough its range goes to the other one.
+        scheduler.checkStalls();
+        assertEquals(2, b.requests.size());
+        Utils.rollMockClock((int) (HeaderDownloadScheduler.STALL_TIMEOUT_MSEC / 1000) + 1);
+        scheduler.checkStalls();
+        assertRequested(headers, b.lastRequest(), 0, 3);
+        scheduler.receive(b, range(headers, 0));
+        assertEquals(9, chain.getBestChainHeight());
+        assertTrue(scheduler.getFuture().isDone());
+
+        // A late answer from the stalled peer is ignored.
+        scheduler.receive(a, range(headers, 0));
+        assertEquals(9, chain.getBestChainHeight());
+        assertFalse(a.closed);
+    }
+
+    @Test
+    public void badBatch() throws Exception {
+        List<Block> headers = buildHeaders(2);
+        HeaderDownloadScheduler scheduler = createScheduler(headers);
+        MockPeer a = new MockPeer(1), b = new MockPeer(2);
+        scheduler.addPeer(a);
+        scheduler.addPeer(b);
+        scheduler.receive(b, range(headers, 3));
+        assertEquals(2, b.requests.size());
+
+        // The chain rejects the second header. The first one is kept, the peer that sent the second is disconnected
+        // and the rest of the range goes to the other peer once it is idle.
+        scheduler.receive(a, range(headers, 0));
+        assertEquals(1, chain.getBestChainHeight());
+        assertTrue(a.closed);
+        assertFalse(b.closed);
+        assertEquals(CHECKPOINTS, scheduler.getRangesLeft());
+        scheduler.receive(b, range(headers, 6));
+        assertRequested(headers, b.lastRequest(), 1, 3);
+
+        // It isn't given any more work, even if it comes back.
+        scheduler.addPeer(a);
+        assertEquals(1, a.requests.size());
+        assertFalse(scheduler.getFuture().isDone());
+        scheduler.cancel();
+    }
+}
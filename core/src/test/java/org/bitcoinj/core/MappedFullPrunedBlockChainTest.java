@@ -0,0 +1,68 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MappedFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MappedFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class MappedFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private final List<File> directories = new ArrayList<File>();
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+        for (File directory : directories)
+            deleteRecursively(directory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        try {
+            File directory = File.createTempFile("mappedstore", null);
+            directory.delete();
+            directories.add(directory);
+            return new MappedFullPrunedBlockStore(params, directory, blockCount);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // A new directory is used for each store.
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class MerkleTreeHasherTest {
+    private ExecutorService executor;
+    private MerkleTreeHasher parallel;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        // A tiny threshold so that even small trees are split across threads.
+        parallel = new MerkleTreeHasher(executor, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void realBlock() throws Exception {
+        byte[] blockBytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        Block block = new Block(MainNetParams.get(), blockBytes);
+        assertEquals(block.getMerkleRoot(), parallel.calculateTransactionsRoot(block.getTransactions()));
+        assertEquals(block.getMerkleRoot(), MerkleTreeHasher.sequential().calculateTransactionsRoot(block.getTransactions()));
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        // Odd sizes exercise the duplication of the last node on a level.
+        for (int size : new int[] {1, 2, 3, 5, 1000, 1023}) {
+            List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+            for (int i = 0; i < size; i++)
+                leaves.add(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)}));
+            assertEquals(MerkleTreeHasher.sequential().calculateRoot(leaves), parallel.calculateRoot(leaves));
+        }
+    }
+
+    @Test
+    public void partialMerkleTreeRoot() throws Exception {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 13; i++)
+            leaves.add(Sha256Hash.create(new byte[] {(byte) i}));
+        byte[] includeBits = new byte[2];
+        Utils.setBitLE(includeBits, 3);
+        Utils.setBitLE(includeBits, 12);
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(UnitTestParams.get(), includeBits, leaves);
+        List<Sha256Hash> matched = new ArrayList<Sha256Hash>();
+        assertEquals(parallel.calculateRoot(leaves), pmt.getTxnHashAndMerkleRoot(matched));
+        assertEquals(2, matched.size());
+        assertEquals(leaves.get(3), matched.get(0));
+        assertEquals(leaves.get(12), matched.get(1));
+    }
+}
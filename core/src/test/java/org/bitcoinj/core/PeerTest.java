@@ -43,7 +43,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -299,6 +301,74 @@ public class PeerTest extends TestWithNetworkConnections {
         assertNull(outbound(writeTarget2));
     }
 
+    @Test
+    public void getDataWhenCongested() throws Exception {
+        final AtomicBoolean congested = new AtomicBoolean(false);
+        VersionMessage ver = new VersionMessage(unitTestParams, 100);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 4000);
+        peer = new Peer(unitTestParams, ver, new PeerAddress(address), blockChain, memoryPool) {
+            @Override
+            public boolean isCongested() {
+                return congested.get();
+            }
+        };
+        connect();
+        final Transaction tx = createFakeTx(unitTestParams, COIN, this.address);
+        peer.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public List<Message> getData(Peer p, GetDataMessage m) {
+                return Lists.<Message>newArrayList(tx);
+            }
+        }, Threading.SAME_THREAD);
+        GetDataMessage getdata = new GetDataMessage(unitTestParams);
+        getdata.addTransaction(tx.getHash());
+        inbound(writeTarget, getdata);
+        assertEquals(tx, outbound(writeTarget));
+
+        // Once the connection backs up, the peer is told we don't have the transaction rather than sent it.
+        congested.set(true);
+        inbound(writeTarget, getdata);
+        NotFoundMessage notFound = (NotFoundMessage) outbound(writeTarget);
+        assertEquals(getdata.getItems(), notFound.getItems());
+        assertNull(outbound(writeTarget));
+    }
+
+    @Test
+    public void invBatching() throws Exception {
+        connect();
+        peer.setDownloadData(true);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            peer.setInventoryBatchDelay(500, executor);
+
+            // Two transactions announced in separate invs are requested with one getdata.
+            Transaction tx1 = createFakeTx(unitTestParams, COIN, address);
+            Transaction tx2 = createFakeTx(unitTestParams, COIN.add(COIN), address);
+            InventoryItem item1 = new InventoryItem(InventoryItem.Type.Transaction, tx1.getHash());
+            InventoryItem item2 = new InventoryItem(InventoryItem.Type.Transaction, tx2.getHash());
+            InventoryMessage inv = new InventoryMessage(unitTestParams);
+            inv.addItem(item1);
+            inbound(writeTarget, inv);
+            inv = new InventoryMessage(unitTestParams);
+            inv.addItem(item2);
+            inbound(writeTarget, inv);
+            pingAndWait(writeTarget);
+
+            // We don't announce back what the peer announced to us, nor announce anything twice.
+            InventoryItem item3 = new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.create(new byte[] {1}));
+            assertFalse(peer.announce(item1));
+            assertTrue(peer.announce(item3));
+            assertFalse(peer.announce(item3));
+
+            GetDataMessage getdata = (GetDataMessage) waitForOutbound(writeTarget);
+            assertEquals(Arrays.asList(item1, item2), getdata.getItems());
+            InventoryMessage announcement = (InventoryMessage) waitForOutbound(writeTarget);
+            assertEquals(Arrays.asList(item3), announcement.getItems());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     // Check that inventory message containing blocks we want is processed correctly.
     @Test
     public void newBlock() throws Exception {
@@ -17,6 +17,10 @@
 package org.bitcoinj.core;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -52,4 +56,39 @@ public class UtilsTest {
         assertEquals(0x05123456L, Utils.encodeCompactBits(new BigInteger("1234560000", 16)));
         assertEquals(0x0600c0deL, Utils.encodeCompactBits(new BigInteger("c0de000000", 16)));
     }
+
+    @Test
+    public void doubleDigest() throws Exception {
+        // SHA256(SHA256("hello"))
+        byte[] expected = Utils.HEX.decode("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50");
+        byte[] input = "hello".getBytes("US-ASCII");
+        assertArrayEquals(expected, Utils.doubleDigest(input));
+
+        byte[] padded = new byte[input.length + 2];
+        System.arraycopy(input, 0, padded, 1, input.length);
+        byte[] out = new byte[34];
+        Utils.doubleDigest(padded, 1, input.length, out, 2);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 2, 34));
+
+        ByteBuffer buffer = ByteBuffer.wrap(padded, 1, input.length);
+        Utils.doubleDigest(buffer, out, 0);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 0, 32));
+        assertFalse(buffer.hasRemaining());
+
+        assertArrayEquals(expected, Utils.doubleDigestTwoBuffers(input, 0, 2, input, 2, 3));
+    }
+
+    @Test
+    public void doubleDigestFromMidstate() throws Exception {
+        byte[] header = new byte[Block.HEADER_SIZE];
+        for (int i = 0; i < header.length; i++)
+            header[i] = (byte) i;
+        MessageDigest midstate = Utils.sha256Midstate(header, 0, 64);
+        byte[] out = new byte[32];
+        for (int nonce = 0; nonce < 3; nonce++) {
+            Utils.uint32ToByteArrayLE(nonce, header, 76);
+            Utils.doubleDigestFromMidstate(midstate, header, 64, 16, out, 0);
+            assertArrayEquals(Utils.doubleDigest(header), out);
+        }
+    }
 }
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.utils.ByteBufferPool;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExecutorStreamParserTest {
+    // Takes every byte it is given and keeps them, noting whether it was opened before and closed after.
+    private static class RecordingParser implements StreamParser {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean outOfOrder;
+        boolean opened;
+
+        @Override
+        public void connectionOpened() {
+            opened = true;
+        }
+
+        @Override
+        public void connectionClosed() {
+            if (!opened)
+                outOfOrder = true;
+            closed.countDown();
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            if (!opened || closed.getCount() == 0)
+                outOfOrder = true;
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            received.write(bytes, 0, bytes.length);
+            return buff.position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 1000;
+        }
+    }
+
+    private static class MockWriteTarget implements MessageWriteTarget {
+        volatile boolean closed;
+
+        @Override
+        public void writeBytes(byte[] message) {
+        }
+
+        @Override
+        public void writeBytes(ByteBuffer message, @Nullable ByteBufferPool pool, Priority priority) {
+        }
+
+        @Override
+        public OutboundQueueStats getOutboundQueueStats() {
+            return OutboundQueueStats.UNQUEUED;
+        }
+
+        @Override
+        public void closeConnection() {
+            closed = true;
+        }
+    }
+
+    // Runs nothing until told to.
+    private static class QueueingExecutor implements Executor {
+        final LinkedList<Runnable> queued = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = queued.poll()) != null)
+                task.run();
+        }
+    }
+
+    @Test
+    public void callbacksInOrderPerConnection() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<RecordingParser> parsers = new ArrayList<RecordingParser>();
+            List<ExecutorStreamParser> wrappers = new ArrayList<ExecutorStreamParser>();
+            for (int i = 0; i < 4; i++) {
+                RecordingParser parser = new RecordingParser();
+                ExecutorStreamParser wrapper = new ExecutorStreamParser(parser, executor);
+                wrapper.setWriteTarget(new MockWriteTarget());
+                wrapper.connectionOpened();
+                parsers.add(parser);
+                wrappers.add(wrapper);
+            }
+            // Interleave many small reads on all the connections, as a selector thread would.
+            byte[] expected = new byte[50000];
+            for (int i = 0; i < expected.length; i++)
+                expected[i] = (byte) i;
+            for (int offset = 0; offset < expected.length; offset += 100) {
+                for (ExecutorStreamParser wrapper : wrappers) {
+                    ByteBuffer buff = ByteBuffer.wrap(Arrays.copyOfRange(expected, offset, offset + 100));
+                    assertEquals(100, wrapper.receiveBytes(buff));
+                }
+            }
+            for (ExecutorStreamParser wrapper : wrappers)
+                wrapper.connectionClosed();
+            for (RecordingParser parser : parsers) {
+                assertTrue(parser.closed.await(10, TimeUnit.SECONDS));
+                assertFalse(parser.outOfOrder);
+                assertArrayEquals(expected, parser.received.toByteArray());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void readsPausedWhileBehind() throws Exception {
+        final List<Boolean> pauses = new ArrayList<Boolean>();
+        RecordingParser parser = new RecordingParser();
+        QueueingExecutor executor = new QueueingExecutor();
+        ExecutorStreamParser wrapper = new ExecutorStreamParser(parser, executor) {
+            @Override
+            void setReadsPaused(boolean paused) {
+                pauses.add(paused);
+            }
+        };
+        MockWriteTarget target = new MockWriteTarget();
+        wrapper.setWriteTarget(target);
+        wrapper.connectionOpened();
+
+        // Nothing is processed, so reads stop once the backlog passes the limit.
+        byte[] chunk = new byte[1024];
+        int sent = 0;
+        while (pauses.isEmpty()) {
+            wrapper.receiveBytes(ByteBuffer.wrap(chunk));
+            sent += chunk.length;
+        }
+        assertEquals(ExecutorStreamParser.PAUSE_READS_BYTES + chunk.length, sent);
+        assertEquals(Arrays.asList(true), pauses);
+        // Bytes read before the pause took effect are still taken, and don't close the connection.
+        wrapper.receiveBytes(ByteBuffer.wrap(chunk));
+        sent += chunk.length;
+        assertEquals(1, pauses.size());
+        assertFalse(target.closed);
+
+        // Once the parser catches up, reads start again.
+        executor.runAll();
+        assertEquals(Arrays.asList(true, false), pauses);
+        assertEquals(sent, parser.received.size());
+        assertFalse(parser.outOfOrder);
+        assertFalse(target.closed);
+    }
+}
@@ -19,6 +19,7 @@ package org.bitcoinj.net;
 
 import org.bitcoinj.core.Utils;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import org.bitcoin.paymentchannel.Protos;
 import org.bitcoin.paymentchannel.Protos.TwoWayChannelMessage;
@@ -32,13 +33,18 @@ import javax.net.SocketFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -49,7 +55,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -60,12 +67,15 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new MultiNioClientManager(2, 2);
+            channels.startAsync();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser<Protos.TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -659,4 +669,172 @@ public class NetworkAbstractionTests {
         server.stopAsync();
         server.awaitTerminated();
     }
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final byte CONTROL_BYTE = 7;
+
+    // Doesn't read anything until released, so that the sender's outbound queue backs up, and then reads slowly. Notes
+    // where the first byte of the control message arrived.
+    private static class SlowReceiver implements StreamParser {
+        final CountDownLatch release = new CountDownLatch(1);
+        final SettableFuture<Void> allReceived = SettableFuture.create();
+        volatile long expected = Long.MAX_VALUE;
+        volatile long received;
+        volatile long controlAt = -1;
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            Uninterruptibles.awaitUninterruptibly(release);
+            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+            while (buff.hasRemaining()) {
+                if (buff.get() == CONTROL_BYTE && controlAt < 0)
+                    controlAt = received;
+                received++;
+            }
+            if (received >= expected)
+                allReceived.set(null);
+            return buff.position();
+        }
+
+        @Override public void setWriteTarget(MessageWriteTarget writeTarget) {}
+        @Override public int getMaxMessageSize() { return 0x10000; }
+        @Override public void connectionOpened() {}
+        @Override public void connectionClosed() {}
+    }
+
+    private static class Sender implements StreamParser {
+        final SettableFuture<MessageWriteTarget> opened = SettableFuture.create();
+        volatile MessageWriteTarget writeTarget;
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            buff.position(buff.limit());
+            return buff.position();
+        }
+
+        @Override public void setWriteTarget(MessageWriteTarget writeTarget) { this.writeTarget = writeTarget; }
+        @Override public int getMaxMessageSize() { return 0x10000; }
+        @Override public void connectionOpened() { opened.set(writeTarget); }
+        @Override public void connectionClosed() {}
+    }
+
+    private MessageWriteTarget openSender(SocketAddress addr) throws Exception {
+        Sender sender = new Sender();
+        if (clientType == 2)
+            new NioClient(addr, sender, 100);
+        else if (clientType == 3)
+            new BlockingClient(addr, sender, 100, SocketFactory.getDefault(), null);
+        else
+            channels.openConnection(addr, sender);
+        return sender.opened.get();
+    }
+
+    // Queues data until the connection counts as congested, and returns how many bytes were queued.
+    private static long queueUntilCongested(MessageWriteTarget client) throws Exception {
+        long queued = 0;
+        for (int i = 0; i < 100 && !client.getOutboundQueueStats().isCongested(); i++) {
+            client.writeBytes(ByteBuffer.allocate(CHUNK_SIZE), null, MessageWriteTarget.Priority.DATA);
+            queued += CHUNK_SIZE;
+        }
+        return queued;
+    }
+
+    private static OutboundQueueStats awaitEmptyQueue(MessageWriteTarget client) throws Exception {
+        OutboundQueueStats stats = client.getOutboundQueueStats();
+        for (int i = 0; i < 500 && stats.getQueuedMessages() > 0; i++) {
+            Thread.sleep(10);
+            stats = client.getOutboundQueueStats();
+        }
+        return stats;
+    }
+
+    @Test
+    public void controlMessagesOvertakeQueuedData() throws Exception {
+        // The blocking clients write each message before taking the next, so never have a queue to reorder.
+        if (clientType == 1 || clientType == 3)
+            return;
+        SlowReceiver receiver = new SlowReceiver();
+        NioServer server = startServer(receiver);
+        try {
+            MessageWriteTarget client = openSender(new InetSocketAddress("localhost", 4243));
+            long dataBytes = queueUntilCongested(client);
+            OutboundQueueStats stats = client.getOutboundQueueStats();
+            assertTrue(stats.isCongested());
+            ByteBuffer control = ByteBuffer.allocate(10);
+            Arrays.fill(control.array(), CONTROL_BYTE);
+            client.writeBytes(control, null, MessageWriteTarget.Priority.CONTROL);
+            receiver.expected = dataBytes + 10;
+            receiver.release.countDown();
+            receiver.allReceived.get();
+
+            // The control message went ahead of most of the queued data, but after the end of the chunk that was
+            // being written when it was queued, rather than in the middle of it.
+            assertTrue(receiver.controlAt + stats.getQueuedBytes() / 2 < dataBytes);
+            assertEquals(0, receiver.controlAt % CHUNK_SIZE);
+            assertEquals(dataBytes / CHUNK_SIZE + 1, awaitEmptyQueue(client).getWrittenMessages());
+            client.closeConnection();
+        } finally {
+            receiver.release.countDown();
+            server.stopAsync();
+            server.awaitTerminated();
+        }
+    }
+
+    @Test
+    public void congestionAndQueueStats() throws Exception {
+        SlowReceiver receiver = new SlowReceiver();
+        NioServer server = startServer(receiver);
+        try {
+            MessageWriteTarget client = openSender(new InetSocketAddress("localhost", 4243));
+            if (clientType == 1 || clientType == 3) {
+                assertSame(OutboundQueueStats.UNQUEUED, client.getOutboundQueueStats());
+                client.closeConnection();
+                return;
+            }
+            OutboundQueueStats stats = client.getOutboundQueueStats();
+            assertFalse(stats.isCongested());
+            assertEquals(0, stats.getQueuedMessages());
+
+            long dataBytes = queueUntilCongested(client);
+            long chunks = dataBytes / CHUNK_SIZE;
+            stats = client.getOutboundQueueStats();
+            assertTrue(stats.isCongested());
+            assertTrue(stats.getQueuedBytes() >= 4 * 1024 * 1024);
+            assertTrue(stats.getQueuedMessages() >= stats.getQueuedBytes() / CHUNK_SIZE);
+            assertEquals(chunks, stats.getWrittenMessages() + stats.getQueuedMessages());
+
+            receiver.expected = dataBytes;
+            receiver.release.countDown();
+            // The connection stays congested until the queue has drained below the low water mark.
+            while (!receiver.allReceived.isDone()) {
+                stats = client.getOutboundQueueStats();
+                if (stats.getQueuedBytes() >= 1024 * 1024)
+                    assertTrue(stats.isCongested());
+                Thread.sleep(1);
+            }
+            stats = awaitEmptyQueue(client);
+            assertFalse(stats.isCongested());
+            assertEquals(0, stats.getQueuedMessages());
+            assertEquals(0, stats.getQueuedBytes());
+            assertEquals(chunks, stats.getWrittenMessages());
+            assertTrue(stats.getMaxLatencyMillis() >= stats.getAverageLatencyMillis());
+            client.closeConnection();
+        } finally {
+            receiver.release.countDown();
+            server.stopAsync();
+            server.awaitTerminated();
+        }
+    }
+
+    private static NioServer startServer(final StreamParser parser) throws Exception {
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return parser;
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+        return server;
+    }
 }
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+public class ScriptPatternTest {
+    private static final List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey(), new ECKey());
+
+    @Test
+    public void standardOutputs() throws Exception {
+        ECKey key = keys.get(0);
+        Script p2pkh = ScriptBuilder.createOutputScript(key.toAddress(MainNetParams.get()));
+        assertEquals(ScriptType.SENT_TO_ADDRESS, ScriptPattern.classify(p2pkh.getProgram()));
+        assertArrayEquals(key.getPubKeyHash(), ScriptPattern.extractHash(p2pkh.getProgram()));
+        assertNull(ScriptPattern.extractPubKey(p2pkh.getProgram()));
+
+        Script p2pk = ScriptBuilder.createOutputScript(key);
+        assertEquals(ScriptType.SENT_TO_RAW_PUBKEY, ScriptPattern.classify(p2pk.getProgram()));
+        assertArrayEquals(key.getPubKey(), ScriptPattern.extractPubKey(p2pk.getProgram()));
+        assertNull(ScriptPattern.extractHash(p2pk.getProgram()));
+        byte[] uncompressed = key.decompress().getPubKey();
+        Script p2pkUncompressed = new ScriptBuilder().data(uncompressed).op(OP_CHECKSIG).build();
+        assertArrayEquals(uncompressed, ScriptPattern.extractPubKey(p2pkUncompressed.getProgram()));
+
+        Script redeemScript = ScriptBuilder.createRedeemScript(2, keys);
+        Script p2sh = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        assertEquals(ScriptType.PAY_TO_SCRIPT_HASH, ScriptPattern.classify(p2sh.getProgram()));
+        assertTrue(ScriptPattern.isPayToScriptHash(p2sh.getProgram()));
+        assertArrayEquals(Utils.sha256hash160(redeemScript.getProgram()), ScriptPattern.extractHash(p2sh.getProgram()));
+
+        assertEquals(ScriptType.SENT_TO_MULTISIG, ScriptPattern.classify(redeemScript.getProgram()));
+        assertEquals(ScriptType.OP_RETURN,
+                ScriptPattern.classify(ScriptBuilder.createOpReturnScript(new byte[] {1, 2, 3}).getProgram()));
+        assertEquals(ScriptType.NON_STANDARD, ScriptPattern.classify(new byte[0]));
+    }
+
+    @Test
+    public void nonMinimalPushes() throws Exception {
+        // A hash pushed with PUSHDATA1 is still pay to address, but BIP16 only accepts the exact byte form.
+        byte[] hash = keys.get(0).getPubKeyHash();
+        byte[] p2pkh = new byte[26];
+        p2pkh[0] = (byte) OP_DUP;
+        p2pkh[1] = (byte) OP_HASH160;
+        p2pkh[2] = (byte) OP_PUSHDATA1;
+        p2pkh[3] = 20;
+        System.arraycopy(hash, 0, p2pkh, 4, 20);
+        p2pkh[24] = (byte) OP_EQUALVERIFY;
+        p2pkh[25] = (byte) OP_CHECKSIG;
+        assertEquals(ScriptType.SENT_TO_ADDRESS, ScriptPattern.classify(p2pkh));
+        assertTrue(new Script(p2pkh).isSentToAddress());
+        assertArrayEquals(hash, ScriptPattern.extractHash(p2pkh));
+
+        byte[] p2sh = new byte[24];
+        p2sh[0] = (byte) OP_HASH160;
+        p2sh[1] = (byte) OP_PUSHDATA1;
+        p2sh[2] = 20;
+        p2sh[23] = (byte) OP_EQUAL;
+        assertEquals(ScriptType.NON_STANDARD, ScriptPattern.classify(p2sh));
+        assertFalse(new Script(p2sh).isPayToScriptHash());
+    }
+
+    @Test
+    public void malformedOrUnusual() throws Exception {
+        // A push that runs off the end of the program.
+        assertEquals(ScriptType.NON_STANDARD, ScriptPattern.classify(new byte[] {(byte) OP_PUSHDATA1}));
+        assertEquals(ScriptType.NON_STANDARD, ScriptPattern.classify(new byte[] {33, 1, 2, (byte) OP_CHECKSIG}));
+        // An opcode where the hash should be, and multisig with something other than OP_N for the key count.
+        assertEquals(ScriptType.NON_STANDARD, ScriptPattern.classify(new byte[] {(byte) OP_DUP, (byte) OP_HASH160,
+                (byte) OP_NOP, (byte) OP_EQUALVERIFY, (byte) OP_CHECKSIG}));
+        assertFalse(new Script(new byte[] {(byte) OP_DUP, (byte) OP_HASH160, (byte) OP_NOP,
+                (byte) OP_EQUALVERIFY, (byte) OP_CHECKSIG}).isSentToAddress());
+        byte[] multisig = new ScriptBuilder().op(OP_NOP).data(keys.get(0).getPubKey()).op(OP_1)
+                .op(OP_CHECKMULTISIG).build().getProgram();
+        assertEquals(ScriptType.NON_STANDARD, ScriptPattern.classify(multisig));
+        // Multisig with the wrong number of keys.
+        byte[] wrongCount = new ScriptBuilder().op(OP_1).data(keys.get(0).getPubKey()).op(OP_2)
+                .op(OP_CHECKMULTISIG).build().getProgram();
+        assertEquals(ScriptType.NON_STANDARD, ScriptPattern.classify(wrongCount));
+    }
+
+    @Test
+    public void agreesWithScript() throws Exception {
+        for (Script script : new Script[] {
+                ScriptBuilder.createOutputScript(keys.get(1)),
+                ScriptBuilder.createMultiSigOutputScript(1, keys),
+                ScriptBuilder.createP2SHOutputScript(new byte[20]),
+                ScriptBuilder.createOpReturnScript(new byte[40]),
+                new ScriptBuilder().op(OP_RETURN).build(),
+                new ScriptBuilder().op(OP_1).op(OP_1).op(OP_ADD).build()}) {
+            ScriptType type = ScriptPattern.classify(script.getProgram());
+            assertEquals(type, script.getScriptType());
+            assertEquals(type == ScriptType.SENT_TO_ADDRESS, script.isSentToAddress());
+            assertEquals(type == ScriptType.SENT_TO_RAW_PUBKEY, script.isSentToRawPubKey());
+            assertEquals(type == ScriptType.PAY_TO_SCRIPT_HASH, script.isPayToScriptHash());
+            assertEquals(type == ScriptType.SENT_TO_MULTISIG, script.isSentToMultiSig());
+            assertEquals(type == ScriptType.OP_RETURN, script.isOpReturn());
+        }
+    }
+}
@@ -42,8 +42,7 @@ import java.nio.charset.Charset;
 import java.util.*;
 
 import static org.bitcoinj.core.Utils.HEX;
-import static org.bitcoinj.script.ScriptOpCodes.OP_0;
-import static org.bitcoinj.script.ScriptOpCodes.OP_INVALIDOPCODE;
+import static org.bitcoinj.script.ScriptOpCodes.*;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.*;
 
@@ -402,4 +401,46 @@ public class ScriptTest {
     public void getToAddressNoPubKey() throws Exception {
         ScriptBuilder.createOutputScript(new ECKey()).getToAddress(params, false);
     }
+
+    @Test
+    public void executeBuiltScript() throws Exception {
+        // OP_0 placeholders made by ScriptBuilder have no data array, but must run like parsed ones.
+        Script script = new ScriptBuilder().addChunk(new ScriptChunk(OP_0, null)).smallNum(0).op(OP_DEPTH).build();
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(null, 0, script, stack, true);
+        assertEquals(3, stack.size());
+        assertArrayEquals(new byte[] {}, stack.get(0));
+        assertArrayEquals(new byte[] {2}, stack.get(2));
+    }
+
+    @Test
+    public void arithmeticBeyondFourBytes() throws Exception {
+        // Inputs are limited to 4 bytes, but results may take 5 and can still be compared.
+        Script script = new ScriptBuilder().data(new byte[] {-1, -1, -1, 0x7f}).op(OP_DUP).op(OP_ADD).op(OP_DUP)
+                .op(OP_SIZE).build();
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(null, 0, script, stack, true);
+        assertArrayEquals(new byte[] {-2, -1, -1, -1, 0}, stack.get(1));
+        assertArrayEquals(new byte[] {5}, stack.get(2));
+        try {
+            Script.executeScript(null, 0, new ScriptBuilder().op(OP_DROP).op(OP_1ADD).build(), stack, true);
+            fail();
+        } catch (ScriptException e) {
+            // Expected, the top element is now too big to be a number.
+        }
+    }
+
+    @Test
+    public void returnedStackElementsAreCopies() throws Exception {
+        Script script = new ScriptBuilder().smallNum(1).smallNum(1).op(OP_EQUAL).smallNum(16).build();
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(null, 0, script, stack, true);
+        for (byte[] element : stack)
+            Arrays.fill(element, (byte) 0x7f);
+        // Changing what came back mustn't change what later runs push.
+        stack.clear();
+        Script.executeScript(null, 0, script, stack, true);
+        assertArrayEquals(new byte[] {1}, stack.get(0));
+        assertArrayEquals(new byte[] {16}, stack.get(1));
+    }
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    @Test
+    public void remembersValidSignatures() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ECKey.ECDSASignature sig = key.sign(hash);
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertTrue(cache.verify(hash, sig, key.getPubKey()));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void verifiesBatches() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        ECKey key = new ECKey();
+        Sha256Hash hash1 = Sha256Hash.create(new byte[] {1});
+        Sha256Hash hash2 = Sha256Hash.create(new byte[] {2});
+        ECKey.ECDSASignature sig1 = key.sign(hash1);
+        assertTrue(cache.verify(hash1, sig1, key.getPubKey()));
+        List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>();
+        checks.add(new ECKey.SignatureCheck(hash1.getBytes(), sig1, key.getPubKey()));
+        checks.add(new ECKey.SignatureCheck(hash2.getBytes(), key.sign(hash2), key.getPubKey()));
+        checks.add(new ECKey.SignatureCheck(hash2.getBytes(), sig1, key.getPubKey()));
+        boolean[] results = cache.verify(checks);
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+        assertFalse(results[2]);
+        // The first was already known, and only the other valid one is added.
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void doesNotRememberInvalidSignatures() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ECKey.ECDSASignature sig = key.sign(hash);
+        // Same signature, wrong hash or wrong key.
+        assertFalse(cache.verify(Sha256Hash.create(new byte[] {2}), sig, key.getPubKey()));
+        assertFalse(cache.verify(hash, sig, new ECKey().getPubKey()));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        SignatureCache cache = new SignatureCache(2 * SignatureCache.BYTES_PER_ENTRY);
+        ECKey key = new ECKey();
+        Sha256Hash[] hashes = new Sha256Hash[3];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[3];
+        for (int i = 0; i < 3; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i});
+            sigs[i] = key.sign(hashes[i]);
+        }
+        cache.verify(hashes[0], sigs[0], key.getPubKey());
+        cache.verify(hashes[1], sigs[1], key.getPubKey());
+        cache.verify(hashes[0], sigs[0], key.getPubKey());
+        cache.verify(hashes[2], sigs[2], key.getPubKey());
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHits());
+        // Entry 1 was the least recently used, so it went when entry 2 came in.
+        cache.verify(hashes[0], sigs[0], key.getPubKey());
+        assertEquals(2, cache.getHits());
+        cache.verify(hashes[1], sigs[1], key.getPubKey());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void concurrentVerifies() throws Exception {
+        // Big enough to be split into stripes.
+        final SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        final ECKey key = new ECKey();
+        final Sha256Hash[] hashes = new Sha256Hash[64];
+        final ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i});
+            sigs[i] = key.sign(hashes[i]);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int thread = 0; thread < 4; thread++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        boolean valid = true;
+                        for (int i = 0; i < hashes.length; i++)
+                            valid &= cache.verify(hashes[i], sigs[i], key.getPubKey());
+                        return valid;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        // Threads may race to verify the same signature, but each is only remembered once.
+        assertEquals(hashes.length, cache.size());
+        assertEquals(4 * hashes.length, cache.getHits() + cache.getMisses());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private MemoryFullPrunedBlockStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        backing = new MemoryFullPrunedBlockStore(params, 10);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 1000);
+    }
+
+    private static StoredTransactionOutput output(int i, boolean coinbase) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)}), 0,
+                Coin.valueOf(i), i, coinbase, new byte[i % 100]);
+    }
+
+    private StoredBlock nextBlock() throws BlockStoreException {
+        StoredBlock head = store.getChainHead();
+        return head.build(head.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+    }
+
+    @Test
+    public void writesWaitForFlush() throws Exception {
+        StoredTransactionOutput out = output(1, false);
+        StoredBlock block = nextBlock();
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.put(block);
+        store.setVerifiedChainHead(block);
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertEquals(block, store.getChainHead());
+        assertEquals(block, store.getVerifiedChainHead());
+        assertNull(backing.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNull(backing.get(block.getHeader().getHash()));
+        assertEquals(params.getGenesisBlock().getHash(), backing.getChainHead().getHeader().getHash());
+
+        store.flush();
+        assertEquals(out, backing.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertEquals(block, backing.get(block.getHeader().getHash()));
+        assertEquals(block, backing.getChainHead());
+        assertEquals(block, backing.getVerifiedChainHead());
+        assertEquals(1, store.getFlushes());
+    }
+
+    @Test
+    public void outputSpentBeforeFlushNeverReachesStore() throws Exception {
+        StoredTransactionOutput out = output(1, false);
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        // The memory store would throw if asked to remove an output it doesn't have.
+        store.flush();
+        assertNull(backing.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void spendsReachStore() throws Exception {
+        StoredTransactionOutput out = output(1, false);
+        backing.addUnspentTransactionOutput(out);
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        store.removeUnspentTransactionOutput(out);
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+        assertNotNull(backing.getTransactionOutput(out.getHash(), out.getIndex()));
+        store.flush();
+        assertNull(backing.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void repeatedCoinbaseReplacesOutput() throws Exception {
+        StoredTransactionOutput first = output(1, true);
+        backing.addUnspentTransactionOutput(first);
+        StoredTransactionOutput second = new StoredTransactionOutput(first.getHash(), first.getIndex(),
+                Coin.valueOf(2), 2, true, new byte[0]);
+        store.addUnspentTransactionOutput(second);
+        store.flush();
+        assertEquals(2, backing.getTransactionOutput(first.getHash(), first.getIndex()).getHeight());
+    }
+
+    @Test
+    public void abortedBatchLeavesNothing() throws Exception {
+        StoredTransactionOutput kept = output(1, false);
+        StoredTransactionOutput added = output(2, false);
+        store.addUnspentTransactionOutput(kept);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(added);
+        store.setChainHead(nextBlock());
+        store.abortDatabaseBatchWrite();
+        assertEquals(kept, store.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(store.getTransactionOutput(added.getHash(), added.getIndex()));
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        store.flush();
+        assertEquals(kept, backing.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(backing.getTransactionOutput(added.getHash(), added.getIndex()));
+    }
+
+    @Test
+    public void lookupsAreCached() throws Exception {
+        StoredTransactionOutput out = output(1, false);
+        backing.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        // Misses are remembered too.
+        assertNull(store.getTransactionOutput(Sha256Hash.ZERO_HASH, 0));
+        assertNull(store.getTransactionOutput(Sha256Hash.ZERO_HASH, 0));
+        assertEquals(2, store.getMisses());
+        assertEquals(2, store.getHits());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void prefetchFillsCache() throws Exception {
+        StoredTransactionOutput out = output(1, false);
+        backing.addUnspentTransactionOutput(out);
+        store.prefetchTransactionOutputs(Arrays.asList(new TransactionOutPoint(params, out.getIndex(), out.getHash()),
+                new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+        assertEquals(2, store.size());
+        assertEquals(2, store.getMisses());
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNull(store.getTransactionOutput(Sha256Hash.ZERO_HASH, 0));
+        assertEquals(2, store.getMisses());
+    }
+
+    @Test
+    public void flushesWhenFull() throws Exception {
+        store = new CachingFullPrunedBlockStore(backing, 100 * 1024, 1000);
+        for (int i = 0; i < 1000; i++)
+            store.addUnspentTransactionOutput(output(i, false));
+        assertTrue(store.getFlushes() > 0);
+        for (int i = 0; i < 1000; i++) {
+            StoredTransactionOutput out = output(i, false);
+            assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        }
+        assertTrue(store.size() < 1000);
+    }
+
+    @Test
+    public void batchIsInvisibleToOtherThreads() throws Exception {
+        final StoredTransactionOutput out = output(1, false);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        final StoredTransactionOutput[] seen = new StoredTransactionOutput[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen[0] = store.getTransactionOutput(out.getHash(), out.getIndex());
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen[0]);
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void verifiedHeadMovesChainHead() throws Exception {
+        StoredBlock b1 = nextBlock();
+        store.put(b1);
+        store.setChainHead(b1);
+        StoredBlock b2 = nextBlock();
+        store.put(b2);
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(b2);
+        assertEquals(b2, store.getChainHead());
+        store.commitDatabaseBatchWrite();
+        assertEquals(b2, store.getChainHead());
+        assertEquals(b2, store.getVerifiedChainHead());
+        store.flush();
+        assertEquals(b2, backing.getChainHead());
+        assertEquals(b2, backing.getVerifiedChainHead());
+        assertEquals(b2, store.getChainHead());
+    }
+
+    @Test
+    public void closeAbortsOtherThreadsBatch() throws Exception {
+        // Keep the backing store readable after it's closed.
+        backing = new MemoryFullPrunedBlockStore(params, 10) {
+            @Override
+            public void close() {
+            }
+        };
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024, 1000);
+        StoredTransactionOutput committed = output(1, false);
+        store.addUnspentTransactionOutput(committed);
+        final StoredTransactionOutput uncommitted = output(2, false);
+        final CountDownLatch added = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final BlockStoreException[] commitError = new BlockStoreException[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    store.beginDatabaseBatchWrite();
+                    store.addUnspentTransactionOutput(uncommitted);
+                    added.countDown();
+                    closed.await();
+                    store.commitDatabaseBatchWrite();
+                } catch (BlockStoreException e) {
+                    commitError[0] = e;
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        assertTrue(added.await(10, TimeUnit.SECONDS));
+        store.close();
+        closed.countDown();
+        thread.join();
+        assertNotNull(commitError[0]);
+        assertEquals(committed, backing.getTransactionOutput(committed.getHash(), committed.getIndex()));
+        assertNull(backing.getTransactionOutput(uncommitted.getHash(), uncommitted.getIndex()));
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class FullHistoryBlockStoreTest {
+    private NetworkParameters params;
+    private File directory;
+    private FullHistoryBlockStore store;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = File.createTempFile("fullhistorystore", null);
+        directory.delete();
+        store = new FullHistoryBlockStore(params, directory);
+        to = new ECKey().toAddress(params);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            store.close();
+        } catch (BlockStoreException e) {
+            // Already closed.
+        }
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private StoredBlock build(StoredBlock prev) throws Exception {
+        StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(block);
+        return block;
+    }
+
+    @Test
+    public void keepsEveryHeader() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        StoredBlock[] blocks = new StoredBlock[100];
+        StoredBlock prev = genesis;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev = build(prev);
+            store.setChainHead(prev);
+        }
+        store.close();
+
+        store = new FullHistoryBlockStore(params, directory);
+        assertEquals(101, store.size());
+        assertEquals(blocks[99], store.getChainHead());
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertEquals(genesis, store.getByHeight(0));
+        for (int i = 0; i < blocks.length; i++) {
+            assertEquals(blocks[i], store.get(blocks[i].getHeader().getHash()));
+            assertEquals(blocks[i], store.getByHeight(i + 1));
+        }
+        assertNull(store.getByHeight(101));
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+        assertEquals(blocks[9], blocks[99].getAncestor(store, 10));
+    }
+
+    @Test
+    public void heightsFollowTheChainHead() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = build(genesis);
+        StoredBlock b2 = build(b1);
+        StoredBlock b3 = build(b2);
+        store.setChainHead(b3);
+        // A fork from b1 that becomes the best chain.
+        StoredBlock c2 = build(b1);
+        StoredBlock c3 = build(c2);
+        StoredBlock c4 = build(c3);
+        assertEquals(b2, store.getByHeight(2));
+        store.setChainHead(c4);
+        assertEquals(b1, store.getByHeight(1));
+        assertEquals(c2, store.getByHeight(2));
+        assertEquals(c4, store.getByHeight(4));
+        // The old chain is still there, but only found by hash.
+        assertEquals(b3, store.get(b3.getHeader().getHash()));
+        assertEquals(b2, b3.getAncestor(store, 2));
+        assertEquals(c2, c4.getAncestor(store, 2));
+        // And back to a shorter one.
+        store.setChainHead(b2);
+        assertEquals(b2, store.getByHeight(2));
+        assertNull(store.getByHeight(3));
+    }
+
+    @Test
+    public void rebuildsLostIndexes() throws Exception {
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 20; i++)
+            prev = build(prev);
+        store.setChainHead(prev);
+        store.close();
+        assertTrue(new File(directory, "index").delete());
+        assertTrue(new File(directory, "heights").delete());
+
+        store = new FullHistoryBlockStore(params, directory);
+        assertEquals(prev, store.getChainHead());
+        assertEquals(prev, store.getByHeight(20));
+        assertEquals(params.getGenesisBlock(), store.getByHeight(0).getHeader());
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void onlyOneOpenStore() throws Exception {
+        new FullHistoryBlockStore(params, directory);
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedFullPrunedBlockStoreTest {
+    // Small segments so that records are spread over several of them and compaction kicks in early.
+    private static final int SEGMENT_BYTES = 4096;
+
+    private NetworkParameters params;
+    private File directory;
+    private MappedFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = File.createTempFile("mappedstore", null);
+        directory.delete();
+        store = new MappedFullPrunedBlockStore(params, directory, 10, SEGMENT_BYTES);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private MappedFullPrunedBlockStore reopen() throws Exception {
+        store.close();
+        store = new MappedFullPrunedBlockStore(params, directory, 10, SEGMENT_BYTES);
+        return store;
+    }
+
+    private static StoredTransactionOutput output(int i) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)}), i % 3,
+                Coin.valueOf(i), i, i % 2 == 0, new byte[i % 100]);
+    }
+
+    private static void assertOutputEquals(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.isCoinbase(), actual.isCoinbase());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    @Test
+    public void survivesReopening() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        Address to = new ECKey().toAddress(params);
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        List<Transaction> transactions = new ArrayList<Transaction>(genesis.getHeader().createNextBlock(to).getTransactions());
+
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 1000; i++)
+            store.addUnspentTransactionOutput(output(i));
+        store.removeUnspentTransactionOutput(output(7));
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(), transactions));
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+
+        reopen();
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertEquals(transactions, store.getUndoBlock(b1.getHeader().getHash()).getTransactions());
+        assertNull(store.getTransactionOutput(output(7).getHash(), output(7).getIndex()));
+        for (int i = 0; i < 1000; i++) {
+            if (i != 7)
+                assertOutputEquals(output(i), store.getTransactionOutput(output(i).getHash(), output(i).getIndex()));
+        }
+    }
+
+    @Test
+    public void abortedBatchLeavesNothing() throws Exception {
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(1));
+        assertNotNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+        reopen();
+        assertNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+    }
+
+    @Test
+    public void batchIsInvisibleToOtherThreads() throws Exception {
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(output(1));
+        final StoredTransactionOutput[] seen = new StoredTransactionOutput[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen[0] = store.getTransactionOutput(output(1).getHash(), output(1).getIndex());
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen[0]);
+        store.commitDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+    }
+
+    @Test
+    public void interruptedCommitIsFinishedOnOpen() throws Exception {
+        store.addUnspentTransactionOutput(output(1));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(1));
+        store.addUnspentTransactionOutput(output(2));
+        store.failAfterJournal = true;
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected, and the store is now closed.
+        }
+        store = new MappedFullPrunedBlockStore(params, directory, 10, SEGMENT_BYTES);
+        assertNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+        assertOutputEquals(output(2), store.getTransactionOutput(output(2).getHash(), output(2).getIndex()));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        // Add and spend enough outputs that most of the file is dead.
+        for (int round = 0; round < 20; round++) {
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < 100; i++)
+                store.addUnspentTransactionOutput(output(round * 100 + i));
+            if (round > 0) {
+                for (int i = 1; i < 100; i++)
+                    store.removeUnspentTransactionOutput(output((round - 1) * 100 + i));
+            }
+            store.commitDatabaseBatchWrite();
+        }
+        store.compact();
+        reopen();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                StoredTransactionOutput out = output(round * 100 + i);
+                StoredTransactionOutput stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+                if (round == 19 || i == 0)
+                    assertOutputEquals(out, stored);
+                else
+                    assertNull(stored);
+            }
+        }
+    }
+}
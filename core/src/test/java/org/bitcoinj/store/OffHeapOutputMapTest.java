@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OffHeapOutputMapTest {
+    private static StoredTransactionOutput output(int i, int scriptLength) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)}),
+                i % 3, Coin.valueOf(i), i, i % 2 == 0, new byte[scriptLength]);
+    }
+
+    private static int homeSlot(StoredTransactionOutput out) {
+        return OffHeapOutputMap.hash(out.getHash(), (int) out.getIndex()) & (OffHeapOutputMap.INITIAL_SLOTS - 1);
+    }
+
+    private static void assertContainsExactly(OffHeapOutputMap map, List<StoredTransactionOutput> outputs) {
+        assertEquals(outputs.size(), map.size());
+        for (StoredTransactionOutput out : outputs)
+            assertEquals(out, map.get(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void removeAcrossEndOfTable() throws Exception {
+        // Outputs that belong in the first slots of the table, put in first so they sit at or near home, followed by
+        // ones whose home slots are the last two, so their probe sequences run off the end and on past the first.
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        int atEnd = 0, atStart = 0;
+        for (int i = 0; atEnd < 4 || atStart < 3; i++) {
+            StoredTransactionOutput out = output(i, 10);
+            int home = homeSlot(out);
+            if (home >= OffHeapOutputMap.INITIAL_SLOTS - 2 && atEnd < 4) {
+                outputs.add(out);
+                atEnd++;
+            } else if (home <= 1 && atStart < 3) {
+                outputs.add(atStart++, out);
+            }
+        }
+        // Remove each one in turn from a fresh map. Whatever moves back into the emptied slot, the rest must still
+        // be found.
+        for (StoredTransactionOutput removed : outputs) {
+            OffHeapOutputMap map = new OffHeapOutputMap();
+            for (StoredTransactionOutput out : outputs)
+                map.put(out);
+            assertContainsExactly(map, outputs);
+            assertTrue(map.remove(removed.getHash(), removed.getIndex()));
+            assertNull(map.get(removed.getHash(), removed.getIndex()));
+            assertFalse(map.remove(removed.getHash(), removed.getIndex()));
+            List<StoredTransactionOutput> left = new ArrayList<StoredTransactionOutput>(outputs);
+            left.remove(removed);
+            assertContainsExactly(map, left);
+        }
+    }
+
+    @Test
+    public void compactKeepsLiveOutputs() throws Exception {
+        int slabBytes = 4096;
+        OffHeapOutputMap map = new OffHeapOutputMap(slabBytes);
+        Map<Integer, StoredTransactionOutput> live = new HashMap<Integer, StoredTransactionOutput>();
+        // Enough outputs to fill many slabs, one of them with a script bigger than a slab, and replace some so there
+        // are dead copies to drop.
+        for (int i = 0; i < 1000; i++) {
+            StoredTransactionOutput out = output(i, i == 500 ? 2 * slabBytes : i % 100);
+            map.put(out);
+            live.put(i, out);
+        }
+        for (int i = 0; i < 1000; i += 7) {
+            StoredTransactionOutput out = new StoredTransactionOutput(live.get(i).getHash(), live.get(i).getIndex(),
+                    Coin.valueOf(i + 1), i, false, new byte[i % 50]);
+            map.put(out);
+            live.put(i, out);
+        }
+        long allocatedBefore = map.getAllocatedBytes();
+        // Remove most of them, which compacts the slabs once enough of the space is dead.
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0 || i == 500)
+                continue;
+            assertTrue(map.remove(live.get(i).getHash(), live.get(i).getIndex()));
+            live.remove(i);
+        }
+        assertTrue(map.getAllocatedBytes() < allocatedBefore / 2);
+        assertContainsExactly(map, new ArrayList<StoredTransactionOutput>(live.values()));
+
+        // The compacted map still takes new outputs, and visits exactly the live ones.
+        StoredTransactionOutput added = output(5000, 20);
+        map.put(added);
+        live.put(5000, added);
+        final List<StoredTransactionOutput> visited = new ArrayList<StoredTransactionOutput>();
+        map.visit(new FullPrunedBlockStore.UnspentOutputVisitor() {
+            @Override
+            public void visit(StoredTransactionOutput out) {
+                visited.add(out);
+            }
+        });
+        assertEquals(live.size(), visited.size());
+        assertTrue(visited.containsAll(live.values()));
+        assertContainsExactly(map, new ArrayList<StoredTransactionOutput>(live.values()));
+    }
+}
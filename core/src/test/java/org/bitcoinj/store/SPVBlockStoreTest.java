@@ -26,6 +26,7 @@ import org.junit.Test;
 import java.io.File;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +59,53 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void lookupsAfterWrapping() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File index = new File(f.getPath() + ".index");
+        index.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10);
+
+        Address to = new ECKey().toAddress(params);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock[] blocks = new StoredBlock[25];
+        StoredBlock prev = genesis;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+            store.setChainHead(blocks[i]);
+            prev = blocks[i];
+        }
+        // Only the last ten are left in the ring buffer.
+        assertNull(store.get(genesis.getHeader().getHash()));
+        assertNull(store.get(blocks[14].getHeader().getHash()));
+        assertEquals(blocks[15], store.get(blocks[15].getHeader().getHash()));
+        assertNull(store.getByHeight(15));
+        assertEquals(blocks[15], store.getByHeight(16));
+        assertEquals(blocks[24], store.getByHeight(25));
+        assertNull(store.getByHeight(26));
+
+        // A fork at the same height as the head doesn't change the best chain until it's made the head.
+        StoredBlock fork = blocks[22].build(blocks[22].getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(fork);
+        assertEquals(blocks[23], store.getByHeight(24));
+        store.setChainHead(fork);
+        assertEquals(fork, store.getByHeight(24));
+        assertNull(store.getByHeight(25));
+        store.close();
+
+        // The index is rebuilt if it's lost.
+        index.delete();
+        store = new SPVBlockStore(params, f, 10);
+        assertEquals(fork, store.getChainHead());
+        assertEquals(blocks[16], store.get(blocks[16].getHeader().getHash()));
+        assertNull(store.get(blocks[15].getHeader().getHash()));
+        assertEquals(fork, store.getByHeight(24));
+        assertEquals(blocks[22], store.getByHeight(23));
+        store.close();
+    }
 }
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UnspentOutputSnapshotTest {
+    private NetworkParameters params;
+    private MemoryFullPrunedBlockStore store;
+    private List<StoredTransactionOutput> outputs;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        store = new MemoryFullPrunedBlockStore(params, 10);
+        outputs = new ArrayList<StoredTransactionOutput>();
+        Address address = new ECKey().toAddress(params);
+        // Past a difficulty transition, so that only some of the headers go into the snapshot.
+        for (int i = 0; i < params.getInterval() + 5; i++) {
+            StoredBlock head = store.getVerifiedChainHead();
+            StoredBlock next = head.build(head.getHeader().createNextBlock(address).cloneAsHeader());
+            StoredTransactionOutput out = new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) i}), i,
+                    Coin.valueOf(i + 1), next.getHeight(), i % 2 == 0, new byte[i]);
+            store.beginDatabaseBatchWrite();
+            store.put(next);
+            store.addUnspentTransactionOutput(out);
+            store.setVerifiedChainHead(next);
+            store.commitDatabaseBatchWrite();
+            outputs.add(out);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Sha256Hash hash = UnspentOutputSnapshot.write(params, store, bytes);
+
+        FullPrunedBlockStore loaded = new CompactMemoryFullPrunedBlockStore(params, 10);
+        StoredBlock head = UnspentOutputSnapshot.read(params, new ByteArrayInputStream(bytes.toByteArray()), loaded, hash);
+        assertEquals(store.getVerifiedChainHead(), head);
+        assertEquals(head, loaded.getVerifiedChainHead());
+        assertEquals(head, loaded.getChainHead());
+        assertNotNull(head.getAncestor(loaded, params.getInterval()));
+        for (StoredTransactionOutput out : outputs) {
+            StoredTransactionOutput copy = loaded.getTransactionOutput(out.getHash(), out.getIndex());
+            assertEquals(out, copy);
+            assertEquals(out.getValue(), copy.getValue());
+            assertEquals(out.getHeight(), copy.getHeight());
+            assertEquals(out.isCoinbase(), copy.isCoinbase());
+            assertArrayEquals(out.getScriptBytes(), copy.getScriptBytes());
+        }
+    }
+
+    @Test
+    public void corruptSnapshotIsRejected() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UnspentOutputSnapshot.write(params, store, bytes);
+        byte[] corrupt = bytes.toByteArray();
+        corrupt[corrupt.length - 40] ^= 1;
+
+        FullPrunedBlockStore loaded = new MemoryFullPrunedBlockStore(params, 10);
+        try {
+            UnspentOutputSnapshot.read(params, new ByteArrayInputStream(corrupt), loaded, null);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, loaded.getVerifiedChainHead().getHeight());
+    }
+
+    @Test(expected = IOException.class)
+    public void unexpectedSnapshotIsRejected() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UnspentOutputSnapshot.write(params, store, bytes);
+        FullPrunedBlockStore loaded = new MemoryFullPrunedBlockStore(params, 10);
+        UnspentOutputSnapshot.read(params, new ByteArrayInputStream(bytes.toByteArray()), loaded, Sha256Hash.ZERO_HASH);
+    }
+}
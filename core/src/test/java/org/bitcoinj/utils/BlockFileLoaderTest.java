@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockFileLoaderTest {
+    private NetworkParameters params;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        Address address = new ECKey().toAddress(params);
+        for (int i = 0; i < 50; i++) {
+            block = block.createNextBlock(address);
+            blocks.add(block);
+        }
+    }
+
+    @Test
+    public void sequential() throws Exception {
+        checkLoads(0);
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        checkLoads(3);
+    }
+
+    private void checkLoads(int parseThreads) throws IOException {
+        // Garbage and zero padding between blocks, as the reference client leaves, and a block cut off at the end of
+        // the first file.
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        first.write(new byte[] {1, 2, 3});
+        for (Block block : blocks.subList(0, 30)) {
+            writeBlock(first, block.bitcoinSerialize());
+            first.write(new byte[7]);
+        }
+        byte[] cutOff = blocks.get(30).bitcoinSerialize();
+        writeHeader(first, cutOff.length);
+        first.write(cutOff, 0, cutOff.length / 2);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        for (Block block : blocks.subList(30, blocks.size()))
+            writeBlock(second, block.bitcoinSerialize());
+        File firstFile = writeFile(first.toByteArray());
+        File secondFile = writeFile(second.toByteArray());
+        File emptyFile = writeFile(new byte[0]);
+
+        List<Block> loaded = new ArrayList<Block>();
+        for (Block block : new BlockFileLoader(params, Arrays.asList(emptyFile, firstFile, secondFile), parseThreads))
+            loaded.add(block);
+        assertEquals(blocks, loaded);
+    }
+
+    private void writeBlock(ByteArrayOutputStream stream, byte[] bytes) throws IOException {
+        writeHeader(stream, bytes.length);
+        stream.write(bytes);
+    }
+
+    private void writeHeader(ByteArrayOutputStream stream, int size) throws IOException {
+        byte[] header = new byte[8];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        Utils.uint32ToByteArrayLE(size, header, 4);
+        stream.write(header);
+    }
+
+    private File writeFile(byte[] bytes) throws IOException {
+        File file = File.createTempFile("blk", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+}
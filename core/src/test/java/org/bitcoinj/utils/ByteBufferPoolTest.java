@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void reusesBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(true, 4096, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(1000);
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(1024, buffer.limit());
+        buffer.putInt(1).flip();
+        pool.release(buffer);
+        assertEquals(1024, pool.getFreeBytes());
+
+        ByteBuffer again = pool.acquire(600);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(1024, again.limit());
+        assertEquals(0, pool.getFreeBytes());
+        assertEquals(0.5, pool.getHitRate(), 0);
+
+        // A different size class.
+        assertEquals(256, pool.acquire(0).capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+    }
+
+    @Test
+    public void doesNotPoolForeignOrLargeBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(false, 4096, 1024 * 1024);
+        ByteBuffer large = pool.acquire(5000);
+        assertEquals(5000, large.capacity());
+        pool.release(large);
+        pool.release(ByteBuffer.allocateDirect(1024));
+        pool.release(ByteBuffer.allocate(1000));
+        pool.release(ByteBuffer.allocate(1024).asReadOnlyBuffer());
+        assertEquals(0, pool.getFreeBytes());
+        pool.release(ByteBuffer.allocate(1024));
+        assertEquals(1024, pool.getFreeBytes());
+    }
+
+    @Test
+    public void keepsAtMostMaxFreeBytes() {
+        ByteBufferPool pool = new ByteBufferPool(false, 4096, 3000);
+        ByteBuffer a = pool.acquire(1024), b = pool.acquire(1024), c = pool.acquire(1024);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2048, pool.getFreeBytes());
+    }
+}
@@ -3,6 +3,7 @@ package org.bitcoinj.tools;
 import org.bitcoinj.core.*;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.script.SignatureCache;
 import org.bitcoinj.store.*;
 import org.bitcoinj.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
@@ -48,9 +49,15 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
+        // Parse blocks ahead on another thread, so that verification is what limits the import.
+        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList(), 1);
         
         for (Block block : loader)
             chain.add(block);
+
+        if (chain instanceof FullPrunedBlockChain) {
+            System.out.println("Script verification: " + ((FullPrunedBlockChain) chain).getVerificationEngine().getStats());
+            System.out.println("Signature cache: " + SignatureCache.getDefault());
+        }
     }
 }